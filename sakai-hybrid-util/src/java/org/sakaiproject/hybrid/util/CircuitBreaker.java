@@ -0,0 +1,234 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Stops calls to a failing remote service so that callers fail fast instead
+ * of tying up threads. The breaker tracks the outcome of the last
+ * <code>windowSize</code> calls; once the window is full and the failure rate
+ * reaches the threshold it opens and rejects calls. After
+ * <code>openMillis</code> it lets a single probe call through (half-open): a
+ * success closes the breaker, a failure opens it again. Note: Class is thread
+ * safe.
+ */
+@SuppressWarnings("PMD.LongVariable")
+public class CircuitBreaker {
+	private static final Log LOG = LogFactory.getLog(CircuitBreaker.class);
+
+	/**
+	 * States of the breaker.
+	 */
+	public enum State {
+		/** Calls flow normally. */
+		CLOSED,
+		/** Calls are rejected. */
+		OPEN,
+		/** A single probe call is allowed. */
+		HALF_OPEN
+	}
+
+	/**
+	 * Thrown instead of calling the remote service while the breaker is open.
+	 * Extends {@link IllegalStateException} so existing callers need not
+	 * change.
+	 */
+	public static class OpenException extends IllegalStateException {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * @param message
+		 */
+		public OpenException(final String message) {
+			super(message);
+		}
+	}
+
+	private final transient String name;
+	private final transient boolean[] window;
+	private final transient int failureRateThreshold;
+	private final transient long openMillis;
+
+	// guarded by this
+	private transient State state = State.CLOSED;
+	private transient int windowIndex = 0;
+	private transient int windowCount = 0;
+	private transient int windowFailures = 0;
+	private transient long openedAt = 0L;
+	private transient boolean probeInFlight = false;
+
+	/**
+	 * @param name
+	 *            Used in log messages.
+	 * @param windowSize
+	 *            Number of recent calls used to compute the failure rate.
+	 * @param failureRateThreshold
+	 *            Percentage of failed calls (1-100) at which the breaker
+	 *            opens.
+	 * @param openMillis
+	 *            How long the breaker stays open before allowing a probe.
+	 * @throws IllegalArgumentException
+	 */
+	public CircuitBreaker(final String name, final int windowSize,
+			final int failureRateThreshold, final long openMillis) {
+		if (name == null || "".equals(name)) {
+			throw new IllegalArgumentException("name == null OR empty");
+		}
+		if (windowSize < 1) {
+			throw new IllegalArgumentException("windowSize < 1");
+		}
+		if (failureRateThreshold < 1 || failureRateThreshold > 100) {
+			throw new IllegalArgumentException(
+					"failureRateThreshold not between 1 and 100");
+		}
+		if (openMillis < 1) {
+			throw new IllegalArgumentException("openMillis < 1");
+		}
+		this.name = name;
+		this.window = new boolean[windowSize];
+		this.failureRateThreshold = failureRateThreshold;
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * Must be called before each call to the remote service. If it returns
+	 * true, the outcome must be reported with {@link #recordSuccess()} or
+	 * {@link #recordFailure()}.
+	 * 
+	 * @return true if the call may proceed.
+	 */
+	public synchronized boolean allowRequest() {
+		switch (state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (currentTimeMillis() - openedAt < openMillis) {
+				return false;
+			}
+			transitionTo(State.HALF_OPEN);
+			probeInFlight = true;
+			return true;
+		default:
+			if (probeInFlight) {
+				return false;
+			}
+			probeInFlight = true;
+			return true;
+		}
+	}
+
+	/**
+	 * Convenience for callers that want an exception instead of a boolean.
+	 * 
+	 * @throws OpenException
+	 *             if {@link #allowRequest()} returns false.
+	 */
+	public void acquirePermission() {
+		if (!allowRequest()) {
+			throw new OpenException("Circuit breaker " + name + " is open");
+		}
+	}
+
+	/**
+	 * Report a successful call.
+	 */
+	public synchronized void recordSuccess() {
+		if (state == State.HALF_OPEN) {
+			probeInFlight = false;
+			resetWindow();
+			transitionTo(State.CLOSED);
+		} else if (state == State.CLOSED) {
+			record(false);
+		}
+	}
+
+	/**
+	 * Report a failed call.
+	 */
+	public synchronized void recordFailure() {
+		if (state == State.HALF_OPEN) {
+			probeInFlight = false;
+			open();
+		} else if (state == State.CLOSED) {
+			record(true);
+			if (windowCount == window.length
+					&& windowFailures * 100 >= failureRateThreshold
+							* windowCount) {
+				open();
+			}
+		}
+	}
+
+	/**
+	 * @return the current state.
+	 */
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * Overridable for unit testing.
+	 * 
+	 * @return the current time in milliseconds.
+	 */
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	private void record(final boolean failure) {
+		if (windowCount == window.length) {
+			if (window[windowIndex]) {
+				windowFailures--;
+			}
+		} else {
+			windowCount++;
+		}
+		window[windowIndex] = failure;
+		if (failure) {
+			windowFailures++;
+		}
+		windowIndex = (windowIndex + 1) % window.length;
+	}
+
+	private void open() {
+		openedAt = currentTimeMillis();
+		resetWindow();
+		transitionTo(State.OPEN);
+	}
+
+	private void resetWindow() {
+		windowIndex = 0;
+		windowCount = 0;
+		windowFailures = 0;
+	}
+
+	private void transitionTo(final State newState) {
+		if (state != newState) {
+			if (newState == State.OPEN) {
+				LOG.warn("Circuit breaker " + name + ": " + state + " -> "
+						+ newState);
+			} else {
+				LOG.info("Circuit breaker " + name + ": " + state + " -> "
+						+ newState);
+			}
+			state = newState;
+		}
+	}
+}
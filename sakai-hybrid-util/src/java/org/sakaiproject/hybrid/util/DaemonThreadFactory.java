@@ -0,0 +1,52 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads so that background work never keeps the
+ * container from shutting down. Note: Class is thread safe.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+	private final transient String prefix;
+	private final transient AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * @param prefix
+	 *            Thread names will be prefix-1, prefix-2, etc.
+	 * @throws IllegalArgumentException
+	 */
+	public DaemonThreadFactory(final String prefix) {
+		if (prefix == null || "".equals(prefix)) {
+			throw new IllegalArgumentException("prefix == null OR empty");
+		}
+		this.prefix = prefix;
+	}
+
+	/**
+	 * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+	 */
+	public Thread newThread(final Runnable runnable) {
+		final Thread thread = new Thread(runnable, prefix + "-"
+				+ count.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
@@ -0,0 +1,186 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads calls over several equivalent endpoints. Each call goes to the
+ * endpoint with the fewest calls outstanding; ties are broken round robin.
+ * Every endpoint has its own {@link CircuitBreaker}, which acts as a passive
+ * health check: an endpoint whose calls keep failing is ejected while its
+ * breaker is open and re-admitted once a probe call succeeds. Note: Class is
+ * thread safe.
+ */
+public class EndpointBalancer {
+	private final transient Endpoint[] endpoints;
+	private final transient AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * @param endpoints
+	 * @throws IllegalArgumentException
+	 */
+	public EndpointBalancer(final List<Endpoint> endpoints) {
+		if (endpoints == null || endpoints.isEmpty()) {
+			throw new IllegalArgumentException("endpoints == null OR empty");
+		}
+		this.endpoints = endpoints.toArray(new Endpoint[endpoints.size()]);
+	}
+
+	/**
+	 * Choose an endpoint for the next call. The caller must report the outcome
+	 * with {@link #release(Endpoint, boolean)}.
+	 * 
+	 * @return the least loaded endpoint whose circuit breaker allows a call.
+	 * @throws CircuitBreaker.OpenException
+	 *             If every endpoint has been ejected.
+	 */
+	public Endpoint acquire() {
+		return acquire(null);
+	}
+
+	/**
+	 * Like {@link #acquire()} but never chooses excluded; e.g. to retry a
+	 * failed call on another endpoint.
+	 * 
+	 * @param excluded
+	 *            may be null.
+	 * @return the least loaded endpoint other than excluded whose circuit
+	 *         breaker allows a call.
+	 * @throws CircuitBreaker.OpenException
+	 *             If every other endpoint has been ejected.
+	 */
+	public Endpoint acquire(final Endpoint excluded) {
+		final int count = endpoints.length;
+		final int start = (next.getAndIncrement() & Integer.MAX_VALUE) % count;
+		// order candidates by load; a stable sort keeps the round robin order
+		// for ties. The list is short so insertion sort is fine.
+		final Endpoint[] candidates = new Endpoint[count];
+		final int[] loads = new int[count];
+		for (int i = 0; i < count; i++) {
+			final Endpoint endpoint = endpoints[(start + i) % count];
+			final int load = endpoint.outstanding.get();
+			int j = i;
+			while (j > 0 && loads[j - 1] > load) {
+				candidates[j] = candidates[j - 1];
+				loads[j] = loads[j - 1];
+				j--;
+			}
+			candidates[j] = endpoint;
+			loads[j] = load;
+		}
+		for (Endpoint endpoint : candidates) {
+			if (endpoint != excluded
+					&& endpoint.circuitBreaker.allowRequest()) {
+				endpoint.outstanding.incrementAndGet();
+				return endpoint;
+			}
+		}
+		throw new CircuitBreaker.OpenException(
+				"Circuit breaker open for all endpoints: "
+						+ Arrays.toString(endpoints)
+						+ (excluded == null ? "" : "; excluding " + excluded));
+	}
+
+	/**
+	 * Report the outcome of a call started with {@link #acquire()}. Must be
+	 * called exactly once per acquired endpoint.
+	 * 
+	 * @param endpoint
+	 * @param failed
+	 *            true if the endpoint failed, which counts towards ejecting
+	 *            it.
+	 * @throws IllegalArgumentException
+	 */
+	public void release(final Endpoint endpoint, final boolean failed) {
+		if (endpoint == null) {
+			throw new IllegalArgumentException("endpoint == null");
+		}
+		endpoint.outstanding.decrementAndGet();
+		if (failed) {
+			endpoint.circuitBreaker.recordFailure();
+		} else {
+			endpoint.circuitBreaker.recordSuccess();
+		}
+	}
+
+	/**
+	 * @return the endpoints in configured order.
+	 */
+	public List<Endpoint> getEndpoints() {
+		return Collections.unmodifiableList(Arrays.asList(endpoints));
+	}
+
+	/**
+	 * A single endpoint and its health.
+	 */
+	public static final class Endpoint {
+		private final transient String url;
+		private final transient CircuitBreaker circuitBreaker;
+		private final transient AtomicInteger outstanding = new AtomicInteger();
+
+		/**
+		 * @param url
+		 * @param circuitBreaker
+		 *            Tracks the health of this endpoint only.
+		 * @throws IllegalArgumentException
+		 */
+		public Endpoint(final String url, final CircuitBreaker circuitBreaker) {
+			if (url == null || "".equals(url)) {
+				throw new IllegalArgumentException("url == null OR empty");
+			}
+			if (circuitBreaker == null) {
+				throw new IllegalArgumentException("circuitBreaker == null");
+			}
+			this.url = url;
+			this.circuitBreaker = circuitBreaker;
+		}
+
+		/**
+		 * @return the url
+		 */
+		public String getUrl() {
+			return url;
+		}
+
+		/**
+		 * @return the circuitBreaker
+		 */
+		public CircuitBreaker getCircuitBreaker() {
+			return circuitBreaker;
+		}
+
+		/**
+		 * @return number of calls currently in progress.
+		 */
+		public int getOutstanding() {
+			return outstanding.get();
+		}
+
+		/**
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return url;
+		}
+	}
+}
@@ -0,0 +1,336 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, time-to-live cache. Entries are spread over a fixed number of
+ * segments, each of which is a small LRU map guarded by its own lock, so
+ * concurrent callers rarely contend. Note: Class is thread safe.
+ *
+ * @param <K>
+ *            key type
+ * @param <V>
+ *            value type; null values are not allowed.
+ */
+@SuppressWarnings("PMD.LongVariable")
+public class ExpiringCache<K, V> {
+	private static final int SEGMENTS = 16;
+
+	private final transient Segment<K, V>[] segments;
+	private final transient long ttlMillis;
+	private final transient int maxEntries;
+
+	private final transient AtomicLong hits = new AtomicLong();
+	private final transient AtomicLong misses = new AtomicLong();
+	private final transient AtomicLong evictions = new AtomicLong();
+	private final transient AtomicLong expirations = new AtomicLong();
+
+	/**
+	 * @param maxEntries
+	 *            Upper bound on the number of cached entries. Each segment
+	 *            holds its share of the bound, so a segment may evict before
+	 *            the cache as a whole is full.
+	 * @param ttlMillis
+	 *            Time to live for each entry, in milliseconds.
+	 * @throws IllegalArgumentException
+	 */
+	@SuppressWarnings("unchecked")
+	public ExpiringCache(final int maxEntries, final long ttlMillis) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries < 1");
+		}
+		if (ttlMillis < 1) {
+			throw new IllegalArgumentException("ttlMillis < 1");
+		}
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		final int segmentCount = Math.min(SEGMENTS, maxEntries);
+		// spread the remainder so the capacities add up to exactly maxEntries
+		final int perSegment = maxEntries / segmentCount;
+		final int remainder = maxEntries % segmentCount;
+		segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment<K, V>(i < remainder ? perSegment + 1
+					: perSegment, this);
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the cached value or null if missing or expired.
+	 * @throws IllegalArgumentException
+	 */
+	public V get(final K key) {
+		final Entry<V> entry = getEntry(key);
+		return entry == null ? null : entry.value;
+	}
+
+	/**
+	 * @param key
+	 * @return the cached entry or null if missing or expired.
+	 * @throws IllegalArgumentException
+	 */
+	public Entry<V> getEntry(final K key) {
+		return getEntry(key, ttlMillis);
+	}
+
+	/**
+	 * Like {@link #getEntry(Object)}, for callers that keep entries past the
+	 * age at which they are normally used, e.g. as a fallback. An entry older
+	 * than freshMillis is still returned, but counted as a miss.
+	 * 
+	 * @param key
+	 * @param freshMillis
+	 *            Age below which a returned entry counts as a hit.
+	 * @return the cached entry or null if missing or expired.
+	 * @throws IllegalArgumentException
+	 */
+	public Entry<V> getEntry(final K key, final long freshMillis) {
+		if (key == null) {
+			throw new IllegalArgumentException("key == null");
+		}
+		final Segment<K, V> segment = segmentFor(key);
+		Entry<V> entry;
+		synchronized (segment) {
+			entry = segment.get(key);
+			if (entry != null && isExpired(entry)) {
+				segment.remove(key);
+				expirations.incrementAndGet();
+				onEviction(key, entry.value);
+				entry = null;
+			}
+		}
+		if (entry == null
+				|| currentTimeMillis() - entry.created >= freshMillis) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return entry;
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * @throws IllegalArgumentException
+	 */
+	public void put(final K key, final V value) {
+		if (key == null) {
+			throw new IllegalArgumentException("key == null");
+		}
+		if (value == null) {
+			throw new IllegalArgumentException("value == null");
+		}
+		final Segment<K, V> segment = segmentFor(key);
+		final Entry<V> entry = new Entry<V>(value, currentTimeMillis());
+		synchronized (segment) {
+			segment.put(key, entry);
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the removed value or null if not present.
+	 * @throws IllegalArgumentException
+	 */
+	public V remove(final K key) {
+		if (key == null) {
+			throw new IllegalArgumentException("key == null");
+		}
+		final Segment<K, V> segment = segmentFor(key);
+		final Entry<V> entry;
+		synchronized (segment) {
+			entry = segment.remove(key);
+		}
+		return entry == null ? null : entry.value;
+	}
+
+	/**
+	 * Remove all entries. Statistics are not reset.
+	 */
+	public void clear() {
+		for (Segment<K, V> segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return number of entries currently held; may include expired entries
+	 *         that have not been looked up since they expired.
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment<K, V> segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the configured maximum number of entries.
+	 */
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * @return the configured time to live in milliseconds.
+	 */
+	public long getTtlMillis() {
+		return ttlMillis;
+	}
+
+	/**
+	 * @return number of lookups that found a live entry, not counting those
+	 *         older than the age given to {@link #getEntry(Object, long)}.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of lookups that found no live entry, or only one older
+	 *         than the age given to {@link #getEntry(Object, long)}.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of entries dropped to stay within maxEntries.
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return number of entries dropped because their ttl had passed.
+	 */
+	public long getExpirationCount() {
+		return expirations.get();
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ExpiringCache[size=" + size() + ", maxEntries=" + maxEntries
+				+ ", ttlMillis=" + ttlMillis + ", hits=" + getHitCount()
+				+ ", misses=" + getMissCount() + ", evictions="
+				+ getEvictionCount() + ", expirations="
+				+ getExpirationCount() + "]";
+	}
+
+	/**
+	 * Called when an entry is dropped to stay within maxEntries or because
+	 * its ttl had passed; not for {@link #remove(Object)}, {@link #clear()}
+	 * or a put that replaces the value. Runs while the entry's segment is
+	 * locked, so it must be quick and must not call back into this cache.
+	 * Does nothing by default.
+	 * 
+	 * @param key
+	 * @param value
+	 */
+	protected void onEviction(final K key, final V value) {
+		// nothing to do by default
+	}
+
+	/**
+	 * Overridable for unit testing.
+	 *
+	 * @return the current time in milliseconds.
+	 */
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	private boolean isExpired(final Entry<V> entry) {
+		return currentTimeMillis() - entry.created >= ttlMillis;
+	}
+
+	private Segment<K, V> segmentFor(final K key) {
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return segments[(hash & Integer.MAX_VALUE) % segments.length];
+	}
+
+	/**
+	 * An immutable cached value together with the time it was cached.
+	 *
+	 * @param <V>
+	 */
+	public static final class Entry<V> {
+		private final transient V value;
+		private final transient long created;
+
+		protected Entry(final V value, final long created) {
+			this.value = value;
+			this.created = created;
+		}
+
+		/**
+		 * @return the cached value
+		 */
+		public V getValue() {
+			return value;
+		}
+
+		/**
+		 * @return time in milliseconds when the value was cached.
+		 */
+		public long getCreated() {
+			return created;
+		}
+	}
+
+	/**
+	 * Access ordered map which drops its least recently used entry once full.
+	 * Callers must synchronize on the segment.
+	 */
+	private static final class Segment<K, V> extends
+			LinkedHashMap<K, Entry<V>> {
+		private static final long serialVersionUID = 1L;
+		private final transient int capacity;
+		private final transient ExpiringCache<K, V> owner;
+
+		Segment(final int capacity, final ExpiringCache<K, V> owner) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+			this.owner = owner;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<K, Entry<V>> eldest) {
+			final boolean remove = size() > capacity;
+			if (remove) {
+				owner.evictions.incrementAndGet();
+				owner.onEviction(eldest.getKey(), eldest.getValue().value);
+			}
+			return remove;
+		}
+	}
+}
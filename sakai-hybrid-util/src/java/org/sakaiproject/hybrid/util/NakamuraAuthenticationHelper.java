@@ -17,21 +17,51 @@
  */
 package org.sakaiproject.hybrid.util;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 
-import net.sf.json.JSONObject;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.params.ClientPNames;
 import org.apache.http.impl.client.BasicResponseHandler;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.sakaiproject.component.api.ComponentManager;
 import org.sakaiproject.component.api.ServerConfigurationService;
 import org.sakaiproject.thread_local.api.ThreadLocalManager;
@@ -56,6 +86,194 @@ public class NakamuraAuthenticationHelper {
 	 */
 	public static final String CONFIG_COOKIE_NAME = CONFIG_PREFIX
 			+ ".cookieName";
+	/**
+	 * sakai.properties Validate signed cookies locally instead of calling
+	 * Nakamura. Disabled by default.
+	 * 
+	 * @see #validateLocally(String)
+	 */
+	public static final String CONFIG_LOCAL_VALIDATION = CONFIG_PREFIX
+			+ ".localValidation";
+	/**
+	 * sakai.properties The key used to sign cookies that are validated
+	 * locally. When not set, a key is derived from the x-sakai-token shared
+	 * secret for the hostname; see {@link #COOKIE_KEY_LABEL}.
+	 */
+	public static final String CONFIG_COOKIE_SECRET = CONFIG_PREFIX
+			+ ".cookieSecret";
+	/**
+	 * The derived cookie signing key is the Base64 HMAC of this label keyed
+	 * with the x-sakai-token shared secret, so that a signature made for one
+	 * purpose is never valid for the other.
+	 */
+	public static final String COOKIE_KEY_LABEL = "sakai-hybrid-signed-cookie";
+	/**
+	 * Separates principal, expiry and signature in a signed cookie.
+	 */
+	public static final char SIGNED_COOKIE_SEPARATOR = '~';
+	/**
+	 * sakai.properties The maximum number of pooled connections to Nakamura.
+	 */
+	public static final String CONFIG_MAX_CONNECTIONS_TOTAL = CONFIG_PREFIX
+			+ ".maxConnectionsTotal";
+	/**
+	 * sakai.properties The maximum number of pooled connections per Nakamura
+	 * host.
+	 */
+	public static final String CONFIG_MAX_CONNECTIONS_PER_ROUTE = CONFIG_PREFIX
+			+ ".maxConnectionsPerRoute";
+	/**
+	 * sakai.properties Seconds a pooled connection may sit idle before it is
+	 * closed.
+	 */
+	public static final String CONFIG_IDLE_CONNECTION_TIMEOUT = CONFIG_PREFIX
+			+ ".idleConnectionTimeout";
+	/**
+	 * sakai.properties Seconds to keep a connection alive when Nakamura does
+	 * not send a Keep-Alive header.
+	 */
+	public static final String CONFIG_KEEP_ALIVE = CONFIG_PREFIX
+			+ ".keepAlive";
+	/**
+	 * sakai.properties The maximum number of AuthInfo entries cached across
+	 * requests.
+	 */
+	public static final String CONFIG_CACHE_MAX_ENTRIES = CONFIG_PREFIX
+			+ ".cache.maxEntries";
+	/**
+	 * sakai.properties Seconds an AuthInfo stays cached across requests.
+	 */
+	public static final String CONFIG_CACHE_TTL = CONFIG_PREFIX + ".cache.ttl";
+	/**
+	 * sakai.properties The maximum number of rejected secrets remembered.
+	 * Kept separate from {@link #CONFIG_CACHE_MAX_ENTRIES} so a flood of bogus
+	 * cookies cannot push valid entries out.
+	 */
+	public static final String CONFIG_NEGATIVE_CACHE_MAX_ENTRIES = CONFIG_PREFIX
+			+ ".negativeCache.maxEntries";
+	/**
+	 * sakai.properties Seconds a rejected secret is remembered.
+	 */
+	public static final String CONFIG_NEGATIVE_CACHE_TTL = CONFIG_PREFIX
+			+ ".negativeCache.ttl";
+	/**
+	 * sakai.properties Milliseconds to wait for a connection to Nakamura to be
+	 * established.
+	 */
+	public static final String CONFIG_CONNECT_TIMEOUT = CONFIG_PREFIX
+			+ ".connectTimeout";
+	/**
+	 * sakai.properties Milliseconds to wait for data from Nakamura once
+	 * connected.
+	 */
+	public static final String CONFIG_READ_TIMEOUT = CONFIG_PREFIX
+			+ ".readTimeout";
+	/**
+	 * sakai.properties Milliseconds to wait for a free pooled connection.
+	 */
+	public static final String CONFIG_POOL_TIMEOUT = CONFIG_PREFIX
+			+ ".poolTimeout";
+	/**
+	 * sakai.properties Seconds after which a cached AuthInfo is still served
+	 * but refreshed from Nakamura in the background. Values >=
+	 * {@link #CONFIG_CACHE_TTL} disable refresh-ahead.
+	 */
+	public static final String CONFIG_CACHE_REFRESH_AFTER = CONFIG_PREFIX
+			+ ".cache.refreshAfter";
+	/**
+	 * sakai.properties Number of threads used for background refreshes.
+	 */
+	public static final String CONFIG_CACHE_REFRESH_THREADS = CONFIG_PREFIX
+			+ ".cache.refreshThreads";
+	/**
+	 * sakai.properties Seconds past {@link #CONFIG_CACHE_TTL} that a cached
+	 * AuthInfo may still be served while the circuit breaker is open.
+	 */
+	public static final String CONFIG_CACHE_STALE_TTL = CONFIG_PREFIX
+			+ ".cache.staleTtl";
+	/**
+	 * sakai.properties Number of recent Nakamura calls used to compute the
+	 * failure rate.
+	 */
+	public static final String CONFIG_CIRCUIT_BREAKER_WINDOW = CONFIG_PREFIX
+			+ ".circuitBreaker.windowSize";
+	/**
+	 * sakai.properties Percentage of failed Nakamura calls that opens the
+	 * circuit breaker.
+	 */
+	public static final String CONFIG_CIRCUIT_BREAKER_FAILURE_RATE = CONFIG_PREFIX
+			+ ".circuitBreaker.failureRateThreshold";
+	/**
+	 * sakai.properties Seconds the circuit breaker stays open before a probe
+	 * call is allowed through.
+	 */
+	public static final String CONFIG_CIRCUIT_BREAKER_OPEN_DURATION = CONFIG_PREFIX
+			+ ".circuitBreaker.openDuration";
+	/**
+	 * sakai.properties Number of threads used by
+	 * {@link #getPrincipalLoggedIntoNakamuraAsync(HttpServletRequest)}.
+	 */
+	public static final String CONFIG_ASYNC_THREADS = CONFIG_PREFIX
+			+ ".async.threads";
+	/**
+	 * sakai.properties Number of asynchronous lookups that may wait for a
+	 * thread. Once full, lookups run on the calling thread.
+	 */
+	public static final String CONFIG_ASYNC_QUEUE_SIZE = CONFIG_PREFIX
+			+ ".async.queueSize";
+	/**
+	 * Default for {@link #CONFIG_CACHE_MAX_ENTRIES}
+	 */
+	public static final int DEFAULT_CACHE_MAX_ENTRIES = 10000;
+	/**
+	 * Default for {@link #CONFIG_CACHE_TTL} in seconds.
+	 */
+	public static final int DEFAULT_CACHE_TTL = 60;
+	/**
+	 * Default for {@link #CONFIG_NEGATIVE_CACHE_MAX_ENTRIES}
+	 */
+	public static final int DEFAULT_NEGATIVE_CACHE_MAX_ENTRIES = 10000;
+	/**
+	 * Default for {@link #CONFIG_NEGATIVE_CACHE_TTL} in seconds.
+	 */
+	public static final int DEFAULT_NEGATIVE_CACHE_TTL = 15;
+	/**
+	 * Default for {@link #CONFIG_CACHE_REFRESH_AFTER} in seconds.
+	 */
+	public static final int DEFAULT_CACHE_REFRESH_AFTER = 45;
+	/**
+	 * Default for {@link #CONFIG_CACHE_REFRESH_THREADS}
+	 */
+	public static final int DEFAULT_CACHE_REFRESH_THREADS = 2;
+	/**
+	 * Background refreshes that may wait for a thread; further refreshes are
+	 * skipped until the queue drains.
+	 */
+	private static final int REFRESH_QUEUE_SIZE = 100;
+	/**
+	 * Default for {@link #CONFIG_CACHE_STALE_TTL} in seconds.
+	 */
+	public static final int DEFAULT_CACHE_STALE_TTL = 300;
+	/**
+	 * Default for {@link #CONFIG_CIRCUIT_BREAKER_WINDOW}
+	 */
+	public static final int DEFAULT_CIRCUIT_BREAKER_WINDOW = 20;
+	/**
+	 * Default for {@link #CONFIG_CIRCUIT_BREAKER_FAILURE_RATE}
+	 */
+	public static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE = 50;
+	/**
+	 * Default for {@link #CONFIG_CIRCUIT_BREAKER_OPEN_DURATION} in seconds.
+	 */
+	public static final int DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION = 30;
+	/**
+	 * Default for {@link #CONFIG_ASYNC_THREADS}
+	 */
+	public static final int DEFAULT_ASYNC_THREADS = 8;
+	/**
+	 * Default for {@link #CONFIG_ASYNC_QUEUE_SIZE}
+	 */
+	public static final int DEFAULT_ASYNC_QUEUE_SIZE = 1000;
 
 	private static final Log LOG = LogFactory
 			.getLog(NakamuraAuthenticationHelper.class);
@@ -67,6 +285,8 @@ public class NakamuraAuthenticationHelper {
 	protected static final String THREAD_LOCAL_CACHE_KEY = NakamuraAuthenticationHelper.class
 			.getName() + ".AuthInfo.cache";
 
+	private static final ResponseHandler<AuthInfo> AUTH_INFO_RESPONSE_HANDLER = new AuthInfoResponseHandler();
+
 	/**
 	 * The anonymous nakamura principal name. A good default is provided. Must
 	 * be declared static to allow access from {@link AuthInfo} but must also be
@@ -103,9 +323,103 @@ public class NakamuraAuthenticationHelper {
 	protected transient String hostname;
 
 	/**
-	 * A simple abstraction to allow for proper unit testing
+	 * true if signed cookies are validated locally.
+	 * 
+	 * @see #CONFIG_LOCAL_VALIDATION
+	 */
+	protected transient boolean localValidation;
+
+	/**
+	 * The configured cookie signing key; null to derive one.
+	 * 
+	 * @see #CONFIG_COOKIE_SECRET
+	 */
+	protected transient String cookieSecret;
+
+	/**
+	 * Last key derived by {@link #getCookieSigningKey()}, with the shared
+	 * secret it was derived from.
+	 */
+	private transient volatile DerivedKey derivedCookieKey;
+
+	/**
+	 * A simple abstraction to allow for proper unit testing. Defaults to a
+	 * long-lived {@link PooledHttpClientProvider}.
+	 */
+	protected transient HttpClientProvider httpClientProvider;
+
+	/**
+	 * Caches AuthInfo across requests keyed by cookie secret. Sits behind the
+	 * ThreadLocal cache. Entries are retained for ttl + staleTtl, but only
+	 * used normally while younger than {@link #cacheTtlMillis}; lookups that
+	 * find an older entry count as misses.
+	 * 
+	 * @see #CONFIG_CACHE_MAX_ENTRIES
+	 * @see #CONFIG_CACHE_TTL
+	 * @see #CONFIG_CACHE_STALE_TTL
+	 */
+	protected transient ExpiringCache<String, AuthInfo> authInfoCache;
+
+	/**
+	 * Age in milliseconds after which a cached AuthInfo is no longer used
+	 * unless Nakamura is unavailable.
+	 * 
+	 * @see #CONFIG_CACHE_TTL
+	 */
+	protected transient long cacheTtlMillis;
+
+	/**
+	 * Age in milliseconds after which a cached AuthInfo is refreshed in the
+	 * background while still being served.
+	 * 
+	 * @see #CONFIG_CACHE_REFRESH_AFTER
+	 */
+	protected transient long refreshAfterMillis;
+
+	/**
+	 * Runs background refreshes.
+	 * 
+	 * @see #CONFIG_CACHE_REFRESH_THREADS
+	 */
+	protected transient ThreadPoolExecutor refreshExecutor;
+
+	/**
+	 * Secrets with a background refresh queued or running; used to coalesce
+	 * refreshes per secret.
+	 */
+	private final transient ConcurrentMap<String, Boolean> refreshing = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * Spreads validations over the Nakamura nodes in validateUrl. Each node has
+	 * its own circuit breaker to guard against it being slow or failing.
+	 * 
+	 * @see #CONFIG_CIRCUIT_BREAKER_WINDOW
+	 * @see #CONFIG_CIRCUIT_BREAKER_FAILURE_RATE
+	 * @see #CONFIG_CIRCUIT_BREAKER_OPEN_DURATION
+	 */
+	protected transient EndpointBalancer endpoints;
+
+	/**
+	 * Secrets that Nakamura recently rejected (404 or 400 response).
+	 * 
+	 * @see #CONFIG_NEGATIVE_CACHE_MAX_ENTRIES
+	 * @see #CONFIG_NEGATIVE_CACHE_TTL
+	 */
+	protected transient ExpiringCache<String, Boolean> rejectedSecretCache;
+
+	/**
+	 * Coalesces concurrent validations of the same secret; e.g. the parallel
+	 * requests fired by a single portal page.
+	 */
+	protected transient SingleFlight<String, AuthInfo> validations = new SingleFlight<String, AuthInfo>();
+
+	/**
+	 * Bounded pool that runs asynchronous lookups.
+	 * 
+	 * @see #CONFIG_ASYNC_THREADS
+	 * @see #CONFIG_ASYNC_QUEUE_SIZE
 	 */
-	protected transient HttpClientProvider httpClientProvider = new DefaultHttpClientProvider();
+	protected transient ThreadPoolExecutor asyncExecutor;
 
 	// dependencies
 	protected transient ThreadLocalManager threadLocalManager;
@@ -117,7 +431,8 @@ public class NakamuraAuthenticationHelper {
 	 * 
 	 * @param validateUrl
 	 *            The Nakamura REST end-point we will use to validate the
-	 *            cookie.
+	 *            cookie. A comma separated list of end-points spreads the
+	 *            load across several Nakamura nodes.
 	 * @param principal
 	 *            The principal that will be used when connecting to Nakamura
 	 *            REST end-point. Must have permissions to read
@@ -163,7 +478,121 @@ public class NakamuraAuthenticationHelper {
 		cookieName = serverConfigurationService.getString(CONFIG_COOKIE_NAME,
 				"SAKAI-TRACKING");
 
+		localValidation = serverConfigurationService.getBoolean(
+				CONFIG_LOCAL_VALIDATION, false);
+		final String configuredCookieSecret = serverConfigurationService
+				.getString(CONFIG_COOKIE_SECRET, null);
+		if (configuredCookieSecret != null
+				&& !"".equals(configuredCookieSecret)) {
+			cookieSecret = configuredCookieSecret;
+		}
 		xSakaiToken = new XSakaiToken(componentManager);
+		final PooledHttpClientProvider pooledHttpClientProvider = new PooledHttpClientProvider(
+				getPositiveInt(CONFIG_MAX_CONNECTIONS_TOTAL,
+						PooledHttpClientProvider.DEFAULT_MAX_TOTAL),
+				getPositiveInt(CONFIG_MAX_CONNECTIONS_PER_ROUTE,
+						PooledHttpClientProvider.DEFAULT_MAX_PER_ROUTE),
+				getPositiveInt(CONFIG_IDLE_CONNECTION_TIMEOUT,
+						PooledHttpClientProvider.DEFAULT_IDLE_TIMEOUT),
+				getPositiveInt(CONFIG_KEEP_ALIVE,
+						PooledHttpClientProvider.DEFAULT_KEEP_ALIVE));
+		pooledHttpClientProvider.setTimeouts(getPositiveInt(
+				CONFIG_CONNECT_TIMEOUT,
+				PooledHttpClientProvider.DEFAULT_CONNECT_TIMEOUT),
+				getPositiveInt(CONFIG_READ_TIMEOUT,
+						PooledHttpClientProvider.DEFAULT_READ_TIMEOUT),
+				getPositiveInt(CONFIG_POOL_TIMEOUT,
+						PooledHttpClientProvider.DEFAULT_POOL_TIMEOUT));
+		httpClientProvider = pooledHttpClientProvider;
+		cacheTtlMillis = TimeUnit.SECONDS.toMillis(getPositiveInt(
+				CONFIG_CACHE_TTL, DEFAULT_CACHE_TTL));
+		refreshAfterMillis = TimeUnit.SECONDS.toMillis(getPositiveInt(
+				CONFIG_CACHE_REFRESH_AFTER, DEFAULT_CACHE_REFRESH_AFTER));
+		final int refreshThreads = getPositiveInt(
+				CONFIG_CACHE_REFRESH_THREADS, DEFAULT_CACHE_REFRESH_THREADS);
+		refreshExecutor = new ThreadPoolExecutor(refreshThreads,
+				refreshThreads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(REFRESH_QUEUE_SIZE),
+				new DaemonThreadFactory("NakamuraAuthenticationHelper-refresh"));
+		authInfoCache = new ExpiringCache<String, AuthInfo>(getPositiveInt(
+				CONFIG_CACHE_MAX_ENTRIES, DEFAULT_CACHE_MAX_ENTRIES),
+				cacheTtlMillis
+						+ TimeUnit.SECONDS.toMillis(getPositiveInt(
+								CONFIG_CACHE_STALE_TTL,
+								DEFAULT_CACHE_STALE_TTL)));
+		final List<EndpointBalancer.Endpoint> endpointList = new ArrayList<EndpointBalancer.Endpoint>();
+		for (String endpoint : validateUrl.split(",")) {
+			final String url = endpoint.trim();
+			if (!"".equals(url)) {
+				endpointList.add(new EndpointBalancer.Endpoint(url,
+						new CircuitBreaker("Nakamura " + url, getPositiveInt(
+								CONFIG_CIRCUIT_BREAKER_WINDOW,
+								DEFAULT_CIRCUIT_BREAKER_WINDOW), Math.min(100,
+								getPositiveInt(
+										CONFIG_CIRCUIT_BREAKER_FAILURE_RATE,
+										DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE)),
+								TimeUnit.SECONDS.toMillis(getPositiveInt(
+										CONFIG_CIRCUIT_BREAKER_OPEN_DURATION,
+										DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION)))));
+			}
+		}
+		if (endpointList.isEmpty()) {
+			throw new IllegalArgumentException("validateUrl has no end-points");
+		}
+		endpoints = new EndpointBalancer(endpointList);
+		rejectedSecretCache = new ExpiringCache<String, Boolean>(
+				getPositiveInt(CONFIG_NEGATIVE_CACHE_MAX_ENTRIES,
+						DEFAULT_NEGATIVE_CACHE_MAX_ENTRIES),
+				TimeUnit.SECONDS.toMillis(getPositiveInt(
+						CONFIG_NEGATIVE_CACHE_TTL, DEFAULT_NEGATIVE_CACHE_TTL)));
+		final int asyncThreads = getPositiveInt(CONFIG_ASYNC_THREADS,
+				DEFAULT_ASYNC_THREADS);
+		asyncExecutor = new ThreadPoolExecutor(asyncThreads, asyncThreads, 0L,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						getPositiveInt(CONFIG_ASYNC_QUEUE_SIZE,
+								DEFAULT_ASYNC_QUEUE_SIZE)),
+				new DaemonThreadFactory("NakamuraAuthenticationHelper-async"),
+				new RejectedExecutionHandler() {
+					public void rejectedExecution(final Runnable task,
+							final ThreadPoolExecutor executor) {
+						if (executor.isShutdown()) {
+							throw new RejectedExecutionException(
+									"NakamuraAuthenticationHelper destroyed");
+						}
+						// saturated; run in the caller like CallerRunsPolicy
+						task.run();
+					}
+				});
+	}
+
+	/**
+	 * Releases any pooled connections held by this helper. Should be called
+	 * when the owning component is destroyed.
+	 */
+	public void destroy() {
+		LOG.debug("destroy()");
+		for (Runnable queued : asyncExecutor.shutdownNow()) {
+			// never run now; fail them so that get() does not hang
+			if (queued instanceof RequestScopedFuture) {
+				((RequestScopedFuture) queued).fail(new IllegalStateException(
+						"NakamuraAuthenticationHelper destroyed"));
+			}
+		}
+		refreshExecutor.shutdownNow();
+		httpClientProvider.shutdown();
+	}
+
+	/**
+	 * Reads an int from sakai.properties; non-positive values fall back to
+	 * the default.
+	 * 
+	 * @param key
+	 * @param defaultValue
+	 * @return the configured value or defaultValue
+	 */
+	protected int getPositiveInt(final String key, final int defaultValue) {
+		final int value = serverConfigurationService.getInt(key, defaultValue);
+		return value > 0 ? value : defaultValue;
 	}
 
 	/**
@@ -189,31 +618,17 @@ public class NakamuraAuthenticationHelper {
 		@SuppressWarnings("PMD.DataflowAnomalyAnalysis")
 		AuthInfo authInfo = null;
 		final String secret = getSecret(request);
-		if (secret != null) {
-			final HttpClient httpClient = httpClientProvider.getHttpClient();
-			try {
-				final URI uri = new URI(validateUrl + secret);
-				final HttpGet httpget = new HttpGet(uri);
-				// authenticate to Nakamura using x-sakai-token mechanism
-				final String token = xSakaiToken.createToken(hostname,
-						principal);
-				httpget.addHeader(XSakaiToken.X_SAKAI_TOKEN_HEADER, token);
-				//
-				final ResponseHandler<String> responseHandler = new BasicResponseHandler();
-				final String responseBody = httpClient.execute(httpget,
-						responseHandler);
-				authInfo = new AuthInfo(responseBody);
-			} catch (HttpResponseException e) {
-				// usually a 404 error - could not find cookie / not valid
-				if (LOG.isDebugEnabled()) {
-					LOG.debug("HttpResponseException: " + e.getMessage() + ": "
-							+ e.getStatusCode() + ": " + validateUrl + secret);
-				}
-			} catch (Exception e) {
-				LOG.error(e.getMessage(), e);
-				throw new IllegalStateException(e);
-			} finally {
-				httpClient.getConnectionManager().shutdown();
+		if (secret != null && localValidation && isSignedCookie(secret)) {
+			authInfo = validateLocally(secret);
+		} else if (secret != null) {
+			final ExpiringCache.Entry<AuthInfo> entry = authInfoCache
+					.getEntry(secret, cacheTtlMillis);
+			if (isFresh(entry)) {
+				LOG.debug("authInfoCache hit!");
+				authInfo = entry.getValue();
+				refreshIfAging(secret, entry);
+			} else if (!isRejected(secret)) {
+				authInfo = loadAuthInfo(secret, entry);
 			}
 		}
 
@@ -223,6 +638,413 @@ public class NakamuraAuthenticationHelper {
 		return authInfo;
 	}
 
+	/**
+	 * Asynchronous variant of
+	 * {@link #getPrincipalLoggedIntoNakamura(HttpServletRequest)}. Cached
+	 * results are returned as an already completed {@link Future}; otherwise
+	 * the call to Nakamura runs on a bounded pool so the caller can overlap it
+	 * with other work. When {@link Future#get()} is called on the thread that
+	 * started the lookup, the result is also cached in ThreadLocal for the
+	 * rest of the request.
+	 * 
+	 * @param request
+	 *            Only read on the calling thread.
+	 * @return Future whose result is null if user cannot be authenticated.
+	 *         For all unexpected cause Exceptions its get() methods throw an
+	 *         ExecutionException wrapping an IllegalStateException.
+	 * @throws IllegalArgumentException
+	 */
+	public Future<AuthInfo> getPrincipalLoggedIntoNakamuraAsync(
+			final HttpServletRequest request) {
+		LOG.debug("getPrincipalLoggedIntoNakamuraAsync(HttpServletRequest request)");
+		if (request == null) {
+			throw new IllegalArgumentException("HttpServletRequest == null");
+		}
+		final Object cache = threadLocalManager.get(THREAD_LOCAL_CACHE_KEY);
+		if (cache instanceof AuthInfo) {
+			LOG.debug("cache hit!");
+			return completedFuture((AuthInfo) cache);
+		}
+		final String secret = getSecret(request);
+		// same order of checks as the synchronous lookup
+		if (secret == null) {
+			return completedFuture(null);
+		}
+		if (localValidation && isSignedCookie(secret)) {
+			return completedFuture(validateLocally(secret));
+		}
+		final ExpiringCache.Entry<AuthInfo> entry = authInfoCache
+				.getEntry(secret, cacheTtlMillis);
+		if (isFresh(entry)) {
+			LOG.debug("authInfoCache hit!");
+			refreshIfAging(secret, entry);
+			return completedFuture(entry.getValue());
+		}
+		if (isRejected(secret)) {
+			return completedFuture(null);
+		}
+		final RequestScopedFuture future = new RequestScopedFuture(
+				new Callable<AuthInfo>() {
+					public AuthInfo call() {
+						return loadAuthInfo(secret, entry);
+					}
+				});
+		try {
+			asyncExecutor.execute(future);
+		} catch (RejectedExecutionException e) {
+			future.fail(new IllegalStateException(e));
+		}
+		return future;
+	}
+
+	/**
+	 * @param secret
+	 * @return true if secret has the shape of a signed cookie:
+	 *         <code>principal~expires~signature</code>. The signature itself
+	 *         is not checked.
+	 */
+	protected boolean isSignedCookie(final String secret) {
+		final int last = secret.lastIndexOf(SIGNED_COOKIE_SEPARATOR);
+		final int expires = secret.lastIndexOf(SIGNED_COOKIE_SEPARATOR,
+				last - 1);
+		if (expires < 1 || last == secret.length() - 1) {
+			return false;
+		}
+		for (int i = expires + 1; i < last; i++) {
+			if (!Character.isDigit(secret.charAt(i))) {
+				return false;
+			}
+		}
+		return last > expires + 1;
+	}
+
+	/**
+	 * Validate a signed cookie without calling Nakamura. The signature is the
+	 * URL safe HMAC of <code>principal~expires</code> keyed with
+	 * {@link #getCookieSigningKey()}; expires is in milliseconds since the
+	 * epoch. Only the principal is known, so the name and email fields of the
+	 * returned AuthInfo are empty.
+	 * 
+	 * @param secret
+	 *            A value for which {@link #isSignedCookie(String)} is true.
+	 * @return null if the signature does not match or the cookie has
+	 *         expired.
+	 * @throws IllegalStateException
+	 *             If there is no cookie signing key.
+	 */
+	protected AuthInfo validateLocally(final String secret) {
+		LOG.debug("validateLocally(String secret)");
+		final int last = secret.lastIndexOf(SIGNED_COOKIE_SEPARATOR);
+		final int expires = secret.lastIndexOf(SIGNED_COOKIE_SEPARATOR,
+				last - 1);
+		final long expiresMillis;
+		try {
+			expiresMillis = Long.parseLong(secret.substring(expires + 1, last));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		if (expiresMillis <= System.currentTimeMillis()) {
+			LOG.debug("signed cookie has expired");
+			return null;
+		}
+		try {
+			// constant time; a String compare would leak how much matched
+			if (!xSakaiToken.signature.verifyRFC2104HMAC(secret, 0, last,
+					getCookieSigningKey(), secret, last + 1, secret.length(),
+					true)) {
+				LOG.debug("signed cookie has a bad signature");
+				return null;
+			}
+		} catch (InvalidKeyException e) {
+			throw new IllegalStateException(e);
+		}
+		return new AuthInfo(secret.substring(0, expires), null, null, null);
+	}
+
+	/**
+	 * @return {@link #cookieSecret} if configured, otherwise a key derived
+	 *         from the shared secret for {@link #hostname}.
+	 * @throws IllegalStateException
+	 *             If neither is configured.
+	 */
+	protected String getCookieSigningKey() {
+		if (cookieSecret != null) {
+			return cookieSecret;
+		}
+		final String sharedSecret = xSakaiToken.getSharedSecret(hostname);
+		if (sharedSecret == null || "".equals(sharedSecret)) {
+			throw new IllegalStateException("No shared secret for: "
+					+ hostname);
+		}
+		final DerivedKey derived = derivedCookieKey;
+		if (derived != null && derived.sharedSecret.equals(sharedSecret)) {
+			return derived.key;
+		}
+		try {
+			final String key = xSakaiToken.signature.calculateRFC2104HMAC(
+					COOKIE_KEY_LABEL, sharedSecret);
+			derivedCookieKey = new DerivedKey(sharedSecret, key);
+			return key;
+		} catch (InvalidKeyException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param secret
+	 * @return true if Nakamura recently rejected the secret.
+	 */
+	protected boolean isRejected(final String secret) {
+		final boolean rejected = rejectedSecretCache.get(secret) != null;
+		if (rejected) {
+			LOG.debug("rejectedSecretCache hit!");
+		}
+		return rejected;
+	}
+
+	/**
+	 * @param entry
+	 *            may be null.
+	 * @return true if entry is younger than {@link #cacheTtlMillis}.
+	 */
+	protected boolean isFresh(final ExpiringCache.Entry<AuthInfo> entry) {
+		return entry != null
+				&& System.currentTimeMillis() - entry.getCreated() < cacheTtlMillis;
+	}
+
+	/**
+	 * Refresh-ahead: once a fresh entry is older than
+	 * {@link #refreshAfterMillis}, queue one background reload for its secret
+	 * so that active users rarely wait on Nakamura. If the pool is saturated
+	 * the refresh is skipped; the entry will be reloaded synchronously once it
+	 * expires.
+	 * 
+	 * @param secret
+	 * @param entry
+	 *            A fresh cache entry.
+	 */
+	protected void refreshIfAging(final String secret,
+			final ExpiringCache.Entry<AuthInfo> entry) {
+		if (refreshAfterMillis >= cacheTtlMillis
+				|| System.currentTimeMillis() - entry.getCreated() < refreshAfterMillis) {
+			return;
+		}
+		if (refreshing.putIfAbsent(secret, Boolean.TRUE) != null) {
+			// already queued or running
+			return;
+		}
+		try {
+			refreshExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						loadAuthInfo(secret, entry);
+					} catch (RuntimeException e) {
+						LOG.warn("Background refresh of AuthInfo failed: "
+								+ e.getMessage());
+					} finally {
+						refreshing.remove(secret);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			refreshing.remove(secret);
+			LOG.debug("Background refresh skipped; pool saturated");
+		}
+	}
+
+	private FutureTask<AuthInfo> completedFuture(final AuthInfo authInfo) {
+		final FutureTask<AuthInfo> future = new RequestScopedFuture(
+				new Callable<AuthInfo>() {
+					public AuthInfo call() {
+						return authInfo;
+					}
+				});
+		future.run();
+		return future;
+	}
+
+	/**
+	 * Validates the secret with Nakamura and caches a successful result.
+	 * Concurrent calls for the same secret share a single remote call. The
+	 * cached entry is only dropped when Nakamura rejects the secret. While the
+	 * circuit breaker is open, or when Nakamura fails to answer, the stale
+	 * entry, if any, is served instead.
+	 * 
+	 * @param secret
+	 * @param staleEntry
+	 *            Expired cache entry for secret; may be null.
+	 * @return null if Nakamura did not accept the secret, or failed to answer
+	 *         and there is no stale entry.
+	 * @throws IllegalStateException
+	 *             For all unexpected cause Exceptions, or when the circuit
+	 *             breaker is open and there is no stale entry.
+	 */
+	protected AuthInfo loadAuthInfo(final String secret,
+			final ExpiringCache.Entry<AuthInfo> staleEntry) {
+		LOG.debug("loadAuthInfo(String secret, Entry<AuthInfo> staleEntry)");
+		return validations.execute(secret, new Callable<AuthInfo>() {
+			public AuthInfo call() {
+				try {
+					final AuthInfo authInfo = fetchAuthInfo(secret);
+					if (authInfo == null) {
+						// rejected; e.g. logged out since it was cached
+						authInfoCache.remove(secret);
+					} else {
+						authInfoCache.put(secret, authInfo);
+					}
+					return authInfo;
+				} catch (UnavailableException e) {
+					// keep the cached entry; a transient failure must not
+					// log users out
+					if (staleEntry == null) {
+						return null;
+					}
+					LOG.debug("Nakamura unavailable; serving stale AuthInfo");
+					return staleEntry.getValue();
+				} catch (CircuitBreaker.OpenException e) {
+					if (staleEntry == null) {
+						throw e;
+					}
+					LOG.debug("Circuit breaker open; serving stale AuthInfo");
+					return staleEntry.getValue();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Performs the remote call to Nakamura to validate the secret. After an
+	 * I/O error or a 5xx response the call is retried once on another
+	 * admitted end-point; any other response is final.
+	 * 
+	 * @param secret
+	 *            The value of the SAKAI-TRACKING cookie.
+	 * @return null if Nakamura rejected the secret with a 404 or 400 status;
+	 *         such secrets are remembered in {@link #rejectedSecretCache}
+	 * @throws UnavailableException
+	 *             If Nakamura answered with any other error status or could
+	 *             not be reached, e.g. a connect, read or pool timeout, so
+	 *             the secret may still be valid.
+	 * @throws CircuitBreaker.OpenException
+	 *             If every Nakamura end-point has been failing and is not
+	 *             being called.
+	 * @throws IllegalStateException
+	 *             For all unexpected cause Exceptions.
+	 */
+	protected AuthInfo fetchAuthInfo(final String secret) {
+		LOG.debug("fetchAuthInfo(String secret)");
+		final EndpointBalancer.Endpoint endpoint = endpoints.acquire();
+		try {
+			return fetchAuthInfo(secret, endpoint);
+		} catch (IOException e) {
+			// I/O error or 5xx; retry once on another end-point
+			final EndpointBalancer.Endpoint other;
+			try {
+				other = endpoints.acquire(endpoint);
+			} catch (CircuitBreaker.OpenException open) {
+				throw unavailable(e);
+			}
+			LOG.debug("Retrying on " + other + " after: " + e.getMessage());
+			try {
+				return fetchAuthInfo(secret, other);
+			} catch (IOException retryFailed) {
+				throw unavailable(retryFailed);
+			}
+		}
+	}
+
+	/**
+	 * A single attempt of {@link #fetchAuthInfo(String)} on one end-point.
+	 * 
+	 * @param secret
+	 * @param endpoint
+	 *            Acquired from {@link #endpoints}; released here.
+	 * @return null if Nakamura rejected the secret.
+	 * @throws IOException
+	 *             For I/O errors and 5xx responses, which are worth retrying
+	 *             on another end-point.
+	 */
+	private AuthInfo fetchAuthInfo(final String secret,
+			final EndpointBalancer.Endpoint endpoint) throws IOException {
+		@SuppressWarnings("PMD.DataflowAnomalyAnalysis")
+		boolean failed = true;
+		// one pooled client; connections are pooled per end-point route
+		final HttpClient httpClient = httpClientProvider.getHttpClient();
+		try {
+			final URI uri = new URI(endpoint.getUrl() + secret);
+			final HttpGet httpget = new HttpGet(uri);
+			// authenticate to Nakamura using x-sakai-token mechanism
+			final String token = xSakaiToken.createToken(hostname, principal);
+			httpget.addHeader(XSakaiToken.X_SAKAI_TOKEN_HEADER, token);
+			//
+			final AuthInfo authInfo = httpClient.execute(httpget,
+					AUTH_INFO_RESPONSE_HANDLER);
+			failed = false;
+			return authInfo;
+		} catch (HttpResponseException e) {
+			// usually a 404 error - could not find cookie / not valid
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("HttpResponseException: " + e.getMessage() + ": "
+						+ e.getStatusCode() + ": " + endpoint.getUrl() + secret);
+			}
+			final int status = e.getStatusCode();
+			if (status >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+				throw e;
+			}
+			failed = false;
+			// only remember bad cookies; 401 and 403 more likely mean that
+			// our x-sakai-token was refused, which says nothing of the cookie
+			if (status == HttpStatus.SC_NOT_FOUND
+					|| status == HttpStatus.SC_BAD_REQUEST) {
+				rejectedSecretCache.put(secret, Boolean.TRUE);
+				return null;
+			}
+			LOG.warn("Nakamura refused to validate cookie: " + status
+					+ "; check x-sakai-token configuration for " + hostname);
+			throw new UnavailableException(e);
+		} catch (URISyntaxException e) {
+			LOG.error(e.getMessage(), e);
+			throw new IllegalStateException(e);
+		} catch (RuntimeException e) {
+			LOG.error(e.getMessage(), e);
+			throw new IllegalStateException(e);
+		} finally {
+			endpoints.release(endpoint, failed);
+			httpClientProvider.releaseHttpClient(httpClient);
+		}
+	}
+
+	/**
+	 * @param e
+	 *            The failure of the last attempt; a 5xx response or a
+	 *            transport error such as a timeout.
+	 * @return an {@link UnavailableException} wrapping e.
+	 */
+	private UnavailableException unavailable(final IOException e) {
+		if (!(e instanceof HttpResponseException)) {
+			LOG.warn("Could not reach Nakamura: " + e.getMessage());
+		}
+		return new UnavailableException(e);
+	}
+
+	/**
+	 * Exposed for monitoring; e.g. hit, miss and eviction counts.
+	 * 
+	 * @return the cross-request AuthInfo cache.
+	 */
+	public ExpiringCache<String, AuthInfo> getAuthInfoCache() {
+		return authInfoCache;
+	}
+
+	/**
+	 * Exposed for monitoring; e.g. hit, miss and eviction counts.
+	 * 
+	 * @return the cache of secrets recently rejected by Nakamura.
+	 */
+	public ExpiringCache<String, Boolean> getRejectedSecretCache() {
+		return rejectedSecretCache;
+	}
+
 	/**
 	 * Gets the authentication key from SAKAI-TRACKING cookie.
 	 * 
@@ -247,15 +1069,85 @@ public class NakamuraAuthenticationHelper {
 		return secret;
 	}
 
+	/**
+	 * A derived key together with the secret it was derived from, so that it
+	 * is re-derived when the secret changes.
+	 */
+	private static final class DerivedKey {
+		private final transient String sharedSecret;
+		private final transient String key;
+
+		DerivedKey(final String sharedSecret, final String key) {
+			this.sharedSecret = sharedSecret;
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Thrown by {@link NakamuraAuthenticationHelper#fetchAuthInfo(String)}
+	 * when Nakamura could not say whether a secret is valid; e.g. a 5xx
+	 * response, a timeout or our x-sakai-token being refused.
+	 */
+	protected static class UnavailableException extends IllegalStateException {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * @param cause
+		 */
+		public UnavailableException(final Throwable cause) {
+			super(cause);
+		}
+	}
+
+	/**
+	 * Remembers the thread that started an asynchronous lookup and, when the
+	 * result is collected on that same thread, caches it in ThreadLocal just
+	 * like the synchronous lookup does. Results collected on any other thread
+	 * are not cached so that pool threads never carry request state.
+	 */
+	private final class RequestScopedFuture extends FutureTask<AuthInfo> {
+		private final transient Thread requestThread = Thread.currentThread();
+
+		RequestScopedFuture(final Callable<AuthInfo> callable) {
+			super(callable);
+		}
+
+		/**
+		 * Complete without running; get() then throws an ExecutionException
+		 * wrapping cause.
+		 * 
+		 * @param cause
+		 */
+		void fail(final Throwable cause) {
+			setException(cause);
+		}
+
+		@Override
+		public AuthInfo get() throws InterruptedException, ExecutionException {
+			return cacheInRequest(super.get());
+		}
+
+		@Override
+		public AuthInfo get(final long timeout, final TimeUnit unit)
+				throws InterruptedException, ExecutionException,
+				TimeoutException {
+			return cacheInRequest(super.get(timeout, unit));
+		}
+
+		private AuthInfo cacheInRequest(final AuthInfo authInfo) {
+			if (Thread.currentThread() == requestThread) {
+				threadLocalManager.set(THREAD_LOCAL_CACHE_KEY, authInfo);
+			}
+			return authInfo;
+		}
+	}
+
 	/**
 	 * Static final class for storing cached results from Nakamura lookup.
 	 * Generally the caller should expect raw results from the JSON parsing
 	 * (e.g. principal could in theory be null).
 	 */
 	public static class AuthInfo {
-		private static final String FIRST_NAME = "firstName";
-		private static final String LAST_NAME = "lastName";
-		private static final String EMAIL = "email";
 		private static final String EMPTY_STRING = "";
 
 		// PMD does not like the class name
@@ -271,40 +1163,65 @@ public class NakamuraAuthenticationHelper {
 		 * 
 		 * @param json
 		 *            The JSON returned from nakamura.
+		 * @throws IllegalArgumentException
+		 *             If the JSON is malformed or has no user object.
 		 */
 		protected AuthInfo(final String json) {
+			this(parse(json));
 			if (AILOG.isDebugEnabled()) {
 				AILOG.debug("new AuthInfo(String " + json + ")");
 			}
-			final JSONObject user = JSONObject.fromObject(json).getJSONObject(
-					"user");
-			String principal = null;
-			if (user.has("principal")) {
-				principal = user.getString("principal");
-			}
+		}
+
+		/**
+		 * 
+		 * @param parser
+		 *            A parser that has already read the JSON returned from
+		 *            nakamura.
+		 */
+		protected AuthInfo(final UserCookieJsonParser parser) {
+			this(parser.getPrincipal(), parser.getFirstName(), parser
+					.getLastName(), parser.getEmail());
+		}
+
+		/**
+		 * 
+		 * @param principal
+		 *            Anonymous or empty principals are stored as null.
+		 * @param firstName
+		 * @param lastName
+		 * @param emailAddress
+		 */
+		protected AuthInfo(final String principal, final String firstName,
+				final String lastName, final String emailAddress) {
 			if (principal != null && !EMPTY_STRING.equals(principal)
 					&& !anonymous.equals(principal)) {
 				this.principal = principal;
 			} else {
 				this.principal = null;
 			}
+			this.firstName = emptyIfNull(firstName);
+			this.lastName = emptyIfNull(lastName);
+			this.emailAddress = emptyIfNull(emailAddress);
+		}
 
-			final JSONObject properties = user.getJSONObject("properties");
-			if (properties.has(FIRST_NAME)) {
-				firstName = properties.getString(FIRST_NAME);
-			} else {
-				firstName = EMPTY_STRING;
-			}
-			if (properties.has(LAST_NAME)) {
-				lastName = properties.getString(LAST_NAME);
-			} else {
-				lastName = EMPTY_STRING;
+		private static UserCookieJsonParser parse(final String json) {
+			if (json == null) {
+				throw new IllegalArgumentException("json == null");
 			}
-			if (properties.has(EMAIL)) {
-				emailAddress = properties.getString(EMAIL);
-			} else {
-				emailAddress = EMPTY_STRING;
+			final UserCookieJsonParser parser = new UserCookieJsonParser(
+					new StringReader(json));
+			try {
+				parser.parse();
+			} catch (IOException e) {
+				// cannot happen with a StringReader
+				throw new IllegalStateException(e);
 			}
+			return parser;
+		}
+
+		private static String emptyIfNull(final String value) {
+			return value == null ? EMPTY_STRING : value;
 		}
 
 		/**
@@ -336,6 +1253,50 @@ public class NakamuraAuthenticationHelper {
 		}
 	}
 
+	/**
+	 * Builds {@link AuthInfo} directly from the response entity stream with
+	 * {@link UserCookieJsonParser} instead of buffering the body into a
+	 * String. Like {@link BasicResponseHandler}, throws
+	 * {@link HttpResponseException} for status codes >= 300. Implementation is
+	 * thread safe.
+	 */
+	public static final class AuthInfoResponseHandler implements
+			ResponseHandler<AuthInfo> {
+		private static final String DEFAULT_CHARSET = "UTF-8";
+
+		/**
+		 * @see ResponseHandler#handleResponse(HttpResponse)
+		 */
+		public AuthInfo handleResponse(final HttpResponse response)
+				throws IOException {
+			final StatusLine statusLine = response.getStatusLine();
+			final HttpEntity entity = response.getEntity();
+			if (statusLine.getStatusCode() >= HttpStatus.SC_MULTIPLE_CHOICES) {
+				EntityUtils.consume(entity);
+				throw new HttpResponseException(statusLine.getStatusCode(),
+						statusLine.getReasonPhrase());
+			}
+			if (entity == null) {
+				throw new HttpResponseException(statusLine.getStatusCode(),
+						"Empty response from Nakamura");
+			}
+			String charset = EntityUtils.getContentCharSet(entity);
+			if (charset == null) {
+				charset = DEFAULT_CHARSET;
+			}
+			final InputStream content = entity.getContent();
+			try {
+				final UserCookieJsonParser parser = new UserCookieJsonParser(
+						new InputStreamReader(content, charset));
+				parser.parse();
+				return new AuthInfo(parser);
+			} finally {
+				// drain the rest so the connection can be reused
+				EntityUtils.consume(entity);
+			}
+		}
+	}
+
 	/**
 	 * A simple abstraction to allow for unit testing of
 	 * {@link NakamuraAuthenticationHelper}.
@@ -348,10 +1309,24 @@ public class NakamuraAuthenticationHelper {
 		 * @return the HttpClient
 		 */
 		public HttpClient getHttpClient();
+
+		/**
+		 * Called once the caller is done with a client obtained from
+		 * {@link #getHttpClient()}.
+		 * 
+		 * @param httpClient
+		 */
+		public void releaseHttpClient(HttpClient httpClient);
+
+		/**
+		 * Release all resources held by this provider.
+		 */
+		public void shutdown();
 	}
 
 	/**
-	 * Implementation is thread safe.
+	 * Creates a new {@link HttpClient} for every call. Implementation is thread
+	 * safe.
 	 */
 	public static final class DefaultHttpClientProvider implements
 			HttpClientProvider {
@@ -366,5 +1341,175 @@ public class NakamuraAuthenticationHelper {
 			return new DefaultHttpClient();
 		}
 
+		/**
+		 * @see HttpClientProvider#releaseHttpClient(HttpClient)
+		 */
+		public void releaseHttpClient(final HttpClient httpClient) {
+			LOG.debug("releaseHttpClient(HttpClient httpClient)");
+			httpClient.getConnectionManager().shutdown();
+		}
+
+		/**
+		 * @see HttpClientProvider#shutdown()
+		 */
+		public void shutdown() {
+			// nothing to do here
+		}
+	}
+
+	/**
+	 * Shares one {@link HttpClient} backed by a connection pool so that
+	 * connections to Nakamura are kept alive and reused between calls. Idle
+	 * and expired connections are evicted lazily from
+	 * {@link #getHttpClient()}. Implementation is thread safe.
+	 */
+	public static final class PooledHttpClientProvider implements
+			HttpClientProvider {
+		private static final Log LOG = LogFactory
+				.getLog(PooledHttpClientProvider.class);
+		/**
+		 * @see NakamuraAuthenticationHelper#CONFIG_MAX_CONNECTIONS_TOTAL
+		 */
+		public static final int DEFAULT_MAX_TOTAL = 50;
+		/**
+		 * @see NakamuraAuthenticationHelper#CONFIG_MAX_CONNECTIONS_PER_ROUTE
+		 */
+		public static final int DEFAULT_MAX_PER_ROUTE = 20;
+		/**
+		 * Seconds. See
+		 * {@link NakamuraAuthenticationHelper#CONFIG_IDLE_CONNECTION_TIMEOUT}
+		 */
+		public static final int DEFAULT_IDLE_TIMEOUT = 60;
+		/**
+		 * Seconds. See {@link NakamuraAuthenticationHelper#CONFIG_KEEP_ALIVE}
+		 */
+		public static final int DEFAULT_KEEP_ALIVE = 30;
+		/**
+		 * Milliseconds. See
+		 * {@link NakamuraAuthenticationHelper#CONFIG_CONNECT_TIMEOUT}
+		 */
+		public static final int DEFAULT_CONNECT_TIMEOUT = 2000;
+		/**
+		 * Milliseconds. See
+		 * {@link NakamuraAuthenticationHelper#CONFIG_READ_TIMEOUT}
+		 */
+		public static final int DEFAULT_READ_TIMEOUT = 5000;
+		/**
+		 * Milliseconds. See
+		 * {@link NakamuraAuthenticationHelper#CONFIG_POOL_TIMEOUT}
+		 */
+		public static final int DEFAULT_POOL_TIMEOUT = 1000;
+
+		private final transient ThreadSafeClientConnManager connectionManager;
+		private final transient DefaultHttpClient httpClient;
+		private final transient long idleTimeoutMillis;
+		private final transient AtomicLong nextEviction = new AtomicLong();
+
+		/**
+		 * @param maxTotal
+		 *            Maximum number of connections in the pool.
+		 * @param maxPerRoute
+		 *            Maximum number of connections to any one host.
+		 * @param idleTimeout
+		 *            Seconds before an idle connection is closed.
+		 * @param keepAlive
+		 *            Seconds to keep a connection alive when the server does
+		 *            not say otherwise.
+		 * @throws IllegalArgumentException
+		 */
+		public PooledHttpClientProvider(final int maxTotal,
+				final int maxPerRoute, final int idleTimeout,
+				final int keepAlive) {
+			if (maxTotal < 1 || maxPerRoute < 1) {
+				throw new IllegalArgumentException(
+						"maxTotal < 1 OR maxPerRoute < 1");
+			}
+			if (idleTimeout < 1 || keepAlive < 1) {
+				throw new IllegalArgumentException(
+						"idleTimeout < 1 OR keepAlive < 1");
+			}
+			connectionManager = new ThreadSafeClientConnManager();
+			connectionManager.setMaxTotal(maxTotal);
+			connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+			httpClient = new DefaultHttpClient(connectionManager);
+			final long keepAliveMillis = TimeUnit.SECONDS.toMillis(keepAlive);
+			httpClient
+					.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+						@Override
+						public long getKeepAliveDuration(
+								final HttpResponse response,
+								final HttpContext context) {
+							final long duration = super.getKeepAliveDuration(
+									response, context);
+							return duration > 0 ? duration : keepAliveMillis;
+						}
+					});
+			idleTimeoutMillis = TimeUnit.SECONDS.toMillis(idleTimeout);
+			setTimeouts(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT,
+					DEFAULT_POOL_TIMEOUT);
+		}
+
+		/**
+		 * @param connectTimeout
+		 *            Milliseconds to wait for a connection to be established.
+		 * @param readTimeout
+		 *            Milliseconds to wait for data once connected.
+		 * @param poolTimeout
+		 *            Milliseconds to wait for a free pooled connection.
+		 * @throws IllegalArgumentException
+		 */
+		public void setTimeouts(final int connectTimeout,
+				final int readTimeout, final int poolTimeout) {
+			if (connectTimeout < 1 || readTimeout < 1 || poolTimeout < 1) {
+				throw new IllegalArgumentException("timeouts must be > 0");
+			}
+			final HttpParams params = httpClient.getParams();
+			HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+			HttpConnectionParams.setSoTimeout(params, readTimeout);
+			params.setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT,
+					poolTimeout);
+		}
+
+		/**
+		 * @see HttpClientProvider#getHttpClient()
+		 */
+		public HttpClient getHttpClient() {
+			LOG.debug("getHttpClient()");
+			evictIdleConnections();
+			return httpClient;
+		}
+
+		/**
+		 * Connections are returned to the pool once the response entity has
+		 * been consumed; nothing else to do.
+		 * 
+		 * @see HttpClientProvider#releaseHttpClient(HttpClient)
+		 */
+		public void releaseHttpClient(final HttpClient httpClient) {
+			// nothing to do here
+		}
+
+		/**
+		 * @see HttpClientProvider#shutdown()
+		 */
+		public void shutdown() {
+			LOG.debug("shutdown()");
+			connectionManager.shutdown();
+		}
+
+		/**
+		 * At most once per idle timeout period, close expired connections and
+		 * connections that have been idle for longer than the idle timeout.
+		 */
+		private void evictIdleConnections() {
+			final long now = System.currentTimeMillis();
+			final long next = nextEviction.get();
+			if (now >= next
+					&& nextEviction.compareAndSet(next, now + idleTimeoutMillis)) {
+				connectionManager.closeExpiredConnections();
+				connectionManager.closeIdleConnections(idleTimeoutMillis,
+						TimeUnit.MILLISECONDS);
+			}
+		}
 	}
 }
@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import java.security.SecureRandom;
+
+/**
+ * Source of random nonces that scales across cores. Rather than every caller
+ * queueing on the lock inside one {@link SecureRandom}, calls are spread over
+ * a fixed set of independently self-seeded generators chosen by thread id.
+ * Each generator is still a {@link SecureRandom}, so the output is as strong
+ * as before. Note: Class is thread safe.
+ */
+public class NonceGenerator {
+	private static final int MAX_STRIPES = 64;
+
+	private final transient SecureRandom[] stripes;
+	private final transient int mask;
+
+	/**
+	 * One stripe per available processor, rounded up to a power of two.
+	 */
+	public NonceGenerator() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param concurrency
+	 *            Expected number of concurrent callers; rounded up to a power
+	 *            of two and capped at 64.
+	 * @throws IllegalArgumentException
+	 */
+	public NonceGenerator(final int concurrency) {
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("concurrency < 1");
+		}
+		int size = 1;
+		while (size < concurrency && size < MAX_STRIPES) {
+			size <<= 1;
+		}
+		stripes = new SecureRandom[size];
+		for (int i = 0; i < size; i++) {
+			stripes[i] = new SecureRandom();
+		}
+		mask = size - 1;
+	}
+
+	/**
+	 * @return a random long from the calling thread's stripe.
+	 */
+	public long nextLong() {
+		return stripe().nextLong();
+	}
+
+	/**
+	 * Fill nonces with random longs drawn in a single request to the calling
+	 * thread's stripe.
+	 * 
+	 * @param nonces
+	 * @throws IllegalArgumentException
+	 */
+	public void nextLongs(final long[] nonces) {
+		if (nonces == null) {
+			throw new IllegalArgumentException("nonces == null");
+		}
+		final byte[] bytes = new byte[nonces.length * 8];
+		stripe().nextBytes(bytes);
+		for (int i = 0, b = 0; i < nonces.length; i++) {
+			long value = 0;
+			for (int j = 0; j < 8; j++) {
+				value = value << 8 | bytes[b++] & 0xff;
+			}
+			nonces[i] = value;
+		}
+	}
+
+	/**
+	 * @return number of independent generators.
+	 */
+	public int getStripeCount() {
+		return stripes.length;
+	}
+
+	protected SecureRandom stripe() {
+		final long id = Thread.currentThread().getId();
+		return stripes[(int) (id ^ (id >>> 32)) & mask];
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The shared secrets a verifier currently accepts, so that a secret can be
+ * rotated without restarting both ends at the same moment. Tokens that name
+ * their key (<code>keyId:hash;user;nonce</code>) are checked against that
+ * key only; tokens without a key id are tried against at most
+ * <code>maxTrials</code> secrets, in configured order. Note: Class is
+ * immutable and thread safe.
+ */
+public class SharedSecrets {
+	/**
+	 * Separates the optional key id from the hash in a token and from the
+	 * secret in a configuration entry.
+	 */
+	public static final char KEY_ID_SEPARATOR = ':';
+	/**
+	 * Secrets tried for a token without a key id, unless configured
+	 * otherwise: the current secret and the one it replaced.
+	 */
+	public static final int DEFAULT_MAX_TRIALS = 2;
+
+	private final transient Map<String, String> secretsByKeyId;
+	private final transient List<String> trialSecrets;
+
+	/**
+	 * @param entries
+	 *            <code>keyId:secret</code>, or just <code>secret</code> for a
+	 *            secret that has no key id (prefix it with ':' if it contains
+	 *            ':' itself). Secrets are tried in this order.
+	 * @param maxTrials
+	 *            Upper bound on HMAC checks for a token without a key id.
+	 * @throws IllegalArgumentException
+	 *             If there are no entries, an entry has an empty secret or a
+	 *             key id is used twice.
+	 */
+	public SharedSecrets(final String[] entries, final int maxTrials) {
+		if (entries == null || entries.length == 0) {
+			throw new IllegalArgumentException("entries == null OR empty");
+		}
+		if (maxTrials < 1) {
+			throw new IllegalArgumentException("maxTrials < 1");
+		}
+		final Map<String, String> byKeyId = new HashMap<String, String>();
+		final List<String> secrets = new ArrayList<String>();
+		for (String entry : entries) {
+			if (entry == null) {
+				throw new IllegalArgumentException("entry == null");
+			}
+			final int separator = entry.indexOf(KEY_ID_SEPARATOR);
+			final String secret = entry.substring(separator + 1);
+			if ("".equals(secret)) {
+				throw new IllegalArgumentException("empty secret");
+			}
+			if (separator > 0
+					&& byKeyId.put(entry.substring(0, separator), secret) != null) {
+				throw new IllegalArgumentException("duplicate key id: "
+						+ entry.substring(0, separator));
+			}
+			if (secrets.size() < maxTrials) {
+				secrets.add(secret);
+			}
+		}
+		secretsByKeyId = Collections.unmodifiableMap(byKeyId);
+		trialSecrets = Collections.unmodifiableList(secrets);
+	}
+
+	/**
+	 * @param keyId
+	 * @return the secret for keyId or null if there is none.
+	 */
+	public String getSecret(final String keyId) {
+		return secretsByKeyId.get(keyId);
+	}
+
+	/**
+	 * @return the secrets to try, in order, for a token without a key id.
+	 */
+	public List<String> getTrialSecrets() {
+		return trialSecrets;
+	}
+
+	/**
+	 * @return number of secrets with a key id.
+	 */
+	public int getKeyIdCount() {
+		return secretsByKeyId.size();
+	}
+}
@@ -18,13 +18,22 @@
 package org.sakaiproject.hybrid.util;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -35,25 +44,50 @@ import org.apache.commons.logging.LogFactory;
  * Signature.java@70078352b144921ee03a4f2e1d17a3a9b9a2b231</a>
  * <p>
  * Utility to calculate signatures for information.
+ * <p>
+ * Note: Class is thread safe. {@link Mac} instances are not, so each call
+ * borrows one from a lock-free pool instead of sharing a single instance.
+ * Pooled instances are kept already initialized, one pool per key, so signing
+ * again with the same key skips key encoding and {@link Mac#init}. Each pool
+ * grows to the peak number of concurrent callers for its key.
+ * <p>
+ * The byte[] and {@link ByteBuffer} methods write into caller supplied
+ * buffers and do not allocate once a key has been seen; the String methods
+ * are convenience wrappers around them.
  */
 @SuppressWarnings("PMD.LongVariable")
 public class Signature {
   private static final Log LOG = LogFactory.getLog(Signature.class);
   protected transient String hmacSha1Algorithm = "HmacSHA1";
-	private transient Mac mac;
+	/**
+	 * Upper bound on the number of keys with pooled Mac instances. Usually
+	 * there is one shared secret per host, so this is rarely reached.
+	 */
+	protected static final int MAX_KEYS = 32;
+	private static final byte[] BASE64 = alphabet("+/");
+	private static final byte[] BASE64_URL_SAFE = alphabet("-_");
+	private static final byte PAD = '=';
+	private static final int[] BASE64_DECODE = decodeTable(BASE64);
+	private static final int[] BASE64_URL_SAFE_DECODE = decodeTable(BASE64_URL_SAFE);
+	/**
+	 * Idle Mac instances, initialized with the key they are mapped to.
+	 */
+	private final transient ConcurrentMap<String, Queue<PreparedMac>> macsByKey = new ConcurrentHashMap<String, Queue<PreparedMac>>();
+	private final transient int macLength;
 
 	/**
 	 * @throws IllegalStateException
 	 *             If there are any run time problems getting an instance.
 	 */
 	public Signature() {
-		instatiateMac();
+		// fail fast if the algorithm is not available
+		macLength = instatiateMac().getMacLength();
 	}
 
-	private void instatiateMac() {
+	private Mac instatiateMac() {
 		try {
 			// Get an hmac_sha1 Mac instance
-			mac = Mac.getInstance(hmacSha1Algorithm);
+			return Mac.getInstance(hmacSha1Algorithm);
 		} catch (NoSuchAlgorithmException e) {
 			throw new IllegalStateException(e);
 		}
@@ -66,7 +100,23 @@ public class Signature {
 	 */
 	protected Signature(final String algorithm) {
 		this.hmacSha1Algorithm = algorithm;
-		instatiateMac();
+		macLength = instatiateMac().getMacLength();
+	}
+
+	/**
+	 * @return length in bytes of a raw HMAC; 20 for HmacSHA1.
+	 */
+	public int getMacLength() {
+		return macLength;
+	}
+
+	/**
+	 * @param urlSafe
+	 * @return length in bytes of a Base64-encoded HMAC. URL safe encoding is
+	 *         not padded.
+	 */
+	public int getEncodedMacLength(final boolean urlSafe) {
+		return getEncodedLength(macLength, urlSafe);
 	}
 
 	/**
@@ -118,24 +168,577 @@ public class Signature {
 			throw new IllegalArgumentException("String key == null");
 		}
 		String result = null;
-    try {
-      // Get an hmac_sha1 key from the raw key bytes
-      final byte[] keyBytes = key.getBytes("UTF-8");
-      final SecretKeySpec signingKey = new SecretKeySpec(keyBytes,
-      		hmacSha1Algorithm);
-
-      // initialize with the signing key
-      mac.init(signingKey);
-
-      // Compute the hmac on input data bytes
-      final byte[] rawHmac = mac.doFinal(data.getBytes("UTF-8"));
-
-      // Convert raw bytes to encoding
-      final byte[] base64Bytes = Base64.encodeBase64(rawHmac, false, urlSafe);
-      result = new String(base64Bytes, "UTF-8");
-    } catch (UnsupportedEncodingException e) {
-      LOG.error(e.getMessage(), e);
-    }
+		try {
+			final byte[] dataBytes = data.getBytes("UTF-8");
+			final byte[] encoded = new byte[getEncodedMacLength(urlSafe)];
+			calculateRFC2104HMACWithEncoding(dataBytes, 0, dataBytes.length,
+					key, urlSafe, encoded, 0);
+			result = new String(encoded, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			LOG.error(e.getMessage(), e);
+		}
 		return result;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Calculate the HMAC of every element of data with the same key. One
+	 * prepared Mac is borrowed for the whole batch instead of one per element.
+	 * 
+	 * @param data
+	 *            The strings to be signed; none may be null.
+	 * @param key
+	 *            The signing key.
+	 * @param urlSafe
+	 *            true if the tokens need to be URL safe.
+	 * @return The Base64-encoded HMACs, in the iteration order of data.
+	 * @throws InvalidKeyException
+	 * @throws IllegalArgumentException
+	 *             If data, an element of data or key is null.
+	 */
+	public List<String> calculateRFC2104HMACsWithEncoding(
+			final Collection<String> data, final String key,
+			final boolean urlSafe) throws InvalidKeyException {
+		if (data == null) {
+			throw new IllegalArgumentException("Collection data == null");
+		}
+		for (String element : data) {
+			if (element == null) {
+				throw new IllegalArgumentException("String data == null");
+			}
+		}
+		final List<String> results = new ArrayList<String>(data.size());
+		if (data.isEmpty()) {
+			return results;
+		}
+		final PreparedMac prepared = borrowMac(key);
+		final byte[] encoded = new byte[getEncodedMacLength(urlSafe)];
+		try {
+			for (String element : data) {
+				updateUtf8(prepared, element, 0, element.length());
+				doFinal(prepared.mac, prepared.digest, 0);
+				encodeBase64(prepared.digest, 0, macLength, urlSafe, encoded, 0);
+				results.add(new String(encoded, "UTF-8"));
+			}
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(e);
+		}
+		returnMac(key, prepared);
+		return results;
+	}
+
+	/**
+	 * Calculate an RFC2104 compliant HMAC over part of a byte array and write
+	 * the raw digest into output.
+	 * 
+	 * @param data
+	 * @param offset
+	 *            Start of the data to be signed.
+	 * @param length
+	 *            Number of bytes to be signed.
+	 * @param key
+	 *            The signing key.
+	 * @param output
+	 *            Needs {@link #getMacLength()} bytes from outputOffset.
+	 * @param outputOffset
+	 * @return number of bytes written.
+	 * @throws InvalidKeyException
+	 * @throws IllegalArgumentException
+	 *             If an argument is null or a range is out of bounds.
+	 */
+	public int calculateRFC2104HMAC(final byte[] data, final int offset,
+			final int length, final String key, final byte[] output,
+			final int outputOffset) throws InvalidKeyException {
+		checkRange("data", data, offset, length);
+		checkRange("output", output, outputOffset, macLength);
+		final PreparedMac prepared = borrowMac(key);
+		prepared.mac.update(data, offset, length);
+		doFinal(prepared.mac, output, outputOffset);
+		returnMac(key, prepared);
+		return macLength;
+	}
+
+	/**
+	 * Calculate an RFC2104 compliant HMAC over the remaining bytes of data and
+	 * put the raw digest into output. Both buffers' positions are advanced.
+	 * 
+	 * @param data
+	 * @param key
+	 *            The signing key.
+	 * @param output
+	 *            Needs {@link #getMacLength()} bytes remaining.
+	 * @throws InvalidKeyException
+	 * @throws IllegalArgumentException
+	 *             If an argument is null or output is too small.
+	 */
+	public void calculateRFC2104HMAC(final ByteBuffer data, final String key,
+			final ByteBuffer output) throws InvalidKeyException {
+		if (data == null) {
+			throw new IllegalArgumentException("ByteBuffer data == null");
+		}
+		if (output == null || output.remaining() < macLength) {
+			throw new IllegalArgumentException(
+					"ByteBuffer output == null OR too small");
+		}
+		final PreparedMac prepared = borrowMac(key);
+		prepared.mac.update(data);
+		if (output.hasArray()) {
+			doFinal(prepared.mac, output.array(), output.arrayOffset()
+					+ output.position());
+			output.position(output.position() + macLength);
+		} else {
+			doFinal(prepared.mac, prepared.digest, 0);
+			output.put(prepared.digest, 0, macLength);
+		}
+		returnMac(key, prepared);
+	}
+
+	/**
+	 * Calculate an RFC2104 compliant HMAC over part of a byte array and write
+	 * its Base64 encoding into output.
+	 * 
+	 * @param data
+	 * @param offset
+	 *            Start of the data to be signed.
+	 * @param length
+	 *            Number of bytes to be signed.
+	 * @param key
+	 *            The signing key.
+	 * @param urlSafe
+	 *            true if the token needs to be URL safe.
+	 * @param output
+	 *            Needs {@link #getEncodedMacLength(boolean)} bytes from
+	 *            outputOffset.
+	 * @param outputOffset
+	 * @return number of bytes written.
+	 * @throws InvalidKeyException
+	 * @throws IllegalArgumentException
+	 *             If an argument is null or a range is out of bounds.
+	 */
+	public int calculateRFC2104HMACWithEncoding(final byte[] data,
+			final int offset, final int length, final String key,
+			final boolean urlSafe, final byte[] output, final int outputOffset)
+			throws InvalidKeyException {
+		checkRange("data", data, offset, length);
+		final int encodedLength = getEncodedMacLength(urlSafe);
+		checkRange("output", output, outputOffset, encodedLength);
+		final PreparedMac prepared = borrowMac(key);
+		prepared.mac.update(data, offset, length);
+		doFinal(prepared.mac, prepared.digest, 0);
+		encodeBase64(prepared.digest, 0, macLength, urlSafe, output,
+				outputOffset);
+		returnMac(key, prepared);
+		return encodedLength;
+	}
+
+	/**
+	 * Verify a Base64-encoded HMAC without re-encoding. The presented value is
+	 * decoded once and compared with the computed digest in constant time.
+	 * Values of the wrong length or that are not canonical Base64 are rejected
+	 * before any MAC work is done.
+	 * 
+	 * @param data
+	 * @param offset
+	 *            Start of the signed data.
+	 * @param length
+	 *            Number of signed bytes.
+	 * @param key
+	 *            The signing key.
+	 * @param encodedMac
+	 *            The presented Base64-encoded HMAC.
+	 * @param urlSafe
+	 *            true if encodedMac is URL safe (and therefore unpadded).
+	 * @return true if encodedMac is the HMAC of data.
+	 * @throws InvalidKeyException
+	 * @throws IllegalArgumentException
+	 *             If an argument is null or a range is out of bounds.
+	 */
+	public boolean verifyRFC2104HMAC(final byte[] data, final int offset,
+			final int length, final String key, final CharSequence encodedMac,
+			final boolean urlSafe) throws InvalidKeyException {
+		checkRange("data", data, offset, length);
+		if (encodedMac == null) {
+			throw new IllegalArgumentException("encodedMac == null");
+		}
+		final int macEnd = encodedMac.length();
+		if (!isWellFormed(encodedMac, 0, macEnd, urlSafe)) {
+			return false;
+		}
+		final PreparedMac prepared = borrowMac(key);
+		prepared.mac.update(data, offset, length);
+		return finishVerify(key, prepared, encodedMac, 0, macEnd, urlSafe);
+	}
+
+	/**
+	 * Like {@link #verifyRFC2104HMAC(byte[], int, int, String, CharSequence,
+	 * boolean)} but reads the signed data and the presented HMAC from regions
+	 * of character sequences, such as a single token String, without copying
+	 * them. The data is UTF-8 encoded through a pooled scratch buffer.
+	 * 
+	 * @param data
+	 * @param start
+	 *            Start of the signed characters.
+	 * @param end
+	 *            End (exclusive) of the signed characters.
+	 * @param key
+	 *            The signing key.
+	 * @param encodedMac
+	 * @param macStart
+	 *            Start of the presented Base64-encoded HMAC.
+	 * @param macEnd
+	 *            End (exclusive) of the presented Base64-encoded HMAC.
+	 * @param urlSafe
+	 *            true if the presented HMAC is URL safe (and therefore
+	 *            unpadded).
+	 * @return true if the presented HMAC is the HMAC of the data.
+	 * @throws InvalidKeyException
+	 * @throws IllegalArgumentException
+	 *             If an argument is null or a range is out of bounds.
+	 */
+	@SuppressWarnings("PMD.ExcessiveParameterList")
+	public boolean verifyRFC2104HMAC(final CharSequence data, final int start,
+			final int end, final String key, final CharSequence encodedMac,
+			final int macStart, final int macEnd, final boolean urlSafe)
+			throws InvalidKeyException {
+		checkRange("data", data, start, end);
+		checkRange("encodedMac", encodedMac, macStart, macEnd);
+		if (!isWellFormed(encodedMac, macStart, macEnd, urlSafe)) {
+			return false;
+		}
+		final PreparedMac prepared = borrowMac(key);
+		updateUtf8(prepared, data, start, end);
+		return finishVerify(key, prepared, encodedMac, macStart, macEnd,
+				urlSafe);
+	}
+
+	private boolean isWellFormed(final CharSequence encodedMac,
+			final int start, final int end, final boolean urlSafe) {
+		return end - start == getEncodedMacLength(urlSafe)
+				&& decodeBase64(encodedMac, start, end, urlSafe, null, 0,
+						macLength);
+	}
+
+	/**
+	 * Complete the MAC, compare it with the presented value and return the
+	 * Mac to its pool.
+	 */
+	private boolean finishVerify(final String key, final PreparedMac prepared,
+			final CharSequence encodedMac, final int macStart,
+			final int macEnd, final boolean urlSafe) {
+		decodeBase64(encodedMac, macStart, macEnd, urlSafe,
+				prepared.presented, 0, macLength);
+		doFinal(prepared.mac, prepared.digest, 0);
+		// constant time: always look at every byte
+		int difference = 0;
+		for (int i = 0; i < macLength; i++) {
+			difference |= prepared.digest[i] ^ prepared.presented[i];
+		}
+		returnMac(key, prepared);
+		return difference == 0;
+	}
+
+	/**
+	 * Feed the UTF-8 encoding of a region of data to the Mac, in chunks of
+	 * the scratch buffer. Unpaired surrogates are encoded as '?', like
+	 * {@link String#getBytes(String)}.
+	 */
+	private static void updateUtf8(final PreparedMac prepared,
+			final CharSequence data, final int start, final int end) {
+		final byte[] buffer = prepared.scratch;
+		int length = 0;
+		for (int i = start; i < end; i++) {
+			if (length > buffer.length - 4) {
+				prepared.mac.update(buffer, 0, length);
+				length = 0;
+			}
+			final char c = data.charAt(i);
+			if (c < 0x80) {
+				buffer[length++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[length++] = (byte) (0xc0 | c >> 6);
+				buffer[length++] = (byte) (0x80 | c & 0x3f);
+			} else if (Character.isHighSurrogate(c) && i + 1 < end
+					&& Character.isLowSurrogate(data.charAt(i + 1))) {
+				final int codePoint = Character.toCodePoint(c, data
+						.charAt(++i));
+				buffer[length++] = (byte) (0xf0 | codePoint >> 18);
+				buffer[length++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+				buffer[length++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+				buffer[length++] = (byte) (0x80 | codePoint & 0x3f);
+			} else if (c >= Character.MIN_SURROGATE
+					&& c <= Character.MAX_SURROGATE) {
+				buffer[length++] = '?';
+			} else {
+				buffer[length++] = (byte) (0xe0 | c >> 12);
+				buffer[length++] = (byte) (0x80 | c >> 6 & 0x3f);
+				buffer[length++] = (byte) (0x80 | c & 0x3f);
+			}
+		}
+		if (length > 0) {
+			prepared.mac.update(buffer, 0, length);
+		}
+	}
+
+	/**
+	 * Decode exactly length bytes of Base64 into a caller supplied buffer.
+	 * 
+	 * @param src
+	 * @param start
+	 *            Start of the encoded characters in src.
+	 * @param end
+	 *            End (exclusive) of the encoded characters in src.
+	 * @param urlSafe
+	 *            expect the URL safe alphabet and no padding.
+	 * @param dst
+	 *            null to only check that src is well formed.
+	 * @param dstOffset
+	 * @param length
+	 *            Expected number of decoded bytes.
+	 * @return false if src is not the canonical encoding of length bytes; dst
+	 *         may then hold partial output.
+	 */
+	protected static boolean decodeBase64(final CharSequence src,
+			final int start, final int end, final boolean urlSafe,
+			final byte[] dst, final int dstOffset, final int length) {
+		int last = end;
+		if (!urlSafe) {
+			if ((last - start) % 4 != 0) {
+				return false;
+			}
+			// at most two padding characters
+			for (int p = 0; p < 2 && last > start
+					&& src.charAt(last - 1) == PAD; p++) {
+				last--;
+			}
+		}
+		final int count = last - start;
+		if (count % 4 == 1 || count * 6 / 8 != length) {
+			return false;
+		}
+		final int[] table = urlSafe ? BASE64_URL_SAFE_DECODE : BASE64_DECODE;
+		int bits = 0;
+		int bitCount = 0;
+		int j = dstOffset;
+		for (int i = start; i < last; i++) {
+			final char c = src.charAt(i);
+			final int value = c < table.length ? table[c] : -1;
+			if (value < 0) {
+				return false;
+			}
+			bits = bits << 6 | value;
+			bitCount += 6;
+			if (bitCount >= 8) {
+				bitCount -= 8;
+				if (dst != null) {
+					dst[j++] = (byte) (bits >>> bitCount);
+				}
+				bits &= (1 << bitCount) - 1;
+			}
+		}
+		// left over bits must be zero in a canonical encoding
+		return bits == 0;
+	}
+
+	/**
+	 * @param length
+	 *            Number of raw bytes.
+	 * @param urlSafe
+	 * @return length of the Base64 encoding. URL safe encoding is not padded,
+	 *         like {@link org.apache.commons.codec.binary.Base64}.
+	 */
+	protected static int getEncodedLength(final int length,
+			final boolean urlSafe) {
+		if (urlSafe) {
+			return (length * 4 + 2) / 3;
+		}
+		return (length + 2) / 3 * 4;
+	}
+
+	/**
+	 * Base64 encode into a caller supplied buffer, without line breaks.
+	 * 
+	 * @param src
+	 * @param offset
+	 * @param length
+	 * @param urlSafe
+	 *            use the URL safe alphabet and omit padding.
+	 * @param dst
+	 *            Needs {@link #getEncodedLength(int, boolean)} bytes from
+	 *            dstOffset.
+	 * @param dstOffset
+	 * @return number of bytes written.
+	 */
+	protected static int encodeBase64(final byte[] src, final int offset,
+			final int length, final boolean urlSafe, final byte[] dst,
+			final int dstOffset) {
+		final byte[] table = urlSafe ? BASE64_URL_SAFE : BASE64;
+		final int end = offset + length;
+		int i = offset;
+		int j = dstOffset;
+		while (end - i >= 3) {
+			final int bits = (src[i++] & 0xff) << 16 | (src[i++] & 0xff) << 8
+					| (src[i++] & 0xff);
+			dst[j++] = table[bits >>> 18 & 0x3f];
+			dst[j++] = table[bits >>> 12 & 0x3f];
+			dst[j++] = table[bits >>> 6 & 0x3f];
+			dst[j++] = table[bits & 0x3f];
+		}
+		final int remaining = end - i;
+		if (remaining > 0) {
+			final int bits = (src[i] & 0xff) << 16
+					| (remaining == 2 ? (src[i + 1] & 0xff) << 8 : 0);
+			dst[j++] = table[bits >>> 18 & 0x3f];
+			dst[j++] = table[bits >>> 12 & 0x3f];
+			if (remaining == 2) {
+				dst[j++] = table[bits >>> 6 & 0x3f];
+			} else if (!urlSafe) {
+				dst[j++] = PAD;
+			}
+			if (!urlSafe) {
+				dst[j++] = PAD;
+			}
+		}
+		return j - dstOffset;
+	}
+
+	private static byte[] alphabet(final String lastTwo) {
+		final String chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789"
+				+ lastTwo;
+		final byte[] table = new byte[chars.length()];
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (byte) chars.charAt(i);
+		}
+		return table;
+	}
+
+	private static int[] decodeTable(final byte[] alphabet) {
+		final int[] table = new int[128];
+		for (int i = 0; i < table.length; i++) {
+			table[i] = -1;
+		}
+		for (int i = 0; i < alphabet.length; i++) {
+			table[alphabet[i]] = i;
+		}
+		return table;
+	}
+
+	private static void checkRange(final String name,
+			final CharSequence chars, final int start, final int end) {
+		if (chars == null) {
+			throw new IllegalArgumentException(name + " == null");
+		}
+		if (start < 0 || start > end || end > chars.length()) {
+			throw new IllegalArgumentException(name + " range out of bounds");
+		}
+	}
+
+	private static void checkRange(final String name, final byte[] array,
+			final int offset, final int length) {
+		if (array == null) {
+			throw new IllegalArgumentException(name + " == null");
+		}
+		if (offset < 0 || length < 0 || offset > array.length - length) {
+			throw new IllegalArgumentException(name + " range out of bounds");
+		}
+	}
+
+	private void doFinal(final Mac mac, final byte[] output,
+			final int outputOffset) {
+		try {
+			mac.doFinal(output, outputOffset);
+		} catch (ShortBufferException e) {
+			// callers check the output length first
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return an idle Mac already initialized with key, or a new one.
+	 * @throws InvalidKeyException
+	 * @throws IllegalArgumentException
+	 *             If key is null.
+	 */
+	private PreparedMac borrowMac(final String key) throws InvalidKeyException {
+		if (key == null) {
+			throw new IllegalArgumentException("String key == null");
+		}
+		final Queue<PreparedMac> macs = macsByKey.get(key);
+		if (macs != null) {
+			final PreparedMac prepared = macs.poll();
+			if (prepared != null) {
+				return prepared;
+			}
+		}
+		// Get an hmac_sha1 key from the raw key bytes
+		final byte[] keyBytes;
+		try {
+			keyBytes = key.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(e);
+		}
+		final SecretKeySpec signingKey = new SecretKeySpec(keyBytes,
+				hmacSha1Algorithm);
+
+		// initialize with the signing key
+		final Mac mac = instatiateMac();
+		mac.init(signingKey);
+		return new PreparedMac(mac);
+	}
+
+	/**
+	 * Make a Mac available to later callers signing with key. If too many
+	 * keys are cached, the pool of an arbitrary other key is dropped. Only
+	 * call after doFinal, so the Mac holds no partial input.
+	 * 
+	 * @param key
+	 * @param prepared
+	 *            Initialized with key.
+	 */
+	private void returnMac(final String key, final PreparedMac prepared) {
+		Queue<PreparedMac> macs = macsByKey.get(key);
+		if (macs == null) {
+			if (macsByKey.size() >= MAX_KEYS) {
+				final Iterator<String> keys = macsByKey.keySet().iterator();
+				if (keys.hasNext()) {
+					keys.next();
+					keys.remove();
+				}
+			}
+			final Queue<PreparedMac> created = new ConcurrentLinkedQueue<PreparedMac>();
+			macs = macsByKey.putIfAbsent(key, created);
+			if (macs == null) {
+				macs = created;
+			}
+		}
+		macs.offer(prepared);
+	}
+
+	/**
+	 * Exposed for unit testing.
+	 * 
+	 * @return number of keys that currently have pooled Mac instances.
+	 */
+	protected int getCachedKeyCount() {
+		return macsByKey.size();
+	}
+
+	/**
+	 * A Mac initialized with a key, plus scratch buffers for its digest, for
+	 * a decoded digest to compare against and for encoding character data.
+	 */
+	private static final class PreparedMac {
+		private static final int SCRATCH_SIZE = 256;
+		private final transient Mac mac;
+		private final transient byte[] digest;
+		private final transient byte[] presented;
+		private final transient byte[] scratch = new byte[SCRATCH_SIZE];
+
+		PreparedMac(final Mac mac) {
+			this.mac = mac;
+			this.digest = new byte[mac.getMacLength()];
+			this.presented = new byte[mac.getMacLength()];
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent calls for the same key into a single execution. The
+ * first caller for a key runs the {@link Callable} on its own thread; callers
+ * that arrive while it is running wait for and share its result, or its
+ * failure. Note: Class is thread safe.
+ * 
+ * @param <K>
+ *            key type
+ * @param <V>
+ *            result type
+ */
+public class SingleFlight<K, V> {
+	private final transient ConcurrentMap<K, FutureTask<V>> calls = new ConcurrentHashMap<K, FutureTask<V>>();
+	private final transient AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * @param key
+	 * @param callable
+	 *            Only invoked if no call for key is already in flight.
+	 * @return the result of the in flight call.
+	 * @throws IllegalArgumentException
+	 * @throws IllegalStateException
+	 *             Wraps checked exceptions thrown by callable, or if the
+	 *             waiting thread is interrupted. Unchecked exceptions are
+	 *             rethrown as is to every caller.
+	 */
+	public V execute(final K key, final Callable<V> callable) {
+		if (key == null) {
+			throw new IllegalArgumentException("key == null");
+		}
+		if (callable == null) {
+			throw new IllegalArgumentException("callable == null");
+		}
+		final FutureTask<V> task = new FutureTask<V>(callable);
+		final FutureTask<V> existing = calls.putIfAbsent(key, task);
+		if (existing != null) {
+			coalesced.incrementAndGet();
+			return getResult(existing);
+		}
+		try {
+			task.run();
+		} finally {
+			calls.remove(key, task);
+		}
+		return getResult(task);
+	}
+
+	/**
+	 * @param key
+	 * @return true if a call for key is currently running.
+	 */
+	public boolean isInFlight(final K key) {
+		return calls.containsKey(key);
+	}
+
+	/**
+	 * @return number of callers that shared another caller's result.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Unwraps the outcome of a completed or running task.
+	 */
+	@SuppressWarnings("PMD.PreserveStackTrace")
+	static <V> V getResult(final FutureTask<V> task) {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+}
@@ -0,0 +1,319 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Streaming reader for the JSON returned by Nakamura's
+ * /var/cluster/user.cookie.json. Only user.principal and
+ * user.properties.firstName, lastName and email are extracted; everything else
+ * is skipped as it is read without building strings or objects. Reading stops
+ * as soon as the user object has been consumed. Like json-lib, trailing
+ * commas are tolerated. Note: not thread safe; use one instance per document.
+ */
+@SuppressWarnings({ "PMD.LongVariable", "PMD.CyclomaticComplexity" })
+public class UserCookieJsonParser {
+	private static final int EOF = -1;
+	private static final int ROOT = 0;
+	private static final int USER = 1;
+	private static final int PROPERTIES = 2;
+
+	private final transient Reader reader;
+	private final transient char[] buffer = new char[1024];
+	private transient int position = 0;
+	private transient int limit = 0;
+	/**
+	 * Reused for object keys so that they never become Strings.
+	 */
+	private final transient StringBuilder key = new StringBuilder(32);
+
+	private transient boolean userFound = false;
+	private transient String principal;
+	private transient String firstName;
+	private transient String lastName;
+	private transient String email;
+
+	/**
+	 * @param reader
+	 *            Source of the JSON document. Not closed by this class.
+	 * @throws IllegalArgumentException
+	 */
+	public UserCookieJsonParser(final Reader reader) {
+		if (reader == null) {
+			throw new IllegalArgumentException("reader == null");
+		}
+		this.reader = reader;
+	}
+
+	/**
+	 * Reads the document up to the end of the user object.
+	 * 
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 *             If the JSON is malformed or contains no user object.
+	 */
+	public void parse() throws IOException {
+		expect('{', nextNonWhitespace());
+		readObject(ROOT);
+		if (!userFound) {
+			throw new IllegalArgumentException("JSON has no user object");
+		}
+	}
+
+	/**
+	 * @return user.principal or null if not present.
+	 */
+	public String getPrincipal() {
+		return principal;
+	}
+
+	/**
+	 * @return user.properties.firstName or null if not present.
+	 */
+	public String getFirstName() {
+		return firstName;
+	}
+
+	/**
+	 * @return user.properties.lastName or null if not present.
+	 */
+	public String getLastName() {
+		return lastName;
+	}
+
+	/**
+	 * @return user.properties.email or null if not present.
+	 */
+	public String getEmail() {
+		return email;
+	}
+
+	/**
+	 * Reads members of an object whose opening brace has been consumed.
+	 * 
+	 * @return true if reading should stop; i.e. the user object was read.
+	 */
+	private boolean readObject(final int context) throws IOException {
+		while (true) {
+			int c = nextNonWhitespace();
+			if (c == '}') {
+				return false;
+			}
+			if (c == ',') {
+				continue;
+			}
+			expect('"', c);
+			readKey();
+			expect(':', nextNonWhitespace());
+			c = nextNonWhitespace();
+			if (context == ROOT && c == '{' && isKey("user")) {
+				userFound = true;
+				readObject(USER);
+				return true;
+			} else if (context == USER && c == '{' && isKey("properties")) {
+				readObject(PROPERTIES);
+			} else if (context == USER && isKey("principal")) {
+				principal = readScalar(c);
+			} else if (context == PROPERTIES && isKey("firstName")) {
+				firstName = readScalar(c);
+			} else if (context == PROPERTIES && isKey("lastName")) {
+				lastName = readScalar(c);
+			} else if (context == PROPERTIES && isKey("email")) {
+				email = readScalar(c);
+			} else {
+				skipValue(c);
+			}
+		}
+	}
+
+	private boolean isKey(final String name) {
+		if (key.length() != name.length()) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			if (key.charAt(i) != name.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void readKey() throws IOException {
+		key.setLength(0);
+		readString(key);
+	}
+
+	/**
+	 * @param c
+	 *            first character of the value.
+	 * @return value as text; null for JSON null, objects and arrays.
+	 */
+	private String readScalar(final int c) throws IOException {
+		if (c == '"') {
+			final StringBuilder value = new StringBuilder();
+			readString(value);
+			return value.toString();
+		}
+		if (c == '{' || c == '[') {
+			skipValue(c);
+			return null;
+		}
+		final StringBuilder value = new StringBuilder();
+		value.append((char) c);
+		int next = read();
+		while (!isDelimiter(next)) {
+			value.append((char) next);
+			next = read();
+		}
+		unread(next);
+		final String literal = value.toString();
+		return "null".equals(literal) ? null : literal;
+	}
+
+	/**
+	 * Reads a string whose opening quote has been consumed. Pass null to skip
+	 * it.
+	 */
+	private void readString(final StringBuilder out) throws IOException {
+		while (true) {
+			final int c = readRequired();
+			if (c == '"') {
+				return;
+			}
+			if (c == '\\') {
+				final int escaped = readRequired();
+				if (out != null) {
+					out.append(unescape(escaped));
+				} else if (escaped == 'u') {
+					unescape(escaped);
+				}
+			} else if (out != null) {
+				out.append((char) c);
+			}
+		}
+	}
+
+	private char unescape(final int escaped) throws IOException {
+		switch (escaped) {
+		case 'b':
+			return '\b';
+		case 'f':
+			return '\f';
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		case 'u':
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				final int digit = Character.digit(readRequired(), 16);
+				if (digit < 0) {
+					throw new IllegalArgumentException(
+							"Malformed unicode escape in JSON");
+				}
+				value = (value << 4) + digit;
+			}
+			return (char) value;
+		default:
+			return (char) escaped;
+		}
+	}
+
+	/**
+	 * Skips a value without keeping any of it.
+	 * 
+	 * @param c
+	 *            first character of the value.
+	 */
+	private void skipValue(final int c) throws IOException {
+		if (c == '"') {
+			readString(null);
+		} else if (c == '{' || c == '[') {
+			int depth = 1;
+			while (depth > 0) {
+				final int next = readRequired();
+				if (next == '"') {
+					readString(null);
+				} else if (next == '{' || next == '[') {
+					depth++;
+				} else if (next == '}' || next == ']') {
+					depth--;
+				}
+			}
+		} else {
+			int next = read();
+			while (!isDelimiter(next)) {
+				next = read();
+			}
+			unread(next);
+		}
+	}
+
+	private static boolean isDelimiter(final int c) {
+		return c == EOF || c == ',' || c == '}' || c == ']'
+				|| Character.isWhitespace(c);
+	}
+
+	private static void expect(final char expected, final int actual) {
+		if (actual != expected) {
+			throw new IllegalArgumentException("Malformed JSON: expected '"
+					+ expected + "'");
+		}
+	}
+
+	private int nextNonWhitespace() throws IOException {
+		int c = readRequired();
+		while (Character.isWhitespace(c)) {
+			c = readRequired();
+		}
+		return c;
+	}
+
+	private int readRequired() throws IOException {
+		final int c = read();
+		if (c == EOF) {
+			throw new IllegalArgumentException("Unexpected end of JSON");
+		}
+		return c;
+	}
+
+	private int read() throws IOException {
+		if (position == limit) {
+			limit = reader.read(buffer, 0, buffer.length);
+			position = 0;
+			if (limit <= 0) {
+				limit = 0;
+				return EOF;
+			}
+		}
+		return buffer[position++];
+	}
+
+	/**
+	 * Push back the character just returned by {@link #read()}.
+	 */
+	private void unread(final int c) {
+		if (c != EOF) {
+			position--;
+		}
+	}
+}
@@ -18,8 +18,19 @@
 package org.sakaiproject.hybrid.util;
 
 import java.security.InvalidKeyException;
-import java.security.SecureRandom;
 import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -40,15 +51,84 @@ public class XSakaiToken {
 	public static final String X_SAKAI_TOKEN_HEADER = "x-sakai-token";
 	public static final String CONFIG_PREFIX = "x.sakai.token";
 	public static final String CONFIG_SHARED_SECRET_SUFFIX = "sharedSecret";
+	/**
+	 * sakai.properties Optional key id to put in front of tokens minted for
+	 * a host, e.g. <code>x.sakai.token.localhost.keyId=2011b</code>, so the
+	 * receiver can pick the matching secret during a rotation.
+	 */
+	public static final String CONFIG_KEY_ID_SUFFIX = "keyId";
 	public static final String TOKEN_SEPARATOR = ";";
+	private static final char TOKEN_SEPARATOR_CHAR = ';';
+	/**
+	 * Tokens longer than this are rejected without being parsed.
+	 */
+	public static final int MAX_TOKEN_LENGTH = 1024;
+	/**
+	 * sakai.properties Seconds a verified token is remembered so that repeat
+	 * requests skip the HMAC. 0 (the default) disables the cache.
+	 */
+	public static final String CONFIG_VERIFIED_CACHE_TTL = CONFIG_PREFIX
+			+ ".verifiedCache.ttl";
+	/**
+	 * sakai.properties Maximum number of remembered verified tokens.
+	 */
+	public static final String CONFIG_VERIFIED_CACHE_MAX_ENTRIES = CONFIG_PREFIX
+			+ ".verifiedCache.maxEntries";
+	/**
+	 * sakai.properties Optional list of hostnames with a shared secret,
+	 * resolved up front and reported by {@link #getConfiguredHosts()}. Uses
+	 * the usual <code>.count</code> / <code>.1</code>... list syntax.
+	 */
+	public static final String CONFIG_HOSTS = CONFIG_PREFIX + ".hosts";
+	/**
+	 * sakai.properties Seconds resolved shared secrets are kept before they
+	 * are read from configuration again, so that a rotated secret is picked
+	 * up without a restart. 0 keeps them until
+	 * {@link #reloadSharedSecrets()} is called.
+	 */
+	public static final String CONFIG_SECRET_CACHE_TTL = CONFIG_PREFIX
+			+ ".secretCache.ttl";
+	/**
+	 * Default for {@link #CONFIG_SECRET_CACHE_TTL}
+	 */
+	public static final int DEFAULT_SECRET_CACHE_TTL = 60;
+	/**
+	 * Hosts without a secret that are remembered between reloads; any more
+	 * are looked up every time.
+	 */
+	private static final int MAX_MISSING_HOSTS = 1000;
+	/**
+	 * Default for {@link #CONFIG_VERIFIED_CACHE_MAX_ENTRIES}
+	 */
+	public static final int DEFAULT_VERIFIED_CACHE_MAX_ENTRIES = 1000;
 
 	protected transient Signature signature = new Signature();
-	private transient final SecureRandom secureRandom = new SecureRandom();
+	protected transient NonceGenerator nonceGenerator = new NonceGenerator();
 	// dependencies
 	protected transient ComponentManager componentManager;
 	protected transient ServerConfigurationService serverConfigurationService;
 	protected transient SessionManager sessionManager;
 
+	/**
+	 * Recently verified tokens mapped to their eid; null if disabled.
+	 * 
+	 * @see #CONFIG_VERIFIED_CACHE_TTL
+	 */
+	protected transient ExpiringCache<String, VerifiedToken> verifiedTokens;
+
+	/**
+	 * Resolved shared secrets and key ids; replaced as a whole on reload.
+	 */
+	private transient volatile HostSecrets hostSecrets;
+	/**
+	 * See {@link #CONFIG_SECRET_CACHE_TTL}; 0 if secrets never expire.
+	 */
+	private final transient long secretCacheTtlMillis;
+	/**
+	 * Set while a thread reloads expired secrets.
+	 */
+	private final transient AtomicBoolean reloading = new AtomicBoolean();
+
 	/**
 	 * @param componentManager
 	 *            Used to obtain references to
@@ -73,6 +153,23 @@ public class XSakaiToken {
 		if (sessionManager == null) {
 			throw new IllegalStateException("sessionManager == null");
 		}
+		final long ttlMillis = TimeUnit.SECONDS
+				.toMillis(serverConfigurationService.getInt(
+						CONFIG_VERIFIED_CACHE_TTL, 0));
+		if (ttlMillis > 0) {
+			int maxEntries = serverConfigurationService.getInt(
+					CONFIG_VERIFIED_CACHE_MAX_ENTRIES,
+					DEFAULT_VERIFIED_CACHE_MAX_ENTRIES);
+			if (maxEntries < 1) {
+				maxEntries = DEFAULT_VERIFIED_CACHE_MAX_ENTRIES;
+			}
+			verifiedTokens = new ExpiringCache<String, VerifiedToken>(
+					maxEntries, ttlMillis);
+		}
+		secretCacheTtlMillis = TimeUnit.SECONDS
+				.toMillis(serverConfigurationService.getInt(
+						CONFIG_SECRET_CACHE_TTL, DEFAULT_SECRET_CACHE_TTL));
+		reloadSharedSecrets();
 	}
 
 	/**
@@ -115,7 +212,8 @@ public class XSakaiToken {
 	 * Validate the token using the passed sharedSecret and return username.
 	 * 
 	 * @param token
-	 *            null values are acceptable.
+	 *            null values are acceptable. Tokens longer than
+	 *            {@link #MAX_TOKEN_LENGTH} are not valid.
 	 * @param sharedSecret
 	 * @return eid if valid. null if not valid.
 	 * @throws IllegalArgumentException
@@ -127,31 +225,147 @@ public class XSakaiToken {
 		}
 		@SuppressWarnings("PMD.DataflowAnomalyAnalysis")
 		String userId = null;
-		if (token != null) {
-			final String[] parts = token.split(TOKEN_SEPARATOR);
-			if (parts.length == 3) {
-				try {
-					final String hash = parts[0];
-					final String user = parts[1];
-					final String nonce = parts[2];
-					final String message = user + TOKEN_SEPARATOR + nonce;
-					final String hmac = signature.calculateRFC2104HMAC(message,
-							sharedSecret);
-					if (hmac.equals(hash)) {
-						// the user is Ok, we will trust it.
-						userId = user;
-					}
-				} catch (InvalidKeyException e) {
-					LOG.error("Failed to validate server token: " + token, e);
+		if (token != null && token.length() > MAX_TOKEN_LENGTH) {
+			LOG.error("Trusted server token too long: " + token.length()
+					+ " characters");
+		} else if (token != null) {
+			final VerifiedToken verified = verifiedTokens == null ? null
+					: verifiedTokens.get(token);
+			if (verified != null && verified.sharedSecret.equals(sharedSecret)) {
+				LOG.debug("verifiedTokens hit!");
+				userId = verified.eid;
+			} else {
+				userId = verify(token, sharedSecret);
+				if (userId != null && verifiedTokens != null) {
+					verifiedTokens.put(token, new VerifiedToken(userId,
+							sharedSecret));
+				}
+			}
+		}
+		return userId;
+	}
+
+	/**
+	 * Validate the token against the currently accepted secrets and return
+	 * username.
+	 * 
+	 * @param request
+	 * @param sharedSecrets
+	 * @return eid if valid. null if not valid.
+	 * @throws IllegalArgumentException
+	 * @see #getValidatedEid(String, SharedSecrets)
+	 */
+	public String getValidatedEid(final HttpServletRequest request,
+			final SharedSecrets sharedSecrets) {
+		LOG.debug("getValidatedEid(final HttpServletRequest request, final SharedSecrets sharedSecrets)");
+		if (request == null) {
+			throw new IllegalArgumentException("request == null");
+		}
+		return getValidatedEid(getToken(request), sharedSecrets);
+	}
+
+	/**
+	 * Validate the token against the currently accepted secrets and return
+	 * username. A token with a key id is checked with that key only, so a
+	 * rotation costs nothing per request; one without is tried against
+	 * {@link SharedSecrets#getTrialSecrets()} in order.
+	 * 
+	 * @param token
+	 *            null values are acceptable.
+	 * @param sharedSecrets
+	 * @return eid if valid. null if not valid, or if the key id is unknown.
+	 * @throws IllegalArgumentException
+	 */
+	@SuppressWarnings("PMD.DataflowAnomalyAnalysis")
+	public String getValidatedEid(final String token,
+			final SharedSecrets sharedSecrets) {
+		LOG.debug("getValidatedEid(final String token, final SharedSecrets sharedSecrets)");
+		if (sharedSecrets == null) {
+			throw new IllegalArgumentException("sharedSecrets == null");
+		}
+		String userId = null;
+		if (token != null && token.length() > MAX_TOKEN_LENGTH) {
+			LOG.error("Trusted server token too long: " + token.length()
+					+ " characters");
+		} else if (token != null) {
+			final int hashStart = hashStart(token, token
+					.indexOf(TOKEN_SEPARATOR_CHAR));
+			if (hashStart > 0) {
+				final String sharedSecret = sharedSecrets.getSecret(token
+						.substring(0, hashStart - 1));
+				if (sharedSecret == null) {
+					LOG.error("Unknown key id in trusted server token: "
+							+ token);
+				} else {
+					userId = getValidatedEid(token, sharedSecret);
 				}
 			} else {
-				LOG.error("Illegal number of elements in trusted server token: "
-						+ token);
+				for (String sharedSecret : sharedSecrets.getTrialSecrets()) {
+					userId = getValidatedEid(token, sharedSecret);
+					if (userId != null) {
+						break;
+					}
+				}
+			}
+		}
+		return userId;
+	}
+
+	/**
+	 * Parse the token in a single pass and check its HMAC.
+	 * 
+	 * @param token
+	 *            [keyId:]hash;user;nonce - the signed message is user;nonce,
+	 *            which is verified in place.
+	 * @param sharedSecret
+	 * @return eid if valid. null if not valid.
+	 */
+	@SuppressWarnings("PMD.DataflowAnomalyAnalysis")
+	private String verify(final String token, final String sharedSecret) {
+		String userId = null;
+		final int hashEnd = token.indexOf(TOKEN_SEPARATOR_CHAR);
+		final int hashStart = hashStart(token, hashEnd);
+		final int userEnd = hashEnd < 0 ? -1 : token.indexOf(
+				TOKEN_SEPARATOR_CHAR, hashEnd + 1);
+		if (userEnd < 0 || token.indexOf(TOKEN_SEPARATOR_CHAR, userEnd + 1) >= 0) {
+			LOG.error("Illegal number of elements in trusted server token: "
+					+ token);
+		} else {
+			try {
+				if (signature.verifyRFC2104HMAC(token, hashEnd + 1, token
+						.length(), sharedSecret, token, hashStart, hashEnd,
+						false)) {
+					// the user is Ok, we will trust it.
+					userId = token.substring(hashEnd + 1, userEnd);
+				}
+			} catch (InvalidKeyException e) {
+				LOG.error("Failed to validate server token: " + token, e);
 			}
 		}
 		return userId;
 	}
 
+	/**
+	 * @param token
+	 * @param hashEnd
+	 *            Index of the first separator.
+	 * @return index after the key id prefix, or 0 if there is none.
+	 */
+	private static int hashStart(final String token, final int hashEnd) {
+		final int keyIdEnd = token.indexOf(SharedSecrets.KEY_ID_SEPARATOR);
+		return keyIdEnd >= 0 && (keyIdEnd < hashEnd || hashEnd < 0) ? keyIdEnd + 1
+				: 0;
+	}
+
+	/**
+	 * Exposed for monitoring; e.g. hit and miss counts.
+	 * 
+	 * @return the verified token cache or null if it is disabled.
+	 */
+	public ExpiringCache<String, VerifiedToken> getVerifiedTokenCache() {
+		return verifiedTokens;
+	}
+
 	/**
 	 * This is the preferred signature for the createToken methods as it looks
 	 * up the current userId from the current session. Therefore it is a little
@@ -201,11 +415,75 @@ public class XSakaiToken {
 		if (eid == null || "".equals(eid)) {
 			throw new IllegalArgumentException("eid == null OR empty");
 		}
-		final String sharedSecret = getSharedSecret(hostname);
-		final String token = signMessage(sharedSecret, eid);
+		final HostSecret hostSecret = resolve(hostname);
+		final String token = signMessage(hostSecret.sharedSecret,
+				hostSecret.keyId, eid);
 		return token;
 	}
 
+	/**
+	 * Mint tokens for many users of the same host at once, e.g. for
+	 * background jobs that call Nakamura on behalf of each user. The shared
+	 * secret is looked up once, one prepared Mac signs every token and the
+	 * nonces are drawn in one request. Safe to call from many threads at
+	 * once.
+	 * 
+	 * @param hostname
+	 *            Fully qualified domain name or an IP address. See:
+	 *            {@link #getSharedSecret(String)}.
+	 * @param eids
+	 *            Enterprise user ids; usually usernames.
+	 * @return tokens, in the iteration order of eids.
+	 * @throws IllegalArgumentException
+	 *             Also if an eid is null or empty, or no shared secret is
+	 *             defined for hostname.
+	 * @throws IllegalStateException
+	 *             Wraps {@link InvalidKeyException}.
+	 */
+	public List<String> createTokens(final String hostname,
+			final Collection<String> eids) {
+		LOG.debug("createTokens(final String hostname, final Collection<String> eids)");
+		if (hostname == null || "".equals(hostname)) {
+			throw new IllegalArgumentException("hostname == null OR empty");
+		}
+		if (eids == null) {
+			throw new IllegalArgumentException("eids == null");
+		}
+		for (String eid : eids) {
+			if (eid == null || "".equals(eid)) {
+				throw new IllegalArgumentException("eid == null OR empty");
+			}
+		}
+		final HostSecret hostSecret = resolve(hostname);
+		final String sharedSecret = hostSecret.sharedSecret;
+		if (sharedSecret == null || "".equals(sharedSecret)) {
+			throw new IllegalArgumentException("sharedSecret == null OR empty");
+		}
+		final long[] nonces = new long[eids.size()];
+		nonceGenerator.nextLongs(nonces);
+		final List<String> messages = new ArrayList<String>(nonces.length);
+		int i = 0;
+		for (String eid : eids) {
+			messages.add(eid + TOKEN_SEPARATOR + nonces[i++]);
+		}
+		final List<String> hashes;
+		try {
+			hashes = signature.calculateRFC2104HMACsWithEncoding(messages,
+					sharedSecret, false);
+		} catch (InvalidKeyException e) {
+			throw new IllegalStateException(e);
+		}
+		final String keyId = hostSecret.keyId;
+		final String prefix = keyId == null ? "" : keyId
+				+ SharedSecrets.KEY_ID_SEPARATOR;
+		final List<String> tokens = new ArrayList<String>(nonces.length);
+		for (i = 0; i < nonces.length; i++) {
+			tokens.add(prefix + hashes.get(i) + TOKEN_SEPARATOR
+					+ messages.get(i));
+		}
+		return tokens;
+	}
+
 	/**
 	 * Compute hash based on sharedSecret and eid.
 	 * 
@@ -222,6 +500,35 @@ public class XSakaiToken {
 	 */
 	public String signMessage(final String sharedSecret, final String eid) {
 		LOG.debug("signMessage(final String sharedSecret, final String eid)");
+		return signMessage(sharedSecret, null, eid);
+	}
+
+	/**
+	 * Compute hash based on sharedSecret and eid, and put keyId in front of
+	 * it.
+	 * 
+	 * @param sharedSecret
+	 * @param keyId
+	 *            Identifies sharedSecret to the receiver; null for none.
+	 * @param eid
+	 *            Enterprise user id; usually a username.
+	 * @return Fully computed token.
+	 * @throws IllegalArgumentException
+	 *             Also if keyId is empty or contains a separator.
+	 * @throws IllegalStateException
+	 *             Wraps {@link SignatureException} into a
+	 *             {@link RuntimeException}.
+	 */
+	public String signMessage(final String sharedSecret, final String keyId,
+			final String eid) {
+		LOG.debug("signMessage(final String sharedSecret, final String keyId, final String eid)");
+		if (keyId != null
+				&& ("".equals(keyId)
+						|| keyId.indexOf(SharedSecrets.KEY_ID_SEPARATOR) >= 0 || keyId
+						.indexOf(TOKEN_SEPARATOR_CHAR) >= 0)) {
+			throw new IllegalArgumentException(
+					"keyId empty OR contains a separator");
+		}
 		if (sharedSecret == null || "".equals(sharedSecret)) {
 			throw new IllegalArgumentException("sharedSecret == null OR empty");
 		}
@@ -230,11 +537,13 @@ public class XSakaiToken {
 		}
 		@SuppressWarnings("PMD.DataflowAnomalyAnalysis")
 		String token = null;
-		final String message = eid + TOKEN_SEPARATOR + secureRandom.nextLong();
+		final String message = eid + TOKEN_SEPARATOR + nonceGenerator.nextLong();
 		try {
 			final String hash = signature.calculateRFC2104HMAC(message,
 					sharedSecret);
-			token = hash + TOKEN_SEPARATOR + message;
+			token = keyId == null ? hash + TOKEN_SEPARATOR + message : keyId
+					+ SharedSecrets.KEY_ID_SEPARATOR + hash + TOKEN_SEPARATOR
+					+ message;
 		} catch (InvalidKeyException e) {
 			throw new IllegalStateException(e);
 		}
@@ -245,6 +554,10 @@ public class XSakaiToken {
 	 * Look up a sharedSecret from sakai.properties. For example:<br/>
 	 * <code>x.sakai.token.server.domain.name.sharedSecret=yourSecret</code> or <br/>
 	 * <code>x.sakai.token.127.0.0.1.sharedSecret=yourSecret</code>
+	 * <p>
+	 * Results, including hosts without a secret, are cached for
+	 * {@link #CONFIG_SECRET_CACHE_TTL} or until {@link #reloadSharedSecrets()}
+	 * is called.
 	 * 
 	 * @param hostname
 	 *            Fully qualified domain name or an IP address.
@@ -253,14 +566,187 @@ public class XSakaiToken {
 	 */
 	public String getSharedSecret(final String hostname) {
 		LOG.debug("getSharedSecret(final String hostname)");
+		return resolve(hostname).sharedSecret;
+	}
+
+	/**
+	 * Forget all cached shared secrets and resolve the hosts listed in
+	 * {@link #CONFIG_HOSTS} again. Call after sakai.properties has been
+	 * reloaded; otherwise this happens every {@link #CONFIG_SECRET_CACHE_TTL}.
+	 * Lookups keep using the previous secrets until the new ones are
+	 * complete.
+	 */
+	public final void reloadSharedSecrets() {
+		LOG.debug("reloadSharedSecrets()");
+		final HostSecrets reloaded = new HostSecrets(currentTimeMillis());
+		final String[] hosts = serverConfigurationService
+				.getStrings(CONFIG_HOSTS);
+		if (hosts != null) {
+			for (String hostname : hosts) {
+				if (hostname != null && !"".equals(hostname)) {
+					reloaded.add(hostname, lookupHostSecret(hostname));
+				}
+			}
+		}
+		hostSecrets = reloaded;
+	}
+
+	/**
+	 * See {@link #CONFIG_KEY_ID_SUFFIX}.
+	 * 
+	 * @param hostname
+	 * @return key id to put in front of tokens for hostname; null if none.
+	 * @throws IllegalArgumentException
+	 */
+	public String getKeyId(final String hostname) {
+		LOG.debug("getKeyId(final String hostname)");
+		return resolve(hostname).keyId;
+	}
+
+	/**
+	 * @return hostnames currently known to have a shared secret: those
+	 *         listed in {@link #CONFIG_HOSTS} plus any resolved since.
+	 */
+	public Set<String> getConfiguredHosts() {
+		final Set<String> hosts = new TreeSet<String>();
+		for (Map.Entry<String, HostSecret> entry : currentHostSecrets().byHost
+				.entrySet()) {
+			if (entry.getValue().sharedSecret != null) {
+				hosts.add(entry.getKey());
+			}
+		}
+		return Collections.unmodifiableSet(hosts);
+	}
+
+	/**
+	 * Overridable for unit testing.
+	 * 
+	 * @return the current time in milliseconds.
+	 */
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * @param hostname
+	 * @return the secret and key id of hostname, both from the same
+	 *         configuration snapshot.
+	 * @throws IllegalArgumentException
+	 */
+	private HostSecret resolve(final String hostname) {
 		if (hostname == null || "".equals(hostname)) {
 			throw new IllegalArgumentException("hostname == null OR empty");
 		}
-		final String key = CONFIG_PREFIX + "." + hostname + "."
-				+ CONFIG_SHARED_SECRET_SUFFIX;
-		final String sharedSecret = serverConfigurationService.getString(key,
+		final HostSecrets current = currentHostSecrets();
+		HostSecret hostSecret = current.byHost.get(hostname);
+		if (hostSecret == null) {
+			hostSecret = current.add(hostname, lookupHostSecret(hostname));
+		}
+		return hostSecret;
+	}
+
+	/**
+	 * @return the current snapshot, reloaded first if it is older than
+	 *         {@link #CONFIG_SECRET_CACHE_TTL}.
+	 */
+	private HostSecrets currentHostSecrets() {
+		final HostSecrets current = hostSecrets;
+		if (secretCacheTtlMillis <= 0
+				|| currentTimeMillis() - current.loadedAt < secretCacheTtlMillis) {
+			return current;
+		}
+		// only one thread reloads; the others keep using the old snapshot
+		if (reloading.compareAndSet(false, true)) {
+			try {
+				if (hostSecrets == current) {
+					reloadSharedSecrets();
+				}
+			} finally {
+				reloading.set(false);
+			}
+		}
+		return hostSecrets;
+	}
+
+	private HostSecret lookupHostSecret(final String hostname) {
+		final String sharedSecret = serverConfigurationService.getString(
+				CONFIG_PREFIX + "." + hostname + "."
+						+ CONFIG_SHARED_SECRET_SUFFIX, null);
+		if (sharedSecret == null) {
+			return HostSecret.MISSING;
+		}
+		final String keyId = serverConfigurationService.getString(
+				CONFIG_PREFIX + "." + hostname + "." + CONFIG_KEY_ID_SUFFIX,
 				null);
-		return sharedSecret;
+		return new HostSecret(sharedSecret, "".equals(keyId) ? null : keyId);
+	}
+
+	/**
+	 * A host's shared secret together with its key id, so that the two are
+	 * always read from the same configuration.
+	 */
+	private static final class HostSecret {
+		/**
+		 * A host without a shared secret.
+		 */
+		static final HostSecret MISSING = new HostSecret(null, null);
+
+		private final transient String sharedSecret;
+		private final transient String keyId;
+
+		HostSecret(final String sharedSecret, final String keyId) {
+			this.sharedSecret = sharedSecret;
+			this.keyId = keyId;
+		}
+	}
+
+	/**
+	 * The hosts resolved since one reload. Replaced as a whole, never
+	 * cleared, so a lookup never sees half of a reload.
+	 */
+	private static final class HostSecrets {
+		private final transient long loadedAt;
+		private final transient ConcurrentMap<String, HostSecret> byHost = new ConcurrentHashMap<String, HostSecret>();
+		private final transient AtomicInteger missing = new AtomicInteger();
+
+		HostSecrets(final long loadedAt) {
+			this.loadedAt = loadedAt;
+		}
+
+		/**
+		 * @param hostname
+		 * @param hostSecret
+		 * @return the entry now cached for hostname, or hostSecret if it is
+		 *         not cached.
+		 */
+		HostSecret add(final String hostname, final HostSecret hostSecret) {
+			if (hostSecret == HostSecret.MISSING
+					&& missing.incrementAndGet() > MAX_MISSING_HOSTS) {
+				return hostSecret;
+			}
+			final HostSecret existing = byHost.putIfAbsent(hostname,
+					hostSecret);
+			return existing == null ? hostSecret : existing;
+		}
 	}
 
+	/**
+	 * The eid a token was verified for, and the secret it was verified with.
+	 */
+	public static final class VerifiedToken {
+		private final transient String eid;
+		private final transient String sharedSecret;
+
+		VerifiedToken(final String eid, final String sharedSecret) {
+			this.eid = eid;
+			this.sharedSecret = sharedSecret;
+		}
+
+		/**
+		 * @return the eid
+		 */
+		public String getEid() {
+			return eid;
+		}
+	}
 }
@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.hybrid.util.CircuitBreaker.State;
+
+/**
+ * Unit tests for {@link CircuitBreaker}.
+ */
+public class CircuitBreakerTest {
+	private static final long OPEN_MILLIS = 1000L;
+	private long now = 0L;
+	private CircuitBreaker circuitBreaker;
+
+	@Before
+	public void setUp() throws Exception {
+		circuitBreaker = new CircuitBreaker("test", 4, 50, OPEN_MILLIS) {
+			@Override
+			protected long currentTimeMillis() {
+				return now;
+			}
+		};
+	}
+
+	/**
+	 * The breaker should not open until the window is full.
+	 */
+	@Test
+	public void testStaysClosedUntilWindowFull() {
+		circuitBreaker.recordFailure();
+		circuitBreaker.recordFailure();
+		circuitBreaker.recordFailure();
+		assertEquals(State.CLOSED, circuitBreaker.getState());
+		assertTrue(circuitBreaker.allowRequest());
+	}
+
+	/**
+	 * Below the threshold the breaker stays closed.
+	 */
+	@Test
+	public void testStaysClosedBelowThreshold() {
+		circuitBreaker.recordFailure();
+		for (int i = 0; i < 10; i++) {
+			circuitBreaker.recordSuccess();
+		}
+		circuitBreaker.recordFailure();
+		assertEquals(State.CLOSED, circuitBreaker.getState());
+	}
+
+	/**
+	 * CLOSED -> OPEN -> HALF_OPEN -> CLOSED
+	 */
+	@Test
+	public void testOpenHalfOpenClosed() {
+		circuitBreaker.recordSuccess();
+		circuitBreaker.recordSuccess();
+		circuitBreaker.recordFailure();
+		circuitBreaker.recordFailure();
+		assertEquals(State.OPEN, circuitBreaker.getState());
+		assertFalse(circuitBreaker.allowRequest());
+		now = OPEN_MILLIS;
+		// exactly one probe is let through
+		assertTrue(circuitBreaker.allowRequest());
+		assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+		assertFalse(circuitBreaker.allowRequest());
+		circuitBreaker.recordSuccess();
+		assertEquals(State.CLOSED, circuitBreaker.getState());
+		assertTrue(circuitBreaker.allowRequest());
+	}
+
+	/**
+	 * A failed probe re-opens the breaker for another period.
+	 */
+	@Test
+	public void testFailedProbeReopens() {
+		for (int i = 0; i < 4; i++) {
+			circuitBreaker.recordFailure();
+		}
+		now = OPEN_MILLIS;
+		assertTrue(circuitBreaker.allowRequest());
+		circuitBreaker.recordFailure();
+		assertEquals(State.OPEN, circuitBreaker.getState());
+		now = OPEN_MILLIS * 2 - 1;
+		assertFalse(circuitBreaker.allowRequest());
+		now = OPEN_MILLIS * 2;
+		assertTrue(circuitBreaker.allowRequest());
+	}
+
+	/**
+	 * @see CircuitBreaker#acquirePermission()
+	 */
+	@Test(expected = CircuitBreaker.OpenException.class)
+	public void testAcquirePermissionOpen() {
+		for (int i = 0; i < 4; i++) {
+			circuitBreaker.recordFailure();
+		}
+		circuitBreaker.acquirePermission();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadWindowSize() {
+		new CircuitBreaker("test", 0, 50, OPEN_MILLIS);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadFailureRate() {
+		new CircuitBreaker("test", 4, 101, OPEN_MILLIS);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadOpenMillis() {
+		new CircuitBreaker("test", 4, 50, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNullName() {
+		new CircuitBreaker(null, 4, 50, OPEN_MILLIS);
+	}
+}
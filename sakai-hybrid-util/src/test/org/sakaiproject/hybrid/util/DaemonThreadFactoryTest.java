@@ -0,0 +1,57 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link DaemonThreadFactory}.
+ */
+public class DaemonThreadFactoryTest {
+
+	/**
+	 * @see DaemonThreadFactory#newThread(Runnable)
+	 */
+	@Test
+	public void testNewThread() {
+		final DaemonThreadFactory factory = new DaemonThreadFactory("test");
+		final Runnable runnable = new Runnable() {
+			public void run() {
+				// nothing to do
+			}
+		};
+		final Thread thread1 = factory.newThread(runnable);
+		final Thread thread2 = factory.newThread(runnable);
+		assertTrue(thread1.isDaemon());
+		assertEquals("test-1", thread1.getName());
+		assertEquals("test-2", thread2.getName());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNullPrefix() {
+		new DaemonThreadFactory(null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmptyPrefix() {
+		new DaemonThreadFactory("");
+	}
+}
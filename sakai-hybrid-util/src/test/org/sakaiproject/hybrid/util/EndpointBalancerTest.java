@@ -0,0 +1,188 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.hybrid.util.EndpointBalancer.Endpoint;
+
+/**
+ * Unit tests for {@link EndpointBalancer}.
+ */
+public class EndpointBalancerTest {
+	private static final long OPEN_MILLIS = 1000L;
+	private long now = 0L;
+	private List<Endpoint> endpoints;
+	private EndpointBalancer endpointBalancer;
+
+	@Before
+	public void setUp() throws Exception {
+		endpoints = new ArrayList<Endpoint>();
+		for (String url : new String[] { "http://a/", "http://b/",
+				"http://c/" }) {
+			endpoints.add(new Endpoint(url, new CircuitBreaker(url, 2, 100,
+					OPEN_MILLIS) {
+				@Override
+				protected long currentTimeMillis() {
+					return now;
+				}
+			}));
+		}
+		endpointBalancer = new EndpointBalancer(endpoints);
+	}
+
+	/**
+	 * Idle endpoints are used round robin.
+	 */
+	@Test
+	public void testRoundRobinWhenIdle() {
+		for (int i = 0; i < 6; i++) {
+			final Endpoint endpoint = endpointBalancer.acquire();
+			assertEquals(endpoints.get(i % 3), endpoint);
+			endpointBalancer.release(endpoint, false);
+		}
+	}
+
+	/**
+	 * Busy endpoints are avoided.
+	 */
+	@Test
+	public void testLeastOutstanding() {
+		final Endpoint a = endpointBalancer.acquire();
+		final Endpoint b = endpointBalancer.acquire();
+		assertEquals(endpoints.get(0), a);
+		assertEquals(endpoints.get(1), b);
+		endpointBalancer.release(a, false);
+		// c and a are idle, b is busy; start of rotation is c
+		assertEquals(endpoints.get(2), endpointBalancer.acquire());
+		assertEquals(endpoints.get(0), endpointBalancer.acquire());
+		assertEquals(1, b.getOutstanding());
+	}
+
+	/**
+	 * A failing endpoint is ejected and later re-admitted.
+	 */
+	@Test
+	public void testEjectAndReadmit() {
+		final Endpoint b = endpoints.get(1);
+		b.getCircuitBreaker().recordFailure();
+		b.getCircuitBreaker().recordFailure();
+		for (int i = 0; i < 6; i++) {
+			final Endpoint endpoint = endpointBalancer.acquire();
+			assertTrue(endpoint != b);
+			endpointBalancer.release(endpoint, false);
+		}
+		now += OPEN_MILLIS;
+		Endpoint probe = null;
+		for (int i = 0; i < 3 && probe != b; i++) {
+			probe = endpointBalancer.acquire();
+			endpointBalancer.release(probe, false);
+		}
+		assertEquals(b, probe);
+		assertEquals(CircuitBreaker.State.CLOSED, b.getCircuitBreaker()
+				.getState());
+	}
+
+	/**
+	 * With every endpoint ejected callers fail fast.
+	 */
+	@Test(expected = CircuitBreaker.OpenException.class)
+	public void testAllEjected() {
+		for (Endpoint endpoint : endpoints) {
+			endpoint.getCircuitBreaker().recordFailure();
+			endpoint.getCircuitBreaker().recordFailure();
+		}
+		endpointBalancer.acquire();
+	}
+
+	/**
+	 * A retry never goes back to the excluded endpoint.
+	 * 
+	 * @see EndpointBalancer#acquire(Endpoint)
+	 */
+	@Test
+	public void testAcquireExcluding() {
+		final Endpoint a = endpoints.get(0);
+		for (int i = 0; i < 6; i++) {
+			final Endpoint endpoint = endpointBalancer.acquire(a);
+			assertTrue(endpoint != a);
+			endpointBalancer.release(endpoint, false);
+		}
+	}
+
+	/**
+	 * With every other endpoint ejected a retry fails fast.
+	 * 
+	 * @see EndpointBalancer#acquire(Endpoint)
+	 */
+	@Test(expected = CircuitBreaker.OpenException.class)
+	public void testAcquireExcludingOthersEjected() {
+		for (Endpoint endpoint : endpoints.subList(1, endpoints.size())) {
+			endpoint.getCircuitBreaker().recordFailure();
+			endpoint.getCircuitBreaker().recordFailure();
+		}
+		endpointBalancer.acquire(endpoints.get(0));
+	}
+
+	/**
+	 * Failures reported through release count against the endpoint.
+	 */
+	@Test
+	public void testReleaseFailure() {
+		final Endpoint a = endpointBalancer.acquire();
+		endpointBalancer.release(a, true);
+		endpointBalancer.release(endpointBalancer.acquire(), false);
+		endpointBalancer.release(endpointBalancer.acquire(), false);
+		final Endpoint again = endpointBalancer.acquire();
+		assertEquals(a, again);
+		endpointBalancer.release(again, true);
+		assertEquals(CircuitBreaker.State.OPEN, a.getCircuitBreaker()
+				.getState());
+		assertEquals(0, a.getOutstanding());
+	}
+
+	/**
+	 * @see EndpointBalancer#EndpointBalancer(List)
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoEndpoints() {
+		new EndpointBalancer(new ArrayList<Endpoint>());
+	}
+
+	/**
+	 * @see EndpointBalancer#release(Endpoint, boolean)
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testReleaseNull() {
+		endpointBalancer.release(null, false);
+	}
+
+	/**
+	 * @see Endpoint#Endpoint(String, CircuitBreaker)
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testEndpointNullCircuitBreaker() {
+		new Endpoint("http://a/", null);
+	}
+}
@@ -0,0 +1,222 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ExpiringCache}.
+ */
+public class ExpiringCacheTest {
+	private static final long TTL = 1000L;
+	private long now = 0L;
+	private ExpiringCache<String, String> cache;
+	private final Map<String, String> evicted = new HashMap<String, String>();
+
+	@Before
+	public void setUp() throws Exception {
+		cache = new MockClockCache(100, TTL);
+	}
+
+	/**
+	 * @see ExpiringCache#get(Object)
+	 */
+	@Test
+	public void testPutGet() {
+		assertNull(cache.get("key"));
+		cache.put("key", "value");
+		assertEquals("value", cache.get("key"));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.size());
+	}
+
+	/**
+	 * @see ExpiringCache#get(Object)
+	 */
+	@Test
+	public void testExpiration() {
+		cache.put("key", "value");
+		now = TTL - 1;
+		assertEquals("value", cache.get("key"));
+		now = TTL;
+		assertNull(cache.get("key"));
+		assertEquals(1, cache.getExpirationCount());
+		assertEquals(0, cache.size());
+	}
+
+	/**
+	 * @see ExpiringCache#getEntry(Object)
+	 */
+	@Test
+	public void testGetEntry() {
+		now = 42L;
+		cache.put("key", "value");
+		final ExpiringCache.Entry<String> entry = cache.getEntry("key");
+		assertNotNull(entry);
+		assertEquals("value", entry.getValue());
+		assertEquals(42L, entry.getCreated());
+	}
+
+	/**
+	 * Entries older than the given age are returned but counted as misses.
+	 * 
+	 * @see ExpiringCache#getEntry(Object, long)
+	 */
+	@Test
+	public void testGetEntryFresh() {
+		cache.put("key", "value");
+		now = 99L;
+		assertNotNull(cache.getEntry("key", 100L));
+		assertEquals(1, cache.getHitCount());
+		now = 100L;
+		assertNotNull(cache.getEntry("key", 100L));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertNull(cache.getEntry("missing", 100L));
+		assertEquals(2, cache.getMissCount());
+	}
+
+	/**
+	 * The cache should never hold more than maxEntries.
+	 */
+	@Test
+	public void testEviction() {
+		for (int i = 0; i < 1000; i++) {
+			cache.put("key" + i, "value" + i);
+		}
+		assertTrue(cache.size() <= 100);
+		assertTrue(cache.getEvictionCount() >= 1000 - 100);
+		// most recent entry must survive
+		assertEquals("value999", cache.get("key999"));
+	}
+
+	/**
+	 * The bound holds when maxEntries does not divide evenly over the
+	 * segments.
+	 */
+	@Test
+	public void testEvictionUnevenSegments() {
+		cache = new MockClockCache(37, TTL);
+		for (int i = 0; i < 1000; i++) {
+			cache.put("key" + i, "value" + i);
+		}
+		assertTrue(cache.size() <= 37);
+		assertEquals(1000 - cache.size(), cache.getEvictionCount());
+	}
+
+	/**
+	 * Entries dropped for size or age are passed to the eviction hook.
+	 * 
+	 * @see ExpiringCache#onEviction(Object, Object)
+	 */
+	@Test
+	public void testOnEviction() {
+		for (int i = 0; i < 1000; i++) {
+			cache.put("key" + i, "value" + i);
+		}
+		assertEquals(cache.getEvictionCount(), evicted.size());
+		for (Map.Entry<String, String> entry : evicted.entrySet()) {
+			assertNull(cache.get(entry.getKey()));
+			assertEquals(entry.getKey().replace("key", "value"),
+					entry.getValue());
+		}
+		evicted.clear();
+		cache.clear();
+		cache.put("key", "value");
+		now = TTL;
+		assertNull(cache.get("key"));
+		assertEquals("value", evicted.get("key"));
+	}
+
+	/**
+	 * Explicit removal does not call the eviction hook.
+	 * 
+	 * @see ExpiringCache#onEviction(Object, Object)
+	 */
+	@Test
+	public void testOnEvictionNotOnRemove() {
+		cache.put("key1", "value1");
+		cache.put("key2", "value2");
+		cache.put("key1", "value3");
+		cache.remove("key1");
+		cache.clear();
+		assertTrue(evicted.isEmpty());
+	}
+
+	/**
+	 * @see ExpiringCache#remove(Object)
+	 * @see ExpiringCache#clear()
+	 */
+	@Test
+	public void testRemoveClear() {
+		cache.put("key1", "value1");
+		cache.put("key2", "value2");
+		assertEquals("value1", cache.remove("key1"));
+		assertNull(cache.remove("key1"));
+		assertEquals(1, cache.size());
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertNotNull(cache.toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNullKey() {
+		cache.get(null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNullValue() {
+		cache.put("key", null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadMaxEntries() {
+		new ExpiringCache<String, String>(0, TTL);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadTtl() {
+		new ExpiringCache<String, String>(10, 0);
+	}
+
+	private class MockClockCache extends ExpiringCache<String, String> {
+		MockClockCache(final int maxEntries, final long ttlMillis) {
+			super(maxEntries, ttlMillis);
+		}
+
+		@Override
+		protected long currentTimeMillis() {
+			return now;
+		}
+
+		@Override
+		protected void onEviction(final String key, final String value) {
+			evicted.put(key, value);
+		}
+	}
+}
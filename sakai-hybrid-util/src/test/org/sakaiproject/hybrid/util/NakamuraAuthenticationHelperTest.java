@@ -18,33 +18,55 @@
 package org.sakaiproject.hybrid.util;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.sakaiproject.hybrid.test.TestHelper.disableLog4jDebug;
 import static org.sakaiproject.hybrid.test.TestHelper.enableLog4jDebug;
 
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.impl.client.BasicResponseHandler;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 import org.sakaiproject.component.api.ComponentManager;
 import org.sakaiproject.component.api.ServerConfigurationService;
 import org.sakaiproject.hybrid.util.NakamuraAuthenticationHelper.AuthInfo;
+import org.sakaiproject.hybrid.util.NakamuraAuthenticationHelper.AuthInfoResponseHandler;
 import org.sakaiproject.hybrid.util.NakamuraAuthenticationHelper.DefaultHttpClientProvider;
 import org.sakaiproject.hybrid.util.NakamuraAuthenticationHelper.HttpClientProvider;
+import org.sakaiproject.hybrid.util.NakamuraAuthenticationHelper.PooledHttpClientProvider;
 import org.sakaiproject.thread_local.api.ThreadLocalManager;
 import org.sakaiproject.tool.api.SessionManager;
 
@@ -170,7 +192,8 @@ public class NakamuraAuthenticationHelperTest {
 		nakamuraAuthenticationHelper.httpClientProvider = new MockHttpClientProvider();
 		when(
 				httpClient.execute(any(HttpUriRequest.class),
-						any(BasicResponseHandler.class))).thenReturn(MOCK_JSON);
+						any(ResponseHandler.class))).thenAnswer(
+				new JsonResponseAnswer(MOCK_JSON));
 		when(httpClient.getConnectionManager()).thenReturn(
 				clientConnectionManager);
 	}
@@ -186,6 +209,32 @@ public class NakamuraAuthenticationHelperTest {
 				MOCK_HOSTNAME);
 	}
 
+	/**
+	 * @see NakamuraAuthenticationHelper#NakamuraAuthenticationHelper(ComponentManager,
+	 *      String, String, String)
+	 */
+	@Test
+	public void testNakamuraAuthenticationHelperMultipleValidateUrls() {
+		nakamuraAuthenticationHelper = new NakamuraAuthenticationHelper(
+				componentManager, "http://node1/c=, http://node2/c=,",
+				MOCK_PRINCIPAL, MOCK_HOSTNAME);
+		final List<EndpointBalancer.Endpoint> endpoints = nakamuraAuthenticationHelper.endpoints
+				.getEndpoints();
+		assertEquals(2, endpoints.size());
+		assertEquals("http://node1/c=", endpoints.get(0).getUrl());
+		assertEquals("http://node2/c=", endpoints.get(1).getUrl());
+	}
+
+	/**
+	 * @see NakamuraAuthenticationHelper#NakamuraAuthenticationHelper(ComponentManager,
+	 *      String, String, String)
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testNakamuraAuthenticationHelperNoValidateUrls() {
+		nakamuraAuthenticationHelper = new NakamuraAuthenticationHelper(
+				componentManager, " , ", MOCK_PRINCIPAL, MOCK_HOSTNAME);
+	}
+
 	/**
 	 * @see NakamuraAuthenticationHelper#NakamuraAuthenticationHelper(ComponentManager,
 	 *      String, String, String)
@@ -348,8 +397,8 @@ public class NakamuraAuthenticationHelperTest {
 	public void testGetPrincipalLoggedIntoNakamuraHyb70() throws Exception {
 		when(
 				httpClient.execute(any(HttpUriRequest.class),
-						any(BasicResponseHandler.class))).thenReturn(
-				MOCK_JSON_NO_NAMES_NO_EMAIL);
+						any(ResponseHandler.class))).thenAnswer(
+				new JsonResponseAnswer(MOCK_JSON_NO_NAMES_NO_EMAIL));
 		AuthInfo authInfo = null;
 		authInfo = nakamuraAuthenticationHelper
 				.getPrincipalLoggedIntoNakamura(request);
@@ -367,8 +416,8 @@ public class NakamuraAuthenticationHelperTest {
 	public void testGetPrincipalLoggedIntoNakamuraHyb70A() throws Exception {
 		when(
 				httpClient.execute(any(HttpUriRequest.class),
-						any(BasicResponseHandler.class))).thenReturn(
-				MOCK_JSON_NO_PRINCIPAL);
+						any(ResponseHandler.class))).thenAnswer(
+				new JsonResponseAnswer(MOCK_JSON_NO_PRINCIPAL));
 		AuthInfo authInfo = nakamuraAuthenticationHelper
 				.getPrincipalLoggedIntoNakamura(request);
 		assertNotNull(authInfo);
@@ -382,8 +431,8 @@ public class NakamuraAuthenticationHelperTest {
 	public void testGetPrincipalLoggedIntoNakamuraAnonymous() throws Exception {
 		when(
 				httpClient.execute(any(HttpUriRequest.class),
-						any(BasicResponseHandler.class))).thenReturn(
-				MOCK_JSON_ANONYMOUS);
+						any(ResponseHandler.class))).thenAnswer(
+				new JsonResponseAnswer(MOCK_JSON_ANONYMOUS));
 		AuthInfo authInfo = nakamuraAuthenticationHelper
 				.getPrincipalLoggedIntoNakamura(request);
 		assertNotNull(authInfo);
@@ -398,8 +447,8 @@ public class NakamuraAuthenticationHelperTest {
 			throws Exception {
 		when(
 				httpClient.execute(any(HttpUriRequest.class),
-						any(BasicResponseHandler.class))).thenReturn(
-				MOCK_JSON_EMPTY_PRINCIPAL);
+						any(ResponseHandler.class))).thenAnswer(
+				new JsonResponseAnswer(MOCK_JSON_EMPTY_PRINCIPAL));
 		AuthInfo authInfo = nakamuraAuthenticationHelper
 				.getPrincipalLoggedIntoNakamura(request);
 		assertNotNull(authInfo);
@@ -425,6 +474,436 @@ public class NakamuraAuthenticationHelperTest {
 		assertTrue(mockAuthInfo == authInfo); // should be same object
 	}
 
+	/**
+	 * A second request with the same cookie should be served from the
+	 * cross-request cache without calling Nakamura again.
+	 * 
+	 * @see NakamuraAuthenticationHelper#getPrincipalLoggedIntoNakamura(HttpServletRequest)
+	 */
+	@Test
+	public void testGetPrincipalLoggedIntoNakamuraAuthInfoCacheHit()
+			throws Exception {
+		final AuthInfo authInfo1 = nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request);
+		final AuthInfo authInfo2 = nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request);
+		assertNotNull(authInfo1);
+		assertTrue(authInfo1 == authInfo2);
+		verify(httpClient, times(1)).execute(any(HttpUriRequest.class),
+				any(ResponseHandler.class));
+		assertEquals(1, nakamuraAuthenticationHelper.getAuthInfoCache()
+				.getHitCount());
+		assertEquals(1, nakamuraAuthenticationHelper.getAuthInfoCache()
+				.getMissCount());
+	}
+
+	/**
+	 * An entry past the refresh age is served immediately and reloaded in the
+	 * background.
+	 * 
+	 * @see NakamuraAuthenticationHelper#refreshIfAging(String,
+	 *      ExpiringCache.Entry)
+	 */
+	@Test
+	public void testGetPrincipalLoggedIntoNakamuraRefreshAhead()
+			throws Exception {
+		final AuthInfo authInfo1 = nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request);
+		nakamuraAuthenticationHelper.refreshAfterMillis = 0;
+		final AuthInfo authInfo2 = nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request);
+		assertTrue(authInfo1 == authInfo2);
+		awaitRefreshes();
+		verify(httpClient, times(2)).execute(any(HttpUriRequest.class),
+				any(ResponseHandler.class));
+		assertTrue(authInfo1 != nakamuraAuthenticationHelper
+				.getAuthInfoCache().get("theSecret"));
+	}
+
+	/**
+	 * A background refresh rejected by Nakamura (e.g. after logout) drops the
+	 * cached AuthInfo.
+	 * 
+	 * @see NakamuraAuthenticationHelper#refreshIfAging(String,
+	 *      ExpiringCache.Entry)
+	 */
+	@Test
+	public void testGetPrincipalLoggedIntoNakamuraRefreshAheadRejected()
+			throws Exception {
+		nakamuraAuthenticationHelper.getPrincipalLoggedIntoNakamura(request);
+		nakamuraAuthenticationHelper.refreshAfterMillis = 0;
+		when(
+				httpClient.execute(any(HttpUriRequest.class),
+						any(ResponseHandler.class))).thenThrow(
+				new HttpResponseException(404, "not found"));
+		nakamuraAuthenticationHelper.getPrincipalLoggedIntoNakamura(request);
+		awaitRefreshes();
+		assertNull(nakamuraAuthenticationHelper.getAuthInfoCache().get(
+				"theSecret"));
+	}
+
+	/**
+	 * A background refresh that hits a server error keeps the cached
+	 * AuthInfo.
+	 * 
+	 * @see NakamuraAuthenticationHelper#loadAuthInfo(String,
+	 *      ExpiringCache.Entry)
+	 */
+	@Test
+	public void testGetPrincipalLoggedIntoNakamuraRefreshAheadServerError()
+			throws Exception {
+		final AuthInfo authInfo = nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request);
+		nakamuraAuthenticationHelper.refreshAfterMillis = 0;
+		when(
+				httpClient.execute(any(HttpUriRequest.class),
+						any(ResponseHandler.class))).thenThrow(
+				new HttpResponseException(503, "service unavailable"));
+		nakamuraAuthenticationHelper.getPrincipalLoggedIntoNakamura(request);
+		awaitRefreshes();
+		assertTrue(authInfo == nakamuraAuthenticationHelper
+				.getAuthInfoCache().get("theSecret"));
+	}
+
+	/**
+	 * An expired AuthInfo is served when Nakamura fails to answer.
+	 * 
+	 * @see NakamuraAuthenticationHelper#loadAuthInfo(String,
+	 *      ExpiringCache.Entry)
+	 */
+	@Test
+	public void testGetPrincipalLoggedIntoNakamuraServerErrorServesStale()
+			throws Exception {
+		final AuthInfo authInfo = nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request);
+		nakamuraAuthenticationHelper.cacheTtlMillis = 0;
+		when(
+				httpClient.execute(any(HttpUriRequest.class),
+						any(ResponseHandler.class))).thenThrow(
+				new HttpResponseException(503, "service unavailable"));
+		assertTrue(authInfo == nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request));
+		verify(httpClient, times(2)).execute(any(HttpUriRequest.class),
+				any(ResponseHandler.class));
+	}
+
+	/**
+	 * A lookup that only finds a stale entry is a miss, not a hit.
+	 * 
+	 * @see NakamuraAuthenticationHelper#getAuthInfoCache()
+	 */
+	@Test
+	public void testGetPrincipalLoggedIntoNakamuraStaleCountedAsMiss()
+			throws Exception {
+		nakamuraAuthenticationHelper.getPrincipalLoggedIntoNakamura(request);
+		nakamuraAuthenticationHelper.cacheTtlMillis = 0;
+		nakamuraAuthenticationHelper.getPrincipalLoggedIntoNakamura(request);
+		assertEquals(0, nakamuraAuthenticationHelper.getAuthInfoCache()
+				.getHitCount());
+		assertEquals(2, nakamuraAuthenticationHelper.getAuthInfoCache()
+				.getMissCount());
+	}
+
+	/**
+	 * Refresh-ahead is disabled when the refresh age is not below the ttl.
+	 * 
+	 * @see NakamuraAuthenticationHelper#refreshIfAging(String,
+	 *      ExpiringCache.Entry)
+	 */
+	@Test
+	public void testGetPrincipalLoggedIntoNakamuraRefreshAheadDisabled()
+			throws Exception {
+		nakamuraAuthenticationHelper.refreshAfterMillis = nakamuraAuthenticationHelper.cacheTtlMillis;
+		nakamuraAuthenticationHelper.getPrincipalLoggedIntoNakamura(request);
+		nakamuraAuthenticationHelper.getPrincipalLoggedIntoNakamura(request);
+		awaitRefreshes();
+		verify(httpClient, times(1)).execute(any(HttpUriRequest.class),
+				any(ResponseHandler.class));
+	}
+
+	/**
+	 * While the circuit breaker is open an expired AuthInfo is served instead
+	 * of calling Nakamura.
+	 * 
+	 * @see NakamuraAuthenticationHelper#getPrincipalLoggedIntoNakamura(HttpServletRequest)
+	 */
+	@Test
+	public void testGetPrincipalLoggedIntoNakamuraCircuitOpenServesStale()
+			throws Exception {
+		final AuthInfo authInfo = nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request);
+		assertNotNull(authInfo);
+		// make every cached entry stale and open the breaker
+		nakamuraAuthenticationHelper.cacheTtlMillis = 0;
+		nakamuraAuthenticationHelper.endpoints = endpoints(openCircuitBreaker());
+		final AuthInfo stale = nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request);
+		assertTrue(authInfo == stale);
+		verify(httpClient, times(1)).execute(any(HttpUriRequest.class),
+				any(ResponseHandler.class));
+	}
+
+	/**
+	 * With no cached AuthInfo an open circuit breaker fails fast.
+	 * 
+	 * @see NakamuraAuthenticationHelper#getPrincipalLoggedIntoNakamura(HttpServletRequest)
+	 */
+	@Test
+	public void testGetPrincipalLoggedIntoNakamuraCircuitOpenFailsFast()
+			throws Exception {
+		nakamuraAuthenticationHelper.endpoints = endpoints(openCircuitBreaker());
+		try {
+			nakamuraAuthenticationHelper
+					.getPrincipalLoggedIntoNakamura(request);
+			fail("expected IllegalStateException");
+		} catch (IllegalStateException e) {
+			assertTrue(e instanceof CircuitBreaker.OpenException);
+		}
+		verify(httpClient, times(0)).execute(any(HttpUriRequest.class),
+				any(ResponseHandler.class));
+	}
+
+	/**
+	 * Failures from Nakamura should trip the circuit breaker.
+	 * 
+	 * @see NakamuraAuthenticationHelper#getPrincipalLoggedIntoNakamura(HttpServletRequest)
+	 */
+	@Test
+	public void testGetPrincipalLoggedIntoNakamuraFailuresOpenCircuit()
+			throws Exception {
+		final CircuitBreaker circuitBreaker = new CircuitBreaker("test", 2, 50,
+				60000L);
+		nakamuraAuthenticationHelper.endpoints = endpoints(circuitBreaker);
+		when(
+				httpClient.execute(any(HttpUriRequest.class),
+						any(ResponseHandler.class))).thenThrow(
+				new HttpResponseException(503, "service unavailable"));
+		nakamuraAuthenticationHelper.getPrincipalLoggedIntoNakamura(request);
+		nakamuraAuthenticationHelper.getPrincipalLoggedIntoNakamura(request);
+		assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+	}
+
+	/**
+	 * A 5xx from one end-point is retried on the next.
+	 * 
+	 * @see NakamuraAuthenticationHelper#fetchAuthInfo(String)
+	 */
+	@Test
+	public void testFetchAuthInfoFailoverServerError() throws Exception {
+		final CircuitBreaker first = new CircuitBreaker("a", 1, 100, 60000L);
+		final CircuitBreaker second = new CircuitBreaker("b", 1, 100, 60000L);
+		nakamuraAuthenticationHelper.endpoints = endpoints(first, second);
+		when(
+				httpClient.execute(any(HttpUriRequest.class),
+						any(ResponseHandler.class))).thenThrow(
+				new HttpResponseException(503, "service unavailable"))
+				.thenAnswer(new JsonResponseAnswer(MOCK_JSON));
+		final AuthInfo authInfo = nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request);
+		assertNotNull(authInfo);
+		verify(httpClient, times(2)).execute(any(HttpUriRequest.class),
+				any(ResponseHandler.class));
+		assertEquals(CircuitBreaker.State.OPEN, first.getState());
+		assertEquals(CircuitBreaker.State.CLOSED, second.getState());
+	}
+
+	/**
+	 * An I/O error on one end-point is retried on the next.
+	 * 
+	 * @see NakamuraAuthenticationHelper#fetchAuthInfo(String)
+	 */
+	@Test
+	public void testFetchAuthInfoFailoverIOException() throws Exception {
+		nakamuraAuthenticationHelper.endpoints = endpoints(new CircuitBreaker(
+				"a", 20, 50, 60000L), new CircuitBreaker("b", 20, 50, 60000L));
+		when(
+				httpClient.execute(any(HttpUriRequest.class),
+						any(ResponseHandler.class))).thenThrow(
+				new IOException("connection refused")).thenAnswer(
+				new JsonResponseAnswer(MOCK_JSON));
+		assertNotNull(nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request));
+		verify(httpClient, times(2)).execute(any(HttpUriRequest.class),
+				any(ResponseHandler.class));
+	}
+
+	/**
+	 * When the retry times out too, a stale AuthInfo is served rather than
+	 * an exception.
+	 * 
+	 * @see NakamuraAuthenticationHelper#loadAuthInfo(String,
+	 *      ExpiringCache.Entry)
+	 */
+	@Test
+	public void testFetchAuthInfoFailoverTimeoutServesStale() throws Exception {
+		nakamuraAuthenticationHelper.endpoints = endpoints(new CircuitBreaker(
+				"a", 20, 50, 60000L), new CircuitBreaker("b", 20, 50, 60000L));
+		final AuthInfo authInfo = nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request);
+		assertNotNull(authInfo);
+		nakamuraAuthenticationHelper.cacheTtlMillis = 0;
+		when(
+				httpClient.execute(any(HttpUriRequest.class),
+						any(ResponseHandler.class))).thenThrow(
+				new SocketTimeoutException("connect timed out"),
+				new SocketTimeoutException("read timed out"));
+		assertTrue(authInfo == nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request));
+		verify(httpClient, times(3)).execute(any(HttpUriRequest.class),
+				any(ResponseHandler.class));
+	}
+
+	/**
+	 * A timeout on every attempt without a stale AuthInfo means no user, not
+	 * an exception.
+	 * 
+	 * @see NakamuraAuthenticationHelper#fetchAuthInfo(String)
+	 */
+	@Test
+	public void testFetchAuthInfoFailoverTimeoutNoStale() throws Exception {
+		when(
+				httpClient.execute(any(HttpUriRequest.class),
+						any(ResponseHandler.class))).thenThrow(
+				new SocketTimeoutException("read timed out"));
+		assertNull(nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request));
+		assertEquals(0, nakamuraAuthenticationHelper.getRejectedSecretCache()
+				.size());
+	}
+
+	/**
+	 * Only one retry is made, and a rejected cookie is not retried at all.
+	 * 
+	 * @see NakamuraAuthenticationHelper#fetchAuthInfo(String)
+	 */
+	@Test
+	public void testFetchAuthInfoFailoverLimits() throws Exception {
+		nakamuraAuthenticationHelper.endpoints = endpoints(new CircuitBreaker(
+				"a", 20, 50, 60000L), new CircuitBreaker("b", 20, 50, 60000L),
+				new CircuitBreaker("c", 20, 50, 60000L));
+		when(
+				httpClient.execute(any(HttpUriRequest.class),
+						any(ResponseHandler.class))).thenThrow(
+				new HttpResponseException(503, "service unavailable"));
+		assertNull(nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request));
+		verify(httpClient, times(2)).execute(any(HttpUriRequest.class),
+				any(ResponseHandler.class));
+
+		// doThrow; when() would run the 503 stub
+		doThrow(new HttpResponseException(404, "not found")).when(httpClient)
+				.execute(any(HttpUriRequest.class), any(ResponseHandler.class));
+		when(sakaiTrackingCookie.getValue()).thenReturn("otherSecret");
+		assertNull(nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request));
+		verify(httpClient, times(3)).execute(any(HttpUriRequest.class),
+				any(ResponseHandler.class));
+	}
+
+	/**
+	 * @see NakamuraAuthenticationHelper#getPrincipalLoggedIntoNakamuraAsync(HttpServletRequest)
+	 */
+	@Test
+	public void testGetPrincipalLoggedIntoNakamuraAsync() throws Exception {
+		final Future<AuthInfo> future = nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamuraAsync(request);
+		final AuthInfo authInfo = future.get(10, TimeUnit.SECONDS);
+		assertNotNull(authInfo);
+		assertEquals(MOCK_PRINCIPAL, authInfo.getPrincipal());
+		// collected on the request thread; must be cached in ThreadLocal
+		verify(threadLocalManager).set(
+				NakamuraAuthenticationHelper.THREAD_LOCAL_CACHE_KEY, authInfo);
+		// second lookup is served from the cross-request cache
+		final Future<AuthInfo> cached = nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamuraAsync(request);
+		assertTrue(cached.isDone());
+		assertTrue(authInfo == cached.get());
+	}
+
+	/**
+	 * @see NakamuraAuthenticationHelper#getPrincipalLoggedIntoNakamuraAsync(HttpServletRequest)
+	 */
+	@Test
+	public void testGetPrincipalLoggedIntoNakamuraAsyncNoSecretFound()
+			throws Exception {
+		when(request.getCookies()).thenReturn(new Cookie[] { otherCookie });
+		final Future<AuthInfo> future = nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamuraAsync(request);
+		assertTrue(future.isDone());
+		assertNull(future.get());
+	}
+
+	/**
+	 * @see NakamuraAuthenticationHelper#getPrincipalLoggedIntoNakamuraAsync(HttpServletRequest)
+	 */
+	@Test
+	public void testGetPrincipalLoggedIntoNakamuraAsyncRuntimeException()
+			throws Exception {
+		when(
+				httpClient.execute(any(HttpUriRequest.class),
+						any(ResponseHandler.class))).thenThrow(
+				new IllegalStateException());
+		final Future<AuthInfo> future = nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamuraAsync(request);
+		try {
+			future.get(10, TimeUnit.SECONDS);
+			fail("expected ExecutionException");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	/**
+	 * A lookup started after destroy() fails instead of never completing.
+	 * 
+	 * @see NakamuraAuthenticationHelper#getPrincipalLoggedIntoNakamuraAsync(HttpServletRequest)
+	 */
+	@Test
+	public void testGetPrincipalLoggedIntoNakamuraAsyncAfterDestroy()
+			throws Exception {
+		nakamuraAuthenticationHelper.destroy();
+		final Future<AuthInfo> future = nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamuraAsync(request);
+		assertTrue(future.isDone());
+		try {
+			future.get(10, TimeUnit.SECONDS);
+			fail("expected ExecutionException");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	/**
+	 * A valid signed cookie is accepted even if Nakamura rejected it
+	 * earlier, as in the synchronous lookup.
+	 * 
+	 * @see NakamuraAuthenticationHelper#getPrincipalLoggedIntoNakamuraAsync(HttpServletRequest)
+	 */
+	@Test
+	public void testGetPrincipalLoggedIntoNakamuraAsyncLocalValidationRejected()
+			throws Exception {
+		nakamuraAuthenticationHelper.localValidation = true;
+		final String cookie = signedCookie("joe",
+				System.currentTimeMillis() + 60000L);
+		when(sakaiTrackingCookie.getValue()).thenReturn(cookie);
+		nakamuraAuthenticationHelper.getRejectedSecretCache().put(cookie,
+				Boolean.TRUE);
+		final AuthInfo authInfo = nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamuraAsync(request).get();
+		assertNotNull(authInfo);
+		assertEquals("joe", authInfo.getPrincipal());
+		assertEquals(authInfo.getPrincipal(), nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request).getPrincipal());
+	}
+
+	/**
+	 * @see NakamuraAuthenticationHelper#getPrincipalLoggedIntoNakamuraAsync(HttpServletRequest)
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testGetPrincipalLoggedIntoNakamuraAsyncNullHttpServletRequest() {
+		nakamuraAuthenticationHelper.getPrincipalLoggedIntoNakamuraAsync(null);
+	}
+
 	/**
 	 * @see NakamuraAuthenticationHelper#getSecret(HttpServletRequest)
 	 */
@@ -451,7 +930,7 @@ public class NakamuraAuthenticationHelperTest {
 		// HttpResponseException
 		when(
 				httpClient.execute(any(HttpUriRequest.class),
-						any(BasicResponseHandler.class))).thenThrow(
+						any(ResponseHandler.class))).thenThrow(
 				new HttpResponseException(404,
 						"could not find cookie / not valid"));
 		AuthInfo authInfo = nakamuraAuthenticationHelper
@@ -459,6 +938,89 @@ public class NakamuraAuthenticationHelperTest {
 		assertNull(authInfo);
 	}
 
+	/**
+	 * A rejected cookie should only be sent to Nakamura once.
+	 * 
+	 * @see NakamuraAuthenticationHelper#getPrincipalLoggedIntoNakamura(HttpServletRequest)
+	 */
+	@Test
+	public void testHttpResponseExceptionNegativeCache() throws Exception {
+		when(
+				httpClient.execute(any(HttpUriRequest.class),
+						any(ResponseHandler.class))).thenThrow(
+				new HttpResponseException(404,
+						"could not find cookie / not valid"));
+		assertNull(nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request));
+		assertNull(nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request));
+		verify(httpClient, times(1)).execute(any(HttpUriRequest.class),
+				any(ResponseHandler.class));
+		assertEquals(1, nakamuraAuthenticationHelper.getRejectedSecretCache()
+				.getHitCount());
+	}
+
+	/**
+	 * A malformed cookie is remembered just like an unknown one.
+	 * 
+	 * @see NakamuraAuthenticationHelper#getPrincipalLoggedIntoNakamura(HttpServletRequest)
+	 */
+	@Test
+	public void testHttpResponseExceptionBadRequestCached() throws Exception {
+		when(
+				httpClient.execute(any(HttpUriRequest.class),
+						any(ResponseHandler.class))).thenThrow(
+				new HttpResponseException(400, "bad request"));
+		assertNull(nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request));
+		assertNull(nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request));
+		verify(httpClient, times(1)).execute(any(HttpUriRequest.class),
+				any(ResponseHandler.class));
+	}
+
+	/**
+	 * 401 and 403 mean our x-sakai-token was refused; the cookie may be fine
+	 * and must not be remembered as rejected.
+	 * 
+	 * @see NakamuraAuthenticationHelper#getPrincipalLoggedIntoNakamura(HttpServletRequest)
+	 */
+	@Test
+	public void testHttpResponseExceptionForbiddenNotCached() throws Exception {
+		when(
+				httpClient.execute(any(HttpUriRequest.class),
+						any(ResponseHandler.class))).thenThrow(
+				new HttpResponseException(403, "forbidden"));
+		assertNull(nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request));
+		assertNull(nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request));
+		verify(httpClient, times(2)).execute(any(HttpUriRequest.class),
+				any(ResponseHandler.class));
+		assertEquals(0, nakamuraAuthenticationHelper.getRejectedSecretCache()
+				.size());
+	}
+
+	/**
+	 * Server errors must not be remembered as rejected cookies.
+	 * 
+	 * @see NakamuraAuthenticationHelper#getPrincipalLoggedIntoNakamura(HttpServletRequest)
+	 */
+	@Test
+	public void testHttpResponseExceptionServerErrorNotCached()
+			throws Exception {
+		when(
+				httpClient.execute(any(HttpUriRequest.class),
+						any(ResponseHandler.class))).thenThrow(
+				new HttpResponseException(503, "service unavailable"));
+		assertNull(nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request));
+		assertNull(nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request));
+		verify(httpClient, times(2)).execute(any(HttpUriRequest.class),
+				any(ResponseHandler.class));
+	}
+
 	/**
 	 * @see NakamuraAuthenticationHelper#getPrincipalLoggedIntoNakamura(HttpServletRequest)
 	 */
@@ -468,7 +1030,7 @@ public class NakamuraAuthenticationHelperTest {
 		// HttpResponseException
 		when(
 				httpClient.execute(any(HttpUriRequest.class),
-						any(BasicResponseHandler.class))).thenThrow(
+						any(ResponseHandler.class))).thenThrow(
 				new HttpResponseException(404,
 						"could not find cookie / not valid"));
 		AuthInfo authInfo = nakamuraAuthenticationHelper
@@ -485,7 +1047,7 @@ public class NakamuraAuthenticationHelperTest {
 		// Throwable / RuntimeException
 		when(
 				httpClient.execute(any(HttpUriRequest.class),
-						any(BasicResponseHandler.class))).thenThrow(
+						any(ResponseHandler.class))).thenThrow(
 				new IllegalStateException());
 		nakamuraAuthenticationHelper.getPrincipalLoggedIntoNakamura(request);
 	}
@@ -501,6 +1063,330 @@ public class NakamuraAuthenticationHelperTest {
 		assertNotNull(httpClient);
 	}
 
+	/**
+	 * @see DefaultHttpClientProvider#releaseHttpClient(HttpClient)
+	 */
+	@Test
+	public void testDefaultHttpClientProviderRelease() {
+		final DefaultHttpClientProvider defaultHttpClientProvider = new DefaultHttpClientProvider();
+		defaultHttpClientProvider.releaseHttpClient(httpClient);
+		verify(clientConnectionManager).shutdown();
+		defaultHttpClientProvider.shutdown();
+	}
+
+	/**
+	 * The pooled provider should hand out the same long-lived client.
+	 * 
+	 * @see PooledHttpClientProvider
+	 */
+	@Test
+	public void testPooledHttpClientProvider() {
+		final PooledHttpClientProvider pooledHttpClientProvider = new PooledHttpClientProvider(
+				10, 5, 60, 30);
+		final HttpClient httpClient1 = pooledHttpClientProvider
+				.getHttpClient();
+		assertNotNull(httpClient1);
+		pooledHttpClientProvider.releaseHttpClient(httpClient1);
+		final HttpClient httpClient2 = pooledHttpClientProvider
+				.getHttpClient();
+		assertTrue(httpClient1 == httpClient2);
+		pooledHttpClientProvider.shutdown();
+	}
+
+	/**
+	 * @see PooledHttpClientProvider
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testPooledHttpClientProviderBadMaxTotal() {
+		new PooledHttpClientProvider(0, 5, 60, 30);
+	}
+
+	/**
+	 * @see PooledHttpClientProvider
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testPooledHttpClientProviderBadIdleTimeout() {
+		new PooledHttpClientProvider(10, 5, 0, 30);
+	}
+
+	/**
+	 * @see NakamuraAuthenticationHelper#destroy()
+	 */
+	@Test
+	public void testDestroy() {
+		nakamuraAuthenticationHelper.destroy();
+	}
+
+	/**
+	 * @see NakamuraAuthenticationHelper#getPositiveInt(String, int)
+	 */
+	@Test
+	public void testGetPositiveInt() {
+		when(
+				serverConfigurationService.getInt(
+						NakamuraAuthenticationHelper.CONFIG_KEEP_ALIVE, 30))
+				.thenReturn(-1);
+		assertEquals(30, nakamuraAuthenticationHelper.getPositiveInt(
+				NakamuraAuthenticationHelper.CONFIG_KEEP_ALIVE, 30));
+		when(
+				serverConfigurationService.getInt(
+						NakamuraAuthenticationHelper.CONFIG_KEEP_ALIVE, 30))
+				.thenReturn(5);
+		assertEquals(5, nakamuraAuthenticationHelper.getPositiveInt(
+				NakamuraAuthenticationHelper.CONFIG_KEEP_ALIVE, 30));
+	}
+
+	/**
+	 * @see AuthInfoResponseHandler#handleResponse(HttpResponse)
+	 */
+	@Test
+	public void testAuthInfoResponseHandler() throws Exception {
+		final AuthInfo authInfo = new AuthInfoResponseHandler()
+				.handleResponse(newResponse(200, MOCK_JSON));
+		assertEquals(MOCK_PRINCIPAL, authInfo.getPrincipal());
+		assertEquals("Admin", authInfo.getFirstName());
+		assertEquals("User", authInfo.getLastName());
+		assertEquals("admin@sakai.invalid", authInfo.getEmailAddress());
+	}
+
+	/**
+	 * @see AuthInfoResponseHandler#handleResponse(HttpResponse)
+	 */
+	@Test
+	public void testAuthInfoResponseHandlerNotFound() throws Exception {
+		try {
+			new AuthInfoResponseHandler().handleResponse(newResponse(404,
+					"not found"));
+			fail("expected HttpResponseException");
+		} catch (HttpResponseException e) {
+			assertEquals(404, e.getStatusCode());
+		}
+	}
+
+	/**
+	 * @see AuthInfoResponseHandler#handleResponse(HttpResponse)
+	 */
+	@Test(expected = HttpResponseException.class)
+	public void testAuthInfoResponseHandlerNoEntity() throws Exception {
+		new AuthInfoResponseHandler().handleResponse(new BasicHttpResponse(
+				HttpVersion.HTTP_1_1, 200, "OK"));
+	}
+
+	/**
+	 * @see AuthInfo#AuthInfo(String)
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testAuthInfoNoUser() {
+		new AuthInfo("{\"server\": \"localhost\"}");
+	}
+
+	/**
+	 * @see NakamuraAuthenticationHelper#validateLocally(String)
+	 */
+	@Test
+	public void testGetPrincipalLoggedIntoNakamuraLocalValidation()
+			throws Exception {
+		nakamuraAuthenticationHelper.localValidation = true;
+		when(sakaiTrackingCookie.getValue()).thenReturn(
+				signedCookie("joe~bob", System.currentTimeMillis() + 60000L));
+		final AuthInfo authInfo = nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request);
+		assertNotNull(authInfo);
+		assertEquals("joe~bob", authInfo.getPrincipal());
+		assertEquals("", authInfo.getFirstName());
+		verify(httpClient, times(0)).execute(any(HttpUriRequest.class),
+				any(ResponseHandler.class));
+	}
+
+	/**
+	 * @see NakamuraAuthenticationHelper#validateLocally(String)
+	 */
+	@Test
+	public void testGetPrincipalLoggedIntoNakamuraLocalValidationExpired()
+			throws Exception {
+		nakamuraAuthenticationHelper.localValidation = true;
+		when(sakaiTrackingCookie.getValue()).thenReturn(
+				signedCookie("joe", System.currentTimeMillis() - 1L));
+		assertNull(nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request));
+		verify(httpClient, times(0)).execute(any(HttpUriRequest.class),
+				any(ResponseHandler.class));
+	}
+
+	/**
+	 * @see NakamuraAuthenticationHelper#validateLocally(String)
+	 */
+	@Test
+	public void testGetPrincipalLoggedIntoNakamuraLocalValidationBadSignature()
+			throws Exception {
+		nakamuraAuthenticationHelper.localValidation = true;
+		final long expires = System.currentTimeMillis() + 60000L;
+		final String forged = "admin~" + expires
+				+ signedCookie("joe", expires).substring(4 + 13);
+		when(sakaiTrackingCookie.getValue()).thenReturn(forged);
+		assertNull(nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamuraAsync(request).get());
+		verify(httpClient, times(0)).execute(any(HttpUriRequest.class),
+				any(ResponseHandler.class));
+	}
+
+	/**
+	 * A cookie signed directly with the x-sakai-token shared secret is not
+	 * accepted; cookies are signed with a key of their own.
+	 * 
+	 * @see NakamuraAuthenticationHelper#getCookieSigningKey()
+	 */
+	@Test
+	public void testGetPrincipalLoggedIntoNakamuraLocalValidationTokenKey()
+			throws Exception {
+		nakamuraAuthenticationHelper.localValidation = true;
+		when(sakaiTrackingCookie.getValue()).thenReturn(
+				signedCookie("joe", System.currentTimeMillis() + 60000L,
+						MOCK_SHARED_SECRET));
+		assertNull(nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request));
+	}
+
+	/**
+	 * @see NakamuraAuthenticationHelper#CONFIG_COOKIE_SECRET
+	 */
+	@Test
+	public void testGetPrincipalLoggedIntoNakamuraLocalValidationCookieSecret()
+			throws Exception {
+		when(
+				serverConfigurationService.getString(
+						NakamuraAuthenticationHelper.CONFIG_COOKIE_SECRET,
+						null)).thenReturn("cookieSecret");
+		nakamuraAuthenticationHelper = new NakamuraAuthenticationHelper(
+				componentManager, MOCK_VALIDATE_URL, MOCK_PRINCIPAL,
+				MOCK_HOSTNAME);
+		nakamuraAuthenticationHelper.localValidation = true;
+		when(sakaiTrackingCookie.getValue()).thenReturn(
+				signedCookie("joe", System.currentTimeMillis() + 60000L,
+						"cookieSecret"));
+		final AuthInfo authInfo = nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request);
+		assertNotNull(authInfo);
+		assertEquals("joe", authInfo.getPrincipal());
+	}
+
+	/**
+	 * Cookies that are not signed still go to Nakamura.
+	 * 
+	 * @see NakamuraAuthenticationHelper#isSignedCookie(String)
+	 */
+	@Test
+	public void testGetPrincipalLoggedIntoNakamuraLocalValidationUnsigned()
+			throws Exception {
+		nakamuraAuthenticationHelper.localValidation = true;
+		assertNotNull(nakamuraAuthenticationHelper
+				.getPrincipalLoggedIntoNakamura(request));
+		verify(httpClient, times(1)).execute(any(HttpUriRequest.class),
+				any(ResponseHandler.class));
+	}
+
+	/**
+	 * @see NakamuraAuthenticationHelper#isSignedCookie(String)
+	 */
+	@Test
+	public void testIsSignedCookie() {
+		assertTrue(nakamuraAuthenticationHelper.isSignedCookie("joe~1~sig"));
+		assertFalse(nakamuraAuthenticationHelper.isSignedCookie("theSecret"));
+		assertFalse(nakamuraAuthenticationHelper.isSignedCookie("~1~sig"));
+		assertFalse(nakamuraAuthenticationHelper.isSignedCookie("joe~~sig"));
+		assertFalse(nakamuraAuthenticationHelper.isSignedCookie("joe~1~"));
+		assertFalse(nakamuraAuthenticationHelper.isSignedCookie("joe~x1~sig"));
+		assertFalse(nakamuraAuthenticationHelper.isSignedCookie("joe~sig"));
+	}
+
+	/**
+	 * @see PooledHttpClientProvider#setTimeouts(int, int, int)
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testPooledHttpClientProviderBadTimeouts() {
+		new PooledHttpClientProvider(10, 5, 60, 30).setTimeouts(0, 1, 1);
+	}
+
+	private static String signedCookie(final String principal,
+			final long expires) throws Exception {
+		return signedCookie(principal, expires, new Signature()
+				.calculateRFC2104HMAC(
+						NakamuraAuthenticationHelper.COOKIE_KEY_LABEL,
+						MOCK_SHARED_SECRET));
+	}
+
+	private static String signedCookie(final String principal,
+			final long expires, final String key) throws Exception {
+		final String payload = principal
+				+ NakamuraAuthenticationHelper.SIGNED_COOKIE_SEPARATOR
+				+ expires;
+		return payload
+				+ NakamuraAuthenticationHelper.SIGNED_COOKIE_SEPARATOR
+				+ new Signature().calculateRFC2104HMACWithEncoding(payload,
+						key, true);
+	}
+
+	private void awaitRefreshes() throws InterruptedException {
+		nakamuraAuthenticationHelper.refreshExecutor.shutdown();
+		assertTrue(nakamuraAuthenticationHelper.refreshExecutor
+				.awaitTermination(10, TimeUnit.SECONDS));
+	}
+
+	private static EndpointBalancer endpoints(
+			final CircuitBreaker circuitBreaker) {
+		return new EndpointBalancer(
+				Collections.singletonList(new EndpointBalancer.Endpoint(
+						MOCK_VALIDATE_URL, circuitBreaker)));
+	}
+
+	private static EndpointBalancer endpoints(
+			final CircuitBreaker... circuitBreakers) {
+		final List<EndpointBalancer.Endpoint> endpoints = new ArrayList<EndpointBalancer.Endpoint>();
+		for (int i = 0; i < circuitBreakers.length; i++) {
+			endpoints.add(new EndpointBalancer.Endpoint("http://nakamura" + i
+					+ "/var/cluster/user.cookie.json?c=", circuitBreakers[i]));
+		}
+		return new EndpointBalancer(endpoints);
+	}
+
+	private static CircuitBreaker openCircuitBreaker() {
+		final CircuitBreaker circuitBreaker = new CircuitBreaker("test", 1,
+				100, 60000L);
+		circuitBreaker.recordFailure();
+		return circuitBreaker;
+	}
+
+	private static HttpResponse newResponse(final int status, final String body)
+			throws Exception {
+		final HttpResponse response = new BasicHttpResponse(
+				HttpVersion.HTTP_1_1, status, "reason");
+		response.setEntity(new StringEntity(body, "UTF-8"));
+		return response;
+	}
+
+	/**
+	 * Runs the {@link ResponseHandler} passed to the mock {@link HttpClient}
+	 * against a canned response. Re-stubbing with when() also runs the answer,
+	 * with null arguments; that call is ignored.
+	 */
+	private static class JsonResponseAnswer implements Answer<Object> {
+		private final String json;
+
+		JsonResponseAnswer(final String json) {
+			this.json = json;
+		}
+
+		public Object answer(final InvocationOnMock invocation)
+				throws Throwable {
+			final ResponseHandler<?> handler = (ResponseHandler<?>) invocation
+					.getArguments()[1];
+			if (handler == null) {
+				return null;
+			}
+			return handler.handleResponse(newResponse(200, json));
+		}
+	}
+
 	/**
 	 * Implementation is thread safe.
 	 */
@@ -511,5 +1397,19 @@ public class NakamuraAuthenticationHelperTest {
 		public HttpClient getHttpClient() {
 			return httpClient;
 		}
+
+		/**
+		 * @see HttpClientProvider#releaseHttpClient(HttpClient)
+		 */
+		public void releaseHttpClient(final HttpClient httpClient) {
+			// nothing to do
+		}
+
+		/**
+		 * @see HttpClientProvider#shutdown()
+		 */
+		public void shutdown() {
+			// nothing to do
+		}
 	}
 }
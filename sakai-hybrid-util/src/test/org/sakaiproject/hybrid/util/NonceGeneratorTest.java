@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.PropertyConfigurator;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link NonceGenerator}.
+ */
+public class NonceGeneratorTest {
+	private static final Log LOG = LogFactory.getLog(NonceGeneratorTest.class);
+	private static final int MAX_THREADS = 64;
+	private static final int MINTS = 64000;
+	private static final String MOCK_SHARED_SECRET = "e2KS54H35j6vS5Z38nK40";
+	private static final String MOCK_EID = "admin";
+
+	@BeforeClass
+	public static void setupClass() {
+		Properties log4jProperties = new Properties();
+		log4jProperties.put("log4j.rootLogger", "ALL, A1");
+		log4jProperties.put("log4j.appender.A1",
+				"org.apache.log4j.ConsoleAppender");
+		log4jProperties.put("log4j.appender.A1.layout",
+				"org.apache.log4j.PatternLayout");
+		log4jProperties.put("log4j.appender.A1.layout.ConversionPattern",
+				PatternLayout.TTCC_CONVERSION_PATTERN);
+		log4jProperties.put("log4j.threshold", "ALL");
+		PropertyConfigurator.configure(log4jProperties);
+	}
+
+	@Test
+	public void testStripeCount() {
+		assertEquals(1, new NonceGenerator(1).getStripeCount());
+		assertEquals(4, new NonceGenerator(3).getStripeCount());
+		assertEquals(8, new NonceGenerator(8).getStripeCount());
+		assertEquals(64, new NonceGenerator(1000).getStripeCount());
+		assertTrue(new NonceGenerator().getStripeCount() >= 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testZeroConcurrency() {
+		new NonceGenerator(0);
+	}
+
+	@Test
+	public void testSameThreadSameStripe() {
+		final NonceGenerator generator = new NonceGenerator(8);
+		assertSame(generator.stripe(), generator.stripe());
+	}
+
+	@Test
+	public void testNextLongs() {
+		final long[] nonces = new long[1000];
+		new NonceGenerator(1).nextLongs(nonces);
+		final Set<Long> distinct = new HashSet<Long>();
+		for (long nonce : nonces) {
+			distinct.add(nonce);
+		}
+		assertEquals(nonces.length, distinct.size());
+		new NonceGenerator(1).nextLongs(new long[0]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNextLongsNull() {
+		new NonceGenerator(1).nextLongs(null);
+	}
+
+	/**
+	 * Nonces from different stripes must not repeat; each stripe seeds itself.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testNoDuplicatesAcrossThreads() throws Exception {
+		final NonceGenerator generator = new NonceGenerator(8);
+		final ExecutorService executor = Executors.newFixedThreadPool(8,
+				new DaemonThreadFactory("NonceGeneratorTest"));
+		final List<Future<Set<Long>>> results = new ArrayList<Future<Set<Long>>>();
+		try {
+			for (int t = 0; t < 8; t++) {
+				results.add(executor.submit(new Callable<Set<Long>>() {
+					public Set<Long> call() {
+						final Set<Long> nonces = new HashSet<Long>();
+						for (int i = 0; i < 1000; i++) {
+							nonces.add(generator.nextLong());
+						}
+						return nonces;
+					}
+				}));
+			}
+			final Set<Long> all = new HashSet<Long>();
+			for (Future<Set<Long>> result : results) {
+				all.addAll(result.get());
+			}
+			assertEquals(8000, all.size());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Compares token minting throughput (nonce plus HMAC, as in
+	 * {@link XSakaiToken#signMessage(String, String)}) using a single shared
+	 * generator and a striped one, at 1 to 64 threads. Timings are only
+	 * logged; they depend too much on the machine to assert on.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testMintingThroughput() throws Exception {
+		final Signature signature = new Signature();
+		final NonceGenerator single = new NonceGenerator(1);
+		final NonceGenerator striped = new NonceGenerator(MAX_THREADS);
+		// warm up
+		mint(signature, single, 4);
+		mint(signature, striped, 4);
+		for (int threads = 1; threads <= MAX_THREADS; threads <<= 1) {
+			final long singleRate = mint(signature, single, threads);
+			final long stripedRate = mint(signature, striped, threads);
+			LOG.info("Token minting with " + threads + " threads: striped="
+					+ stripedRate + " tokens/s, single=" + singleRate
+					+ " tokens/s");
+		}
+	}
+
+	/**
+	 * @return tokens minted per second.
+	 */
+	private long mint(final Signature signature,
+			final NonceGenerator generator, final int threads)
+			throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool(threads,
+				new DaemonThreadFactory("NonceGeneratorTest"));
+		final CountDownLatch startGate = new CountDownLatch(1);
+		final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		final int perThread = MINTS / threads;
+		for (int t = 0; t < threads; t++) {
+			results.add(executor.submit(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					startGate.await();
+					int length = 0;
+					for (int i = 0; i < perThread; i++) {
+						final String message = MOCK_EID + ";"
+								+ generator.nextLong();
+						length += signature.calculateRFC2104HMAC(message,
+								MOCK_SHARED_SECRET).length();
+					}
+					return length;
+				}
+			}));
+		}
+		final long start = System.nanoTime();
+		startGate.countDown();
+		try {
+			for (Future<Integer> result : results) {
+				assertTrue(result.get() > 0);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		final long nanos = System.nanoTime() - start;
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		return (long) perThread * threads * 1000000000L / nanos;
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link SharedSecrets}.
+ */
+public class SharedSecretsTest {
+
+	@Test
+	public void testSharedSecrets() {
+		final SharedSecrets secrets = new SharedSecrets(new String[] {
+				"legacy", "k2:new", "k1:old", ":with:colon" }, 10);
+		assertEquals("new", secrets.getSecret("k2"));
+		assertEquals("old", secrets.getSecret("k1"));
+		assertNull(secrets.getSecret("k3"));
+		assertNull(secrets.getSecret(null));
+		assertEquals(2, secrets.getKeyIdCount());
+		assertEquals(Arrays.asList("legacy", "new", "old", "with:colon"),
+				secrets.getTrialSecrets());
+	}
+
+	@Test
+	public void testMaxTrials() {
+		final SharedSecrets secrets = new SharedSecrets(new String[] {
+				"k3:newest", "k2:new", "k1:old" }, 2);
+		assertEquals(Arrays.asList("newest", "new"), secrets
+				.getTrialSecrets());
+		// keyed lookups are not capped
+		assertEquals("old", secrets.getSecret("k1"));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testTrialSecretsUnmodifiable() {
+		new SharedSecrets(new String[] { "secret" }, 1).getTrialSecrets()
+				.clear();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDuplicateKeyId() {
+		new SharedSecrets(new String[] { "k1:a", "k1:b" }, 2);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmptySecret() {
+		new SharedSecrets(new String[] { "k1:" }, 2);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNullEntry() {
+		new SharedSecrets(new String[] { "k1:a", null }, 2);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoEntries() {
+		new SharedSecrets(new String[0], 2);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNullEntries() {
+		new SharedSecrets(null, 2);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testZeroMaxTrials() {
+		new SharedSecrets(new String[] { "secret" }, 0);
+	}
+}
@@ -18,10 +18,30 @@
 package org.sakaiproject.hybrid.util;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import org.apache.log4j.PatternLayout;
 import org.apache.log4j.PropertyConfigurator;
@@ -33,6 +53,9 @@ import org.junit.Test;
  * Unit tests for {@link Signature} class.
  */
 public class SignatureTest {
+	private static final Log LOG = LogFactory.getLog(SignatureTest.class);
+	private static final int THREADS = 8;
+	private static final int ITERATIONS = 2000;
 	protected transient Signature signature = new Signature();
 	private static final String MOCK_DATA = "data";
 	private static final String MOCK_KEY = "key";
@@ -149,6 +172,56 @@ public class SignatureTest {
 		signature.calculateRFC2104HMACWithEncoding(MOCK_DATA, null, true);
 	}
 
+	/**
+	 * @see Signature#calculateRFC2104HMACsWithEncoding(java.util.Collection,
+	 *      String, boolean)
+	 * @throws InvalidKeyException
+	 */
+	@Test
+	public void testCalculateRFC2104HMACsWithEncoding()
+			throws InvalidKeyException {
+		final List<String> data = Arrays.asList(MOCK_DATA, "other",
+				"\u00fcn\u00efc\u00f6d\u00e9", MOCK_DATA);
+		for (boolean urlSafe : new boolean[] { false, true }) {
+			final List<String> hmacs = signature
+					.calculateRFC2104HMACsWithEncoding(data, MOCK_KEY, urlSafe);
+			assertEquals(data.size(), hmacs.size());
+			for (int i = 0; i < data.size(); i++) {
+				assertEquals(signature.calculateRFC2104HMACWithEncoding(data
+						.get(i), MOCK_KEY, urlSafe), hmacs.get(i));
+			}
+		}
+		assertEquals(TEST_HMAC_URLSAFE, signature
+				.calculateRFC2104HMACsWithEncoding(Arrays.asList(MOCK_DATA),
+						MOCK_KEY, true).get(0));
+		assertTrue(signature.calculateRFC2104HMACsWithEncoding(
+				new ArrayList<String>(), MOCK_KEY, false).isEmpty());
+	}
+
+	/**
+	 * @see Signature#calculateRFC2104HMACsWithEncoding(java.util.Collection,
+	 *      String, boolean)
+	 * @throws InvalidKeyException
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCalculateRFC2104HMACsWithEncodingNullElement()
+			throws InvalidKeyException {
+		signature.calculateRFC2104HMACsWithEncoding(Arrays.asList(MOCK_DATA,
+				null), MOCK_KEY, false);
+	}
+
+	/**
+	 * @see Signature#calculateRFC2104HMACsWithEncoding(java.util.Collection,
+	 *      String, boolean)
+	 * @throws InvalidKeyException
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCalculateRFC2104HMACsWithEncodingNullKey()
+			throws InvalidKeyException {
+		signature.calculateRFC2104HMACsWithEncoding(Arrays.asList(MOCK_DATA),
+				null, false);
+	}
+
 	/**
 	 * @see Signature#Signature()
 	 * @see Signature#Signature(String)
@@ -166,4 +239,376 @@ public class SignatureTest {
 	public void testSignatureString() {
 		new Signature("HmacSHA1");
 	}
+
+	/**
+	 * Signing again with the same key reuses the prepared Mac.
+	 * 
+	 * @throws InvalidKeyException
+	 */
+	@Test
+	public void testPreparedMacReused() throws InvalidKeyException {
+		assertEquals(TEST_HMAC, signature.calculateRFC2104HMAC(MOCK_DATA,
+				MOCK_KEY));
+		assertEquals(TEST_HMAC_URLSAFE, signature
+				.calculateRFC2104HMACWithEncoding(MOCK_DATA, MOCK_KEY, true));
+		assertEquals(TEST_HMAC, signature.calculateRFC2104HMAC(MOCK_DATA,
+				MOCK_KEY));
+		assertEquals(1, signature.getCachedKeyCount());
+	}
+
+	/**
+	 * The number of keys with prepared Macs is bounded, and results stay
+	 * correct after eviction.
+	 * 
+	 * @throws InvalidKeyException
+	 */
+	@Test
+	public void testPreparedMacEviction() throws InvalidKeyException {
+		for (int i = 0; i < Signature.MAX_KEYS * 2; i++) {
+			signature.calculateRFC2104HMAC(MOCK_DATA, MOCK_KEY + i);
+		}
+		assertTrue(signature.getCachedKeyCount() <= Signature.MAX_KEYS);
+		assertEquals(TEST_HMAC, signature.calculateRFC2104HMAC(MOCK_DATA,
+				MOCK_KEY));
+	}
+
+	/**
+	 * An empty key is rejected with an IllegalArgumentException.
+	 * 
+	 * @throws InvalidKeyException
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmptyKey() throws InvalidKeyException {
+		signature.calculateRFC2104HMAC(MOCK_DATA, "");
+	}
+
+	/**
+	 * @see Signature#calculateRFC2104HMAC(byte[], int, int, String, byte[],
+	 *      int)
+	 * @throws Exception
+	 */
+	@Test
+	public void testCalculateRFC2104HMACBytes() throws Exception {
+		final byte[] data = ("xx" + MOCK_DATA + "yy").getBytes("UTF-8");
+		final byte[] output = new byte[signature.getMacLength() + 1];
+		assertEquals(20, signature.calculateRFC2104HMAC(data, 2, 4, MOCK_KEY,
+				output, 1));
+		final byte[] expected = Base64.decodeBase64(TEST_HMAC
+				.getBytes("UTF-8"));
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], output[i + 1]);
+		}
+	}
+
+	/**
+	 * @see Signature#calculateRFC2104HMAC(ByteBuffer, String, ByteBuffer)
+	 * @throws Exception
+	 */
+	@Test
+	public void testCalculateRFC2104HMACByteBuffer() throws Exception {
+		final byte[] expected = Base64.decodeBase64(TEST_HMAC
+				.getBytes("UTF-8"));
+		for (ByteBuffer output : new ByteBuffer[] { ByteBuffer.allocate(20),
+				ByteBuffer.allocateDirect(20) }) {
+			final ByteBuffer data = ByteBuffer.wrap(MOCK_DATA
+					.getBytes("UTF-8"));
+			signature.calculateRFC2104HMAC(data, MOCK_KEY, output);
+			assertEquals(0, data.remaining());
+			assertEquals(0, output.remaining());
+			output.flip();
+			for (byte b : expected) {
+				assertEquals(b, output.get());
+			}
+		}
+	}
+
+	/**
+	 * @see Signature#calculateRFC2104HMACWithEncoding(byte[], int, int,
+	 *      String, boolean, byte[], int)
+	 * @throws Exception
+	 */
+	@Test
+	public void testCalculateRFC2104HMACWithEncodingBytes() throws Exception {
+		final byte[] data = MOCK_DATA.getBytes("UTF-8");
+		byte[] output = new byte[signature.getEncodedMacLength(false)];
+		assertEquals(output.length, signature
+				.calculateRFC2104HMACWithEncoding(data, 0, data.length,
+						MOCK_KEY, false, output, 0));
+		assertEquals(TEST_HMAC, new String(output, "UTF-8"));
+		output = new byte[signature.getEncodedMacLength(true)];
+		signature.calculateRFC2104HMACWithEncoding(data, 0, data.length,
+				MOCK_KEY, true, output, 0);
+		assertEquals(TEST_HMAC_URLSAFE, new String(output, "UTF-8"));
+	}
+
+	/**
+	 * @see Signature#calculateRFC2104HMAC(byte[], int, int, String, byte[],
+	 *      int)
+	 * @throws Exception
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCalculateRFC2104HMACBytesOutputTooSmall()
+			throws Exception {
+		signature.calculateRFC2104HMAC(new byte[4], 0, 4, MOCK_KEY,
+				new byte[20], 1);
+	}
+
+	/**
+	 * @see Signature#calculateRFC2104HMAC(byte[], int, int, String, byte[],
+	 *      int)
+	 * @throws Exception
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCalculateRFC2104HMACBytesBadRange() throws Exception {
+		signature.calculateRFC2104HMAC(new byte[4], 2, 3, MOCK_KEY,
+				new byte[20], 0);
+	}
+
+	/**
+	 * @see Signature#calculateRFC2104HMAC(ByteBuffer, String, ByteBuffer)
+	 * @throws Exception
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCalculateRFC2104HMACByteBufferOutputTooSmall()
+			throws Exception {
+		signature.calculateRFC2104HMAC(ByteBuffer.allocate(4), MOCK_KEY,
+				ByteBuffer.allocate(19));
+	}
+
+	/**
+	 * The Base64 encoder must agree with commons-codec for every tail length.
+	 * 
+	 * @see Signature#encodeBase64(byte[], int, int, boolean, byte[], int)
+	 * @throws Exception
+	 */
+	@Test
+	public void testEncodeBase64() throws Exception {
+		final byte[] src = new byte[40];
+		for (int i = 0; i < src.length; i++) {
+			src[i] = (byte) (i * 37 - 100);
+		}
+		for (int length = 0; length < src.length; length++) {
+			final byte[] slice = new byte[length];
+			System.arraycopy(src, 0, slice, 0, length);
+			for (boolean urlSafe : new boolean[] { false, true }) {
+				final byte[] dst = new byte[Signature.getEncodedLength(length,
+						urlSafe)];
+				assertEquals(dst.length, Signature.encodeBase64(src, 0,
+						length, urlSafe, dst, 0));
+				assertEquals(new String(Base64.encodeBase64(slice, false,
+						urlSafe), "UTF-8"), new String(dst, "UTF-8"));
+			}
+		}
+	}
+
+	/**
+	 * @see Signature#verifyRFC2104HMAC(byte[], int, int, String,
+	 *      CharSequence, boolean)
+	 * @throws Exception
+	 */
+	@Test
+	public void testVerifyRFC2104HMAC() throws Exception {
+		final byte[] data = MOCK_DATA.getBytes("UTF-8");
+		assertTrue(signature.verifyRFC2104HMAC(data, 0, data.length,
+				MOCK_KEY, TEST_HMAC, false));
+		assertTrue(signature.verifyRFC2104HMAC(data, 0, data.length,
+				MOCK_KEY, TEST_HMAC_URLSAFE, true));
+		// wrong key
+		assertFalse(signature.verifyRFC2104HMAC(data, 0, data.length,
+				MOCK_KEY + "x", TEST_HMAC, false));
+		// wrong data
+		assertFalse(signature.verifyRFC2104HMAC(data, 0, data.length - 1,
+				MOCK_KEY, TEST_HMAC, false));
+		// alphabet does not match urlSafe
+		assertFalse(signature.verifyRFC2104HMAC(data, 0, data.length,
+				MOCK_KEY, TEST_HMAC, true));
+		assertFalse(signature.verifyRFC2104HMAC(data, 0, data.length,
+				MOCK_KEY, TEST_HMAC_URLSAFE, false));
+	}
+
+	/**
+	 * Malformed values are rejected before the key is even used.
+	 * 
+	 * @see Signature#verifyRFC2104HMAC(byte[], int, int, String,
+	 *      CharSequence, boolean)
+	 * @throws Exception
+	 */
+	@Test
+	public void testVerifyRFC2104HMACMalformed() throws Exception {
+		final byte[] data = MOCK_DATA.getBytes("UTF-8");
+		final String[] malformed = { "", "EEFSxb/coHvGM+69RhmfAlXJ9J0",
+				"EEFSxb/coHvGM+69RhmfAlXJ9J0==", "EEFSxb/coHvGM+69RhmfAlXJ9J==",
+				"EEFSxb/coHvGM+69RhmfAlXJ9J1=", "EEFSxb/coHvGM+69Rhmf*lXJ9J0=" };
+		for (String value : malformed) {
+			// an empty key would throw if the MAC were prepared
+			assertFalse(value, signature.verifyRFC2104HMAC(data, 0,
+					data.length, "", value, false));
+		}
+	}
+
+	/**
+	 * Verifying a region of a String must match signing the same text,
+	 * including characters outside ASCII and unpaired surrogates.
+	 * 
+	 * @see Signature#verifyRFC2104HMAC(CharSequence, int, int, String,
+	 *      CharSequence, int, int, boolean)
+	 * @throws Exception
+	 */
+	@Test
+	public void testVerifyRFC2104HMACCharSequence() throws Exception {
+		final StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			text.append("a\u00e9\u20ac\ud83d\ude00");
+		}
+		text.append('\ud800').append("z");
+		final String[] messages = { MOCK_DATA, "", text.toString() };
+		for (String message : messages) {
+			final String hmac = signature.calculateRFC2104HMAC(message,
+					MOCK_KEY);
+			final String token = hmac + ";" + message;
+			assertTrue(signature.verifyRFC2104HMAC(token, hmac.length() + 1,
+					token.length(), MOCK_KEY, token, 0, hmac.length(), false));
+			assertFalse(signature.verifyRFC2104HMAC(token, hmac.length(),
+					token.length(), MOCK_KEY, token, 0, hmac.length(), false));
+		}
+	}
+
+	/**
+	 * @see Signature#verifyRFC2104HMAC(CharSequence, int, int, String,
+	 *      CharSequence, int, int, boolean)
+	 * @throws Exception
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testVerifyRFC2104HMACCharSequenceBadRange() throws Exception {
+		signature.verifyRFC2104HMAC(MOCK_DATA, 2, 1, MOCK_KEY, TEST_HMAC, 0,
+				TEST_HMAC.length(), false);
+	}
+
+	/**
+	 * @see Signature#decodeBase64(CharSequence, int, int, boolean, byte[],
+	 *      int, int)
+	 * @throws Exception
+	 */
+	@Test
+	public void testDecodeBase64() throws Exception {
+		final byte[] src = new byte[40];
+		for (int i = 0; i < src.length; i++) {
+			src[i] = (byte) (i * 37 - 100);
+		}
+		for (int length = 0; length < src.length; length++) {
+			final byte[] slice = new byte[length];
+			System.arraycopy(src, 0, slice, 0, length);
+			for (boolean urlSafe : new boolean[] { false, true }) {
+				final String encoded = new String(Base64.encodeBase64(slice,
+						false, urlSafe), "UTF-8");
+				final byte[] decoded = new byte[length + 1];
+				final String padded = "x" + encoded + "x";
+				assertTrue(encoded, Signature.decodeBase64(padded, 1, padded
+						.length() - 1, urlSafe, decoded, 1, length));
+				for (int i = 0; i < length; i++) {
+					assertEquals(slice[i], decoded[i + 1]);
+				}
+				assertFalse(encoded, Signature.decodeBase64(encoded, 0,
+						encoded.length(), urlSafe, decoded, 0, length + 1));
+			}
+		}
+	}
+
+	/**
+	 * Many threads signing different data with different keys through one
+	 * shared instance must each get the correct HMAC.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentSigning() throws Exception {
+		final int failures = runConcurrently(signature, true);
+		assertEquals(0, failures);
+	}
+
+	/**
+	 * Compares throughput of the shared instance with a baseline that takes a
+	 * global lock around every call. Timings are only logged; they depend too
+	 * much on the machine to assert on.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testThroughputAgainstSynchronizedBaseline() throws Exception {
+		final Signature baseline = new Signature() {
+			@Override
+			public synchronized String calculateRFC2104HMACWithEncoding(
+					final String data, final String key, final boolean urlSafe)
+					throws InvalidKeyException {
+				return super.calculateRFC2104HMACWithEncoding(data, key,
+						urlSafe);
+			}
+		};
+		// warm up
+		runConcurrently(baseline, false);
+		runConcurrently(signature, false);
+
+		long start = System.nanoTime();
+		assertEquals(0, runConcurrently(baseline, false));
+		final long baselineNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		assertEquals(0, runConcurrently(signature, false));
+		final long pooledNanos = System.nanoTime() - start;
+		final long calls = (long) THREADS * ITERATIONS;
+		LOG.info("Signature throughput with " + THREADS + " threads: pooled="
+				+ (calls * 1000000000L / pooledNanos)
+				+ " calls/s, synchronized="
+				+ (calls * 1000000000L / baselineNanos) + " calls/s");
+	}
+
+	/**
+	 * @param signature
+	 * @param verify
+	 *            compare every result with an independently computed HMAC.
+	 * @return number of incorrect results.
+	 * @throws ExecutionException
+	 *             if signing throws, e.g. because a shared Mac was corrupted.
+	 */
+	private int runConcurrently(final Signature signature, final boolean verify)
+			throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool(THREADS,
+				new DaemonThreadFactory("SignatureTest"));
+		final CountDownLatch startGate = new CountDownLatch(1);
+		final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int t = 0; t < THREADS; t++) {
+			final String key = MOCK_KEY + t;
+			results.add(executor.submit(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					final Mac mac = Mac.getInstance("HmacSHA1");
+					mac.init(new SecretKeySpec(key.getBytes("UTF-8"),
+							"HmacSHA1"));
+					startGate.await();
+					int failures = 0;
+					for (int i = 0; i < ITERATIONS; i++) {
+						final String data = MOCK_DATA + i;
+						final String hmac = signature
+								.calculateRFC2104HMAC(data, key);
+						if (verify
+								&& !new String(Base64.encodeBase64(mac
+										.doFinal(data.getBytes("UTF-8"))),
+										"UTF-8").equals(hmac)) {
+							failures++;
+						}
+					}
+					return failures;
+				}
+			}));
+		}
+		startGate.countDown();
+		int failures = 0;
+		try {
+			for (Future<Integer> result : results) {
+				failures += result.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		return failures;
+	}
 }
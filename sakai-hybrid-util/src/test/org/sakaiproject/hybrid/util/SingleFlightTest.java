@@ -0,0 +1,156 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link SingleFlight}.
+ */
+public class SingleFlightTest {
+	private static final int THREADS = 8;
+
+	private final SingleFlight<String, String> singleFlight = new SingleFlight<String, String>();
+
+	/**
+	 * @see SingleFlight#execute(Object, Callable)
+	 */
+	@Test
+	public void testExecute() {
+		assertEquals("value", singleFlight.execute("key",
+				new Callable<String>() {
+					public String call() {
+						return "value";
+					}
+				}));
+		assertFalse(singleFlight.isInFlight("key"));
+	}
+
+	/**
+	 * Concurrent callers for the same key should share one execution.
+	 * 
+	 * @see SingleFlight#execute(Object, Callable)
+	 */
+	@Test
+	public void testExecuteCoalesced() throws Exception {
+		final AtomicInteger executions = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+		final Callable<String> slowCall = new Callable<String>() {
+			public String call() throws Exception {
+				executions.incrementAndGet();
+				release.await(10, TimeUnit.SECONDS);
+				return "value";
+			}
+		};
+		final List<Future<String>> results = runConcurrently(slowCall);
+		// wait until every other caller is parked behind the leader
+		final long deadline = System.currentTimeMillis() + 10000;
+		while (singleFlight.getCoalescedCount() < THREADS - 1
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		release.countDown();
+		for (Future<String> result : results) {
+			assertEquals("value", result.get(10, TimeUnit.SECONDS));
+		}
+		assertEquals(1, executions.get());
+		assertEquals(THREADS - 1, singleFlight.getCoalescedCount());
+	}
+
+	/**
+	 * A failure must reach every waiting caller.
+	 * 
+	 * @see SingleFlight#execute(Object, Callable)
+	 */
+	@Test
+	public void testExecuteFailurePropagates() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final Callable<String> failingCall = new Callable<String>() {
+			public String call() throws Exception {
+				release.await(10, TimeUnit.SECONDS);
+				throw new IllegalStateException("boom");
+			}
+		};
+		final List<Future<String>> results = runConcurrently(failingCall);
+		Thread.sleep(100);
+		release.countDown();
+		for (Future<String> result : results) {
+			try {
+				result.get(10, TimeUnit.SECONDS);
+				fail("expected failure");
+			} catch (java.util.concurrent.ExecutionException e) {
+				assertTrue(e.getCause() instanceof IllegalStateException);
+				assertEquals("boom", e.getCause().getMessage());
+			}
+		}
+		assertFalse(singleFlight.isInFlight("key"));
+	}
+
+	/**
+	 * Checked exceptions are wrapped.
+	 * 
+	 * @see SingleFlight#execute(Object, Callable)
+	 */
+	@Test(expected = IllegalStateException.class)
+	public void testExecuteCheckedException() {
+		singleFlight.execute("key", new Callable<String>() {
+			public String call() throws Exception {
+				throw new java.io.IOException();
+			}
+		});
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testExecuteNullKey() {
+		singleFlight.execute(null, new Callable<String>() {
+			public String call() {
+				return null;
+			}
+		});
+	}
+
+	private List<Future<String>> runConcurrently(final Callable<String> call)
+			throws InterruptedException {
+		final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		final List<Future<String>> results = new ArrayList<Future<String>>();
+		for (int i = 0; i < THREADS; i++) {
+			results.add(executor.submit(new Callable<String>() {
+				public String call() {
+					return singleFlight.execute("key", call);
+				}
+			}));
+		}
+		executor.shutdown();
+		return results;
+	}
+}
@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link UserCookieJsonParser}.
+ */
+public class UserCookieJsonParserTest {
+
+	/**
+	 * @see UserCookieJsonParser#parse()
+	 */
+	@Test
+	public void testParse() throws IOException {
+		final UserCookieJsonParser parser = parse("{\"server\": \"a.b.edu\","
+				+ "\"user\": {\"lastUpdate\": 1289584757709,"
+				+ "\"principal\": \"admin\","
+				+ "\"properties\": {\"firstName\": \"Admin\","
+				+ "\"lastName\": \"User\", \"email\": \"admin@sakai.invalid\"},"
+				+ "\"membership\": []}}");
+		assertEquals("admin", parser.getPrincipal());
+		assertEquals("Admin", parser.getFirstName());
+		assertEquals("User", parser.getLastName());
+		assertEquals("admin@sakai.invalid", parser.getEmail());
+	}
+
+	/**
+	 * Nested structures, escapes and look-alike keys in skipped values must
+	 * not confuse the parser.
+	 * 
+	 * @see UserCookieJsonParser#parse()
+	 */
+	@Test
+	public void testParseSkipsUnwantedValues() throws IOException {
+		final UserCookieJsonParser parser = parse("{\"principal\": \"root\","
+				+ "\"other\": {\"user\": {\"principal\": \"nested\"}},"
+				+ "\"list\": [1, \"two\", {\"three\": [3]}, \"}]\\\"\"],"
+				+ "\"user\": {\"id\": \"u\","
+				+ "\"groups\": [{\"principal\": \"group\"}],"
+				+ "\"properties\": {\"path\": \"/a/\\\"b\\\"\","
+				+ "\"nested\": {\"email\": \"nested@x\"},"
+				+ "\"firstName\": \"Ren\\u00e9e\","
+				+ "\"lastName\": \"O\\\\Brien\"},"
+				+ "\"principal\": \"renee\"}, \"trailer\": true}");
+		assertEquals("renee", parser.getPrincipal());
+		assertEquals("Ren\u00e9e", parser.getFirstName());
+		assertEquals("O\\Brien", parser.getLastName());
+		assertNull(parser.getEmail());
+	}
+
+	/**
+	 * json-lib tolerated trailing commas; see HYB-70 test data.
+	 * 
+	 * @see UserCookieJsonParser#parse()
+	 */
+	@Test
+	public void testParseTrailingComma() throws IOException {
+		final UserCookieJsonParser parser = parse("{\"user\": {"
+				+ "\"principal\": \"admin\","
+				+ "\"properties\": {\"path\": \"/a/ad/admin\",},},}");
+		assertEquals("admin", parser.getPrincipal());
+		assertNull(parser.getFirstName());
+	}
+
+	/**
+	 * @see UserCookieJsonParser#parse()
+	 */
+	@Test
+	public void testParseNonStringValues() throws IOException {
+		final UserCookieJsonParser parser = parse("{\"user\": {"
+				+ "\"principal\": null, \"properties\": {\"firstName\": 42,"
+				+ "\"lastName\": {\"x\": 1}, \"email\":false}}}");
+		assertNull(parser.getPrincipal());
+		assertEquals("42", parser.getFirstName());
+		assertNull(parser.getLastName());
+		assertEquals("false", parser.getEmail());
+	}
+
+	/**
+	 * Values larger than the internal buffer must be handled.
+	 * 
+	 * @see UserCookieJsonParser#parse()
+	 */
+	@Test
+	public void testParseLargeDocument() throws IOException {
+		final StringBuilder json = new StringBuilder("{\"user\": {\"properties\": {");
+		for (int i = 0; i < 1000; i++) {
+			json.append("\"prop").append(i).append("\": \"value").append(i)
+					.append("\",");
+		}
+		json.append("\"email\": \"e@x\"}, \"principal\": \"p\"}}");
+		final UserCookieJsonParser parser = parse(json.toString());
+		assertEquals("p", parser.getPrincipal());
+		assertEquals("e@x", parser.getEmail());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseNoUser() throws IOException {
+		parse("{\"server\": \"a.b.edu\"}");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseTruncated() throws IOException {
+		parse("{\"user\": {\"principal\": \"adm");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseNotAnObject() throws IOException {
+		parse("[\"user\"]");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseBadUnicodeEscape() throws IOException {
+		parse("{\"user\": {\"principal\": \"\\uzzzz\"}}");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNullReader() {
+		new UserCookieJsonParser(null);
+	}
+
+	private static UserCookieJsonParser parse(final String json)
+			throws IOException {
+		final UserCookieJsonParser parser = new UserCookieJsonParser(
+				new StringReader(json));
+		parser.parse();
+		return parser;
+	}
+}
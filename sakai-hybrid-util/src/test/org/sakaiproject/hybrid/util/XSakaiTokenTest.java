@@ -22,11 +22,21 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -54,6 +64,7 @@ public class XSakaiTokenTest {
 	XSakaiToken xSakaiToken;
 	private static final String MOCK_TOKEN = "+5JMkE44awf+2SWWZMyyzKFoJkE=;admin;-7838070940753586218";
 	private static final String MOCK_BAD_TOKEN = "5JMkE44awf+2SWWZMyyzKFoJkE=;admin;-7838070940753586218";
+	private static final String MOCK_TAMPERED_TOKEN = "+5JMkE44awf+2SWWZMyyzKFoJkA=;admin;-7838070940753586218";
 	private static final String MOCK_MALFORMED_TOKEN = "+5JMkE44awf+2SWWZMyyzKFoJkE=;admin";
 	private static final String MOCK_SHARED_SECRET = "e2KS54H35j6vS5Z38nK40";
 	private static final String MOCK_HOSTNAME = "localhost";
@@ -108,6 +119,11 @@ public class XSakaiTokenTest {
 		when(sessionManager.getCurrentSession()).thenReturn(session);
 		when(signature.calculateRFC2104HMAC(anyString(), anyString()))
 				.thenThrow(new InvalidKeyException());
+		when(
+				signature.verifyRFC2104HMAC(any(CharSequence.class), anyInt(),
+						anyInt(), anyString(), any(CharSequence.class),
+						anyInt(), anyInt(), anyBoolean())).thenThrow(
+				new InvalidKeyException());
 		xSakaiToken = new XSakaiToken(componentManager);
 	}
 
@@ -287,6 +303,96 @@ public class XSakaiTokenTest {
 		assertNull(eid);
 	}
 
+	/**
+	 * A verified token is accepted again from the cache without another HMAC.
+	 * 
+	 * @see XSakaiToken#getValidatedEid(String, String)
+	 */
+	@Test
+	public void testGetValidatedEidVerifiedCache() {
+		when(
+				serverConfigurationService.getInt(
+						XSakaiToken.CONFIG_VERIFIED_CACHE_TTL, 0))
+				.thenReturn(60);
+		xSakaiToken = new XSakaiToken(componentManager);
+		assertEquals(MOCK_EID, xSakaiToken.getValidatedEid(MOCK_TOKEN,
+				MOCK_SHARED_SECRET));
+		// the mock Signature would fail any further verification
+		xSakaiToken.signature = signature;
+		assertEquals(MOCK_EID, xSakaiToken.getValidatedEid(MOCK_TOKEN,
+				MOCK_SHARED_SECRET));
+		assertEquals(1, xSakaiToken.getVerifiedTokenCache().getHitCount());
+		// a different secret must not be satisfied from the cache
+		assertNull(xSakaiToken.getValidatedEid(MOCK_TOKEN, "otherSecret"));
+	}
+
+	/**
+	 * Failed verifications are not cached.
+	 * 
+	 * @see XSakaiToken#getValidatedEid(String, String)
+	 */
+	@Test
+	public void testGetValidatedEidVerifiedCacheBadToken() {
+		when(
+				serverConfigurationService.getInt(
+						XSakaiToken.CONFIG_VERIFIED_CACHE_TTL, 0))
+				.thenReturn(60);
+		xSakaiToken = new XSakaiToken(componentManager);
+		assertNull(xSakaiToken.getValidatedEid(MOCK_TAMPERED_TOKEN,
+				MOCK_SHARED_SECRET));
+		assertEquals(0, xSakaiToken.getVerifiedTokenCache().size());
+	}
+
+	/**
+	 * The cache is disabled by default.
+	 * 
+	 * @see XSakaiToken#XSakaiToken(ComponentManager)
+	 */
+	@Test
+	public void testVerifiedCacheDisabled() {
+		assertNull(xSakaiToken.getVerifiedTokenCache());
+	}
+
+	/**
+	 * Extra separators make the token malformed.
+	 * 
+	 * @see XSakaiToken#getValidatedEid(String, String)
+	 */
+	@Test
+	public void testGetValidatedEidStringStringTrailingSeparator() {
+		final String eid = xSakaiToken.getValidatedEid(MOCK_TOKEN
+				+ XSakaiToken.TOKEN_SEPARATOR, MOCK_SHARED_SECRET);
+		assertNull(eid);
+	}
+
+	/**
+	 * Oversized tokens are rejected before parsing.
+	 * 
+	 * @see XSakaiToken#getValidatedEid(String, String)
+	 */
+	@Test
+	public void testGetValidatedEidStringStringTooLong() {
+		final StringBuilder token = new StringBuilder(MOCK_TOKEN);
+		while (token.length() <= XSakaiToken.MAX_TOKEN_LENGTH) {
+			token.append('0');
+		}
+		final String eid = xSakaiToken.getValidatedEid(token.toString(),
+				MOCK_SHARED_SECRET);
+		assertNull(eid);
+	}
+
+	/**
+	 * A hash of the right length but the wrong value must be rejected.
+	 * 
+	 * @see XSakaiToken#getValidatedEid(String, String)
+	 */
+	@Test
+	public void testGetValidatedEidStringStringTamperedToken() {
+		final String eid = xSakaiToken.getValidatedEid(MOCK_TAMPERED_TOKEN,
+				MOCK_SHARED_SECRET);
+		assertNull(eid);
+	}
+
 	/**
 	 * Test method for
 	 * {@link org.sakaiproject.hybrid.util.XSakaiToken#getValidatedEid(java.lang.String, java.lang.String)}
@@ -307,6 +413,100 @@ public class XSakaiTokenTest {
 		xSakaiToken.getValidatedEid(MOCK_TOKEN, "");
 	}
 
+	/**
+	 * Test method for
+	 * {@link org.sakaiproject.hybrid.util.XSakaiToken#getValidatedEid(java.lang.String, SharedSecrets)}
+	 * .
+	 */
+	@Test
+	public void testGetValidatedEidSharedSecretsKeyId() {
+		final SharedSecrets secrets = new SharedSecrets(new String[] {
+				"k2:other", "k1:" + MOCK_SHARED_SECRET }, 1);
+		assertEquals(MOCK_EID, xSakaiToken.getValidatedEid("k1:" + MOCK_TOKEN,
+				secrets));
+		// the key id selects the secret; no other secret is tried
+		assertNull(xSakaiToken.getValidatedEid("k2:" + MOCK_TOKEN, secrets));
+		assertNull(xSakaiToken.getValidatedEid("k3:" + MOCK_TOKEN, secrets));
+		// keyed tokens also validate against a single secret
+		assertEquals(MOCK_EID, xSakaiToken.getValidatedEid("k1:" + MOCK_TOKEN,
+				MOCK_SHARED_SECRET));
+	}
+
+	/**
+	 * Test method for
+	 * {@link org.sakaiproject.hybrid.util.XSakaiToken#getValidatedEid(java.lang.String, SharedSecrets)}
+	 * .
+	 */
+	@Test
+	public void testGetValidatedEidSharedSecretsTrial() {
+		final String[] entries = new String[] { "other",
+				"k1:" + MOCK_SHARED_SECRET };
+		assertEquals(MOCK_EID, xSakaiToken.getValidatedEid(MOCK_TOKEN,
+				new SharedSecrets(entries, 2)));
+		// beyond the cap
+		assertNull(xSakaiToken.getValidatedEid(MOCK_TOKEN, new SharedSecrets(
+				entries, 1)));
+		assertNull(xSakaiToken.getValidatedEid(MOCK_BAD_TOKEN,
+				new SharedSecrets(entries, 2)));
+		assertNull(xSakaiToken.getValidatedEid((String) null,
+				new SharedSecrets(entries, 2)));
+	}
+
+	/**
+	 * Test method for
+	 * {@link org.sakaiproject.hybrid.util.XSakaiToken#getValidatedEid(javax.servlet.http.HttpServletRequest, SharedSecrets)}
+	 * .
+	 */
+	@Test
+	public void testGetValidatedEidHttpServletRequestSharedSecrets() {
+		assertEquals(MOCK_EID, xSakaiToken.getValidatedEid(request,
+				new SharedSecrets(new String[] { MOCK_SHARED_SECRET }, 1)));
+	}
+
+	/**
+	 * Test method for
+	 * {@link org.sakaiproject.hybrid.util.XSakaiToken#getValidatedEid(java.lang.String, SharedSecrets)}
+	 * .
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testGetValidatedEidNullSharedSecrets() {
+		xSakaiToken.getValidatedEid(MOCK_TOKEN, (SharedSecrets) null);
+	}
+
+	/**
+	 * Test method for
+	 * {@link org.sakaiproject.hybrid.util.XSakaiToken#createToken(java.lang.String, java.lang.String)}
+	 * with a key id configured for the host.
+	 */
+	@Test
+	public void testCreateTokenKeyId() {
+		when(
+				serverConfigurationService.getString(XSakaiToken.CONFIG_PREFIX
+						+ "." + MOCK_HOSTNAME + "."
+						+ XSakaiToken.CONFIG_KEY_ID_SUFFIX, null)).thenReturn(
+				"k1");
+		assertEquals("k1", xSakaiToken.getKeyId(MOCK_HOSTNAME));
+		final String token = xSakaiToken.createToken(MOCK_HOSTNAME, MOCK_EID);
+		assertTrue(token.startsWith("k1:"));
+		assertEquals(MOCK_EID, xSakaiToken.getValidatedEid(token,
+				new SharedSecrets(new String[] { "k0:other",
+						"k1:" + MOCK_SHARED_SECRET }, 1)));
+		for (String batched : xSakaiToken.createTokens(MOCK_HOSTNAME, Arrays
+				.asList(MOCK_EID))) {
+			assertTrue(batched.startsWith("k1:"));
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link org.sakaiproject.hybrid.util.XSakaiToken#signMessage(java.lang.String, java.lang.String, java.lang.String)}
+	 * .
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testSignMessageIllegalKeyId() {
+		xSakaiToken.signMessage(MOCK_SHARED_SECRET, "k:1", MOCK_EID);
+	}
+
 	/**
 	 * Test method for
 	 * {@link org.sakaiproject.hybrid.util.XSakaiToken#createToken(java.lang.String)}
@@ -364,6 +564,71 @@ public class XSakaiTokenTest {
 		verifyTokens(token1, token2, MOCK_EID);
 	}
 
+	/**
+	 * Test method for
+	 * {@link org.sakaiproject.hybrid.util.XSakaiToken#createTokens(java.lang.String, java.util.Collection)}
+	 * .
+	 */
+	@Test
+	public void testCreateTokens() {
+		final List<String> eids = Arrays.asList(MOCK_EID, "user1", MOCK_EID);
+		final List<String> tokens = xSakaiToken.createTokens(MOCK_HOSTNAME,
+				eids);
+		assertEquals(eids.size(), tokens.size());
+		for (int i = 0; i < eids.size(); i++) {
+			assertEquals(eids.get(i), xSakaiToken.getValidatedEid(tokens
+					.get(i), MOCK_SHARED_SECRET));
+		}
+		verifyTokens(tokens.get(0), tokens.get(2), MOCK_EID);
+		assertTrue(xSakaiToken.createTokens(MOCK_HOSTNAME,
+				new ArrayList<String>()).isEmpty());
+	}
+
+	/**
+	 * Test method for
+	 * {@link org.sakaiproject.hybrid.util.XSakaiToken#createTokens(java.lang.String, java.util.Collection)}
+	 * .
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateTokensEmptyEid() {
+		xSakaiToken.createTokens(MOCK_HOSTNAME, Arrays.asList(MOCK_EID, ""));
+	}
+
+	/**
+	 * Test method for
+	 * {@link org.sakaiproject.hybrid.util.XSakaiToken#createTokens(java.lang.String, java.util.Collection)}
+	 * .
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateTokensNullEids() {
+		xSakaiToken.createTokens(MOCK_HOSTNAME, null);
+	}
+
+	/**
+	 * Test method for
+	 * {@link org.sakaiproject.hybrid.util.XSakaiToken#createTokens(java.lang.String, java.util.Collection)}
+	 * .
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testCreateTokensNoSharedSecret() {
+		xSakaiToken.createTokens("unknown.host", Arrays.asList(MOCK_EID));
+	}
+
+	/**
+	 * Test method for
+	 * {@link org.sakaiproject.hybrid.util.XSakaiToken#createTokens(java.lang.String, java.util.Collection)}
+	 * .
+	 */
+	@Test(expected = IllegalStateException.class)
+	public void testCreateTokensInvalidKeyException() throws Exception {
+		when(
+				signature.calculateRFC2104HMACsWithEncoding(
+						anyCollectionOf(String.class), anyString(),
+						anyBoolean())).thenThrow(new InvalidKeyException());
+		xSakaiToken.signature = signature;
+		xSakaiToken.createTokens(MOCK_HOSTNAME, Arrays.asList(MOCK_EID));
+	}
+
 	/**
 	 * Test method for
 	 * {@link org.sakaiproject.hybrid.util.XSakaiToken#createToken(java.lang.String, java.lang.String)}
@@ -516,6 +781,179 @@ public class XSakaiTokenTest {
 		assertNull(sharedSecret);
 	}
 
+	/**
+	 * Test method for
+	 * {@link org.sakaiproject.hybrid.util.XSakaiToken#getSharedSecret(java.lang.String)}
+	 * .
+	 */
+	@Test
+	public void testGetSharedSecretStringCached() {
+		assertEquals(MOCK_SHARED_SECRET,
+				xSakaiToken.getSharedSecret(MOCK_HOSTNAME));
+		assertEquals(MOCK_SHARED_SECRET,
+				xSakaiToken.getSharedSecret(MOCK_HOSTNAME));
+		verify(serverConfigurationService, times(1)).getString(
+				MOCK_SAKAI_PROP_KEY, null);
+	}
+
+	/**
+	 * Test method for
+	 * {@link org.sakaiproject.hybrid.util.XSakaiToken#getSharedSecret(java.lang.String)}
+	 * .
+	 */
+	@Test
+	public void testGetSharedSecretStringNoSharedSecretCached() {
+		when(serverConfigurationService.getString(MOCK_SAKAI_PROP_KEY, null))
+				.thenReturn(null);
+		assertNull(xSakaiToken.getSharedSecret(MOCK_HOSTNAME));
+		assertNull(xSakaiToken.getSharedSecret(MOCK_HOSTNAME));
+		verify(serverConfigurationService, times(1)).getString(
+				MOCK_SAKAI_PROP_KEY, null);
+		assertTrue(xSakaiToken.getConfiguredHosts().isEmpty());
+	}
+
+	/**
+	 * Test method for
+	 * {@link org.sakaiproject.hybrid.util.XSakaiToken#reloadSharedSecrets()}
+	 * .
+	 */
+	@Test
+	public void testReloadSharedSecrets() {
+		assertEquals(MOCK_SHARED_SECRET,
+				xSakaiToken.getSharedSecret(MOCK_HOSTNAME));
+		when(serverConfigurationService.getString(MOCK_SAKAI_PROP_KEY, null))
+				.thenReturn(null);
+		// stale until reloaded
+		assertEquals(MOCK_SHARED_SECRET,
+				xSakaiToken.getSharedSecret(MOCK_HOSTNAME));
+		xSakaiToken.reloadSharedSecrets();
+		assertNull(xSakaiToken.getSharedSecret(MOCK_HOSTNAME));
+		verify(serverConfigurationService, times(2)).getString(
+				MOCK_SAKAI_PROP_KEY, null);
+	}
+
+	/**
+	 * Cached secrets are read from configuration again once the secret
+	 * cache TTL has passed.
+	 * 
+	 * @see XSakaiToken#getSharedSecret(String)
+	 */
+	@Test
+	public void testGetSharedSecretCacheTtl() {
+		when(
+				serverConfigurationService.getInt(
+						XSakaiToken.CONFIG_SECRET_CACHE_TTL,
+						XSakaiToken.DEFAULT_SECRET_CACHE_TTL)).thenReturn(60);
+		final long[] now = { 1000L };
+		xSakaiToken = new XSakaiToken(componentManager) {
+			@Override
+			protected long currentTimeMillis() {
+				return now[0];
+			}
+		};
+		assertEquals(MOCK_SHARED_SECRET,
+				xSakaiToken.getSharedSecret(MOCK_HOSTNAME));
+		when(serverConfigurationService.getString(MOCK_SAKAI_PROP_KEY, null))
+				.thenReturn("rotated");
+		now[0] += 59999L;
+		assertEquals(MOCK_SHARED_SECRET,
+				xSakaiToken.getSharedSecret(MOCK_HOSTNAME));
+		now[0] += 1L;
+		assertEquals("rotated", xSakaiToken.getSharedSecret(MOCK_HOSTNAME));
+		verify(serverConfigurationService, times(2)).getString(
+				MOCK_SAKAI_PROP_KEY, null);
+	}
+
+	/**
+	 * Hosts without a secret are looked up again after the TTL too.
+	 * 
+	 * @see XSakaiToken#getSharedSecret(String)
+	 */
+	@Test
+	public void testGetSharedSecretCacheTtlMissing() {
+		when(
+				serverConfigurationService.getInt(
+						XSakaiToken.CONFIG_SECRET_CACHE_TTL,
+						XSakaiToken.DEFAULT_SECRET_CACHE_TTL)).thenReturn(60);
+		when(serverConfigurationService.getString(MOCK_SAKAI_PROP_KEY, null))
+				.thenReturn(null);
+		final long[] now = { 1000L };
+		xSakaiToken = new XSakaiToken(componentManager) {
+			@Override
+			protected long currentTimeMillis() {
+				return now[0];
+			}
+		};
+		assertNull(xSakaiToken.getSharedSecret(MOCK_HOSTNAME));
+		when(serverConfigurationService.getString(MOCK_SAKAI_PROP_KEY, null))
+				.thenReturn(MOCK_SHARED_SECRET);
+		assertNull(xSakaiToken.getSharedSecret(MOCK_HOSTNAME));
+		now[0] += 60000L;
+		assertEquals(MOCK_SHARED_SECRET,
+				xSakaiToken.getSharedSecret(MOCK_HOSTNAME));
+	}
+
+	/**
+	 * After a rotation picked up by the secret cache TTL, new tokens carry
+	 * the new key id together with the new secret, and the secret is looked
+	 * up once per reload.
+	 * 
+	 * @see XSakaiToken#createToken(String, String)
+	 */
+	@Test
+	public void testCreateTokenCacheTtlRotation() {
+		final String keyIdKey = XSakaiToken.CONFIG_PREFIX + "."
+				+ MOCK_HOSTNAME + "." + XSakaiToken.CONFIG_KEY_ID_SUFFIX;
+		when(
+				serverConfigurationService.getInt(
+						XSakaiToken.CONFIG_SECRET_CACHE_TTL,
+						XSakaiToken.DEFAULT_SECRET_CACHE_TTL)).thenReturn(60);
+		when(serverConfigurationService.getString(keyIdKey, null)).thenReturn(
+				"k1");
+		final long[] now = { 1000L };
+		xSakaiToken = new XSakaiToken(componentManager) {
+			@Override
+			protected long currentTimeMillis() {
+				return now[0];
+			}
+		};
+		assertTrue(xSakaiToken.createToken(MOCK_HOSTNAME, MOCK_EID)
+				.startsWith("k1:"));
+		when(serverConfigurationService.getString(MOCK_SAKAI_PROP_KEY, null))
+				.thenReturn("rotated");
+		when(serverConfigurationService.getString(keyIdKey, null)).thenReturn(
+				"k2");
+		now[0] += 60000L;
+		final String token = xSakaiToken.createToken(MOCK_HOSTNAME, MOCK_EID);
+		assertTrue(token.startsWith("k2:"));
+		assertEquals(MOCK_EID, xSakaiToken.getValidatedEid(token,
+				new SharedSecrets(new String[] {
+						"k1:" + MOCK_SHARED_SECRET, "k2:rotated" }, 1)));
+		verify(serverConfigurationService, times(2)).getString(
+				MOCK_SAKAI_PROP_KEY, null);
+	}
+
+	/**
+	 * Test method for
+	 * {@link org.sakaiproject.hybrid.util.XSakaiToken#getConfiguredHosts()}
+	 * .
+	 */
+	@Test
+	public void testGetConfiguredHosts() {
+		when(serverConfigurationService.getStrings(XSakaiToken.CONFIG_HOSTS))
+				.thenReturn(new String[] { MOCK_HOSTNAME, "unknown.host", "" });
+		xSakaiToken = new XSakaiToken(componentManager);
+		final Set<String> hosts = xSakaiToken.getConfiguredHosts();
+		assertEquals(1, hosts.size());
+		assertTrue(hosts.contains(MOCK_HOSTNAME));
+		// resolved at startup; no further lookups needed
+		assertEquals(MOCK_SHARED_SECRET,
+				xSakaiToken.getSharedSecret(MOCK_HOSTNAME));
+		assertNull(xSakaiToken.getSharedSecret("unknown.host"));
+		verify(serverConfigurationService, times(1)).getString(
+				MOCK_SAKAI_PROP_KEY, null);
+	}
+
 	/**
 	 * Verify that both tokens are not equal (due to changing nonce), but that
 	 * they have the right amount of parts and the same eid.
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Matches request paths against servlet mapping style patterns, parsed once
+ * into hash sets so that a lookup costs one probe per path segment however
+ * many patterns there are. Patterns are <code>;</code> separated and may be:
+ * <ul>
+ * <li>an exact path, e.g. <code>/portal/login</code></li>
+ * <li>a path prefix, e.g. <code>/direct/*</code>, which also matches
+ * <code>/direct</code> itself; <code>/*</code> matches everything.</li>
+ * <li>an extension, e.g. <code>*.css</code></li>
+ * </ul>
+ * Note: Class is immutable and thread safe.
+ */
+public class PathMatcher {
+	public static final String SEPARATOR = ";";
+	private static final String PREFIX_WILDCARD = "/*";
+	private static final String EXTENSION_WILDCARD = "*.";
+
+	private final transient Set<String> exact = new HashSet<String>();
+	private final transient Set<String> prefixes = new HashSet<String>();
+	private final transient Set<String> extensions = new HashSet<String>();
+	private transient boolean matchAll = false;
+
+	/**
+	 * @param patterns
+	 *            <code>;</code> separated patterns.
+	 * @throws IllegalArgumentException
+	 *             If patterns is null or a pattern is not one of the forms
+	 *             above.
+	 */
+	public PathMatcher(final String patterns) {
+		if (patterns == null) {
+			throw new IllegalArgumentException("patterns == null");
+		}
+		for (String entry : patterns.split(SEPARATOR)) {
+			final String pattern = entry.trim();
+			if (PREFIX_WILDCARD.equals(pattern)) {
+				matchAll = true;
+			} else if (pattern.endsWith(PREFIX_WILDCARD)
+					&& pattern.startsWith("/")) {
+				prefixes.add(pattern.substring(0, pattern.length()
+						- PREFIX_WILDCARD.length()));
+			} else if (pattern.startsWith(EXTENSION_WILDCARD)
+					&& pattern.length() > EXTENSION_WILDCARD.length()
+					&& pattern.indexOf('/') < 0) {
+				extensions.add(pattern.substring(EXTENSION_WILDCARD.length()));
+			} else if (pattern.startsWith("/") && pattern.indexOf('*') < 0) {
+				exact.add(pattern);
+			} else if (!"".equals(pattern)) {
+				throw new IllegalArgumentException("Unsupported path pattern: "
+						+ pattern);
+			}
+		}
+	}
+
+	/**
+	 * @param path
+	 *            e.g. servlet path plus path info.
+	 * @return true if any pattern matches path.
+	 */
+	@SuppressWarnings("PMD.OnlyOneReturn")
+	public boolean matches(final String path) {
+		if (matchAll) {
+			return true;
+		}
+		if (path == null) {
+			return false;
+		}
+		if (exact.contains(path) || prefixes.contains(path)) {
+			return true;
+		}
+		final int lastSlash = path.lastIndexOf('/');
+		if (!prefixes.isEmpty()) {
+			for (int slash = lastSlash; slash > 0; slash = path.lastIndexOf(
+					'/', slash - 1)) {
+				if (prefixes.contains(path.substring(0, slash))) {
+					return true;
+				}
+			}
+		}
+		if (!extensions.isEmpty()) {
+			final int dot = path.lastIndexOf('.');
+			if (dot > lastSlash) {
+				return extensions.contains(path.substring(dot + 1));
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if there are no patterns, i.e. nothing matches.
+	 */
+	public boolean isEmpty() {
+		return !matchAll && exact.isEmpty() && prefixes.isEmpty()
+				&& extensions.isEmpty();
+	}
+}
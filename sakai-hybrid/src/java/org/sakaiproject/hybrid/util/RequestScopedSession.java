@@ -0,0 +1,310 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.api.SessionManager;
+
+/**
+ * A {@link Session} that lives only as long as one trusted request. The user,
+ * attributes, tool sessions and context sessions are held in memory and the
+ * session is not registered with the {@link SessionManager}.
+ * <p>
+ * The first call to anything else, including {@link Session#getId()}, starts
+ * a real session with the {@link SessionManager}, copies the state into it
+ * and delegates every later call to it. Tool and context sessions handed out
+ * before then delegate to the matching ones of the real session. So the whole
+ * Session API works, and a caller that needs the session id, e.g. to look it
+ * up with {@link SessionManager#getSession(String)}, gets a registered
+ * session, at the cost of the same bookkeeping as before. Invalidating the
+ * session invalidates the real session, if any. Note: Class is thread safe.
+ */
+public final class RequestScopedSession implements InvocationHandler {
+	private static final Log LOG = LogFactory
+			.getLog(RequestScopedSession.class);
+	/**
+	 * Returned by {@link #invokeLocally(String, Object[], Method)} for calls
+	 * that need a real session.
+	 */
+	private static final Object UNHANDLED = new Object();
+
+	/**
+	 * Guards the state of the whole tree; the root session itself.
+	 */
+	private final transient RequestScopedSession root;
+	/**
+	 * Only set on the root.
+	 */
+	private final transient SessionManager sessionManager;
+	/**
+	 * The {@link Session} method that created this tool or context session;
+	 * null on the root.
+	 */
+	private final transient Method factory;
+	/**
+	 * Random id of the root, placement or context id of a child.
+	 */
+	private final transient String id;
+	private final transient long creationTime;
+	private transient long lastAccessedTime;
+	private transient int maxInactiveInterval;
+	private transient String userEid;
+	private transient String userId;
+	private final transient Map<String, Object> attributes = new HashMap<String, Object>();
+	/**
+	 * Tool and context session proxies by factory method name and id.
+	 */
+	private final transient Map<String, Object> children = new LinkedHashMap<String, Object>();
+	/**
+	 * The real session, tool session or context session once started.
+	 */
+	private transient Object delegate;
+
+	private RequestScopedSession(final RequestScopedSession parent,
+			final SessionManager sessionManager, final Method factory,
+			final String id) {
+		root = parent == null ? this : parent;
+		this.sessionManager = sessionManager;
+		this.factory = factory;
+		this.id = id;
+		creationTime = System.currentTimeMillis();
+		lastAccessedTime = creationTime;
+	}
+
+	/**
+	 * @param sessionManager
+	 *            Starts the real session if one is needed.
+	 * @param eid
+	 * @param userId
+	 * @return a new session for the user that is not registered anywhere.
+	 * @throws IllegalArgumentException
+	 */
+	public static Session newSession(final SessionManager sessionManager,
+			final String eid, final String userId) {
+		if (sessionManager == null) {
+			throw new IllegalArgumentException("sessionManager == null");
+		}
+		if (eid == null || "".equals(eid)) {
+			throw new IllegalArgumentException("eid == null OR empty");
+		}
+		if (userId == null || "".equals(userId)) {
+			throw new IllegalArgumentException("userId == null OR empty");
+		}
+		final RequestScopedSession handler = new RequestScopedSession(null,
+				sessionManager, null, UUID.randomUUID().toString());
+		handler.userEid = eid;
+		handler.userId = userId;
+		return (Session) newProxy(Session.class, handler);
+	}
+
+	/**
+	 * @param session
+	 * @return true if session was made by
+	 *         {@link #newSession(SessionManager, String, String)} and has
+	 *         started a real session.
+	 */
+	public static boolean isStarted(final Object session) {
+		if (session == null || !Proxy.isProxyClass(session.getClass())) {
+			return false;
+		}
+		final InvocationHandler handler = Proxy
+				.getInvocationHandler(session);
+		if (!(handler instanceof RequestScopedSession)) {
+			return false;
+		}
+		final RequestScopedSession scoped = (RequestScopedSession) handler;
+		synchronized (scoped.root) {
+			return scoped.root.delegate != null;
+		}
+	}
+
+	/**
+	 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+	 *      java.lang.reflect.Method, java.lang.Object[])
+	 */
+	@SuppressWarnings("PMD.OnlyOneReturn")
+	public Object invoke(final Object proxy, final Method method,
+			final Object[] args) throws Throwable {
+		final String name = method.getName();
+		final int argCount = args == null ? 0 : args.length;
+		if ("equals".equals(name) && argCount == 1) {
+			return Boolean.valueOf(proxy == args[0]);
+		} else if ("hashCode".equals(name) && argCount == 0) {
+			return Integer.valueOf(System.identityHashCode(proxy));
+		} else if ("toString".equals(name) && argCount == 0) {
+			return "RequestScopedSession[id=" + id + "]";
+		}
+		final Object target;
+		synchronized (root) {
+			if (delegate == null) {
+				final Object result = invokeLocally(name, args, method);
+				if (result != UNHANDLED) {
+					return result;
+				}
+				root.start();
+			}
+			target = delegate;
+		}
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Caller must hold the lock on {@link #root}.
+	 *
+	 * @return the result, or {@link #UNHANDLED} if a real session is needed.
+	 */
+	@SuppressWarnings({ "PMD.CyclomaticComplexity", "PMD.NPathComplexity",
+			"PMD.OnlyOneReturn" })
+	private Object invokeLocally(final String name, final Object[] args,
+			final Method method) {
+		final boolean isRoot = root == this;
+		if ("getUserEid".equals(name)) {
+			return root.userEid;
+		} else if ("getUserId".equals(name)) {
+			return root.userId;
+		} else if ("getCreationTime".equals(name)) {
+			return Long.valueOf(creationTime);
+		} else if ("getLastAccessedTime".equals(name)) {
+			return Long.valueOf(lastAccessedTime);
+		} else if ("getAttribute".equals(name)) {
+			return attributes.get(args[0]);
+		} else if ("setAttribute".equals(name)) {
+			if (args[1] == null) {
+				attributes.remove(args[0]);
+			} else {
+				attributes.put((String) args[0], args[1]);
+			}
+			return null;
+		} else if ("removeAttribute".equals(name)) {
+			attributes.remove(args[0]);
+			return null;
+		} else if ("getAttributeNames".equals(name)) {
+			return Collections.enumeration(new ArrayList<String>(attributes
+					.keySet()));
+		} else if (!isRoot) {
+			if ("getPlacementId".equals(name) || "getContextId".equals(name)) {
+				return id;
+			} else if ("clearAttributes".equals(name)) {
+				attributes.clear();
+				return null;
+			}
+		} else if ("setUserEid".equals(name)) {
+			userEid = (String) args[0];
+			return null;
+		} else if ("setUserId".equals(name)) {
+			userId = (String) args[0];
+			return null;
+		} else if ("setActive".equals(name)) {
+			lastAccessedTime = System.currentTimeMillis();
+			return null;
+		} else if ("getMaxInactiveInterval".equals(name)) {
+			return Integer.valueOf(maxInactiveInterval);
+		} else if ("setMaxInactiveInterval".equals(name)) {
+			maxInactiveInterval = ((Integer) args[0]).intValue();
+			return null;
+		} else if ("clear".equals(name) || "invalidate".equals(name)) {
+			attributes.clear();
+			children.clear();
+			return null;
+		} else if ("clearExcept".equals(name)) {
+			attributes.keySet().retainAll((Collection<?>) args[0]);
+			children.clear();
+			return null;
+		} else if ("getToolSession".equals(name)
+				|| "getContextSession".equals(name)) {
+			return getChild(method, (String) args[0]);
+		}
+		return UNHANDLED;
+	}
+
+	private Object getChild(final Method method, final String childId) {
+		if (childId == null) {
+			throw new IllegalArgumentException("childId == null");
+		}
+		final String key = method.getName() + ":" + childId;
+		Object child = children.get(key);
+		if (child == null) {
+			child = newProxy(method.getReturnType(), new RequestScopedSession(
+					this, null, method, childId));
+			children.put(key, child);
+		}
+		return child;
+	}
+
+	/**
+	 * Starts a real session, copies this tree into it and makes every node
+	 * delegate to its real counterpart. Caller must hold the lock on
+	 * {@link #root}.
+	 */
+	private void start() throws IllegalAccessException,
+			InvocationTargetException, NoSuchMethodException {
+		LOG.debug("start()");
+		final Session session = sessionManager.startSession();
+		session.setUserEid(userEid);
+		session.setUserId(userId);
+		if (maxInactiveInterval != 0) {
+			session.setMaxInactiveInterval(maxInactiveInterval);
+		}
+		for (Entry<String, Object> attribute : attributes.entrySet()) {
+			session.setAttribute(attribute.getKey(), attribute.getValue());
+		}
+		for (Object child : children.values()) {
+			final RequestScopedSession scoped = (RequestScopedSession) Proxy
+					.getInvocationHandler(child);
+			final Object real = scoped.factory.invoke(session, scoped.id);
+			final Method setAttribute = scoped.factory.getReturnType()
+					.getMethod("setAttribute", String.class, Object.class);
+			for (Entry<String, Object> attribute : scoped.attributes
+					.entrySet()) {
+				setAttribute.invoke(real, attribute.getKey(), attribute
+						.getValue());
+			}
+			scoped.delegate = real;
+			scoped.attributes.clear();
+		}
+		session.setActive();
+		delegate = session;
+		attributes.clear();
+		children.clear();
+	}
+
+	private static Object newProxy(final Class<?> type,
+			final RequestScopedSession handler) {
+		return Proxy.newProxyInstance(type.getClassLoader(),
+				new Class<?>[] { type }, handler);
+	}
+}
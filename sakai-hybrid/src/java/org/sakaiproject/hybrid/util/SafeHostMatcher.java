@@ -0,0 +1,350 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Decides whether a remote host is trusted. The <code>;</code> separated
+ * list is parsed once into a binary trie per address family, so a lookup
+ * walks at most 32 (IPv4) or 128 (IPv6) bits however many entries there
+ * are. Entries may be:
+ * <ul>
+ * <li>an IPv4 or IPv6 address, e.g. <code>127.0.0.1</code> or
+ * <code>::1</code>; an IPv6 zone id like <code>%0</code> is ignored.</li>
+ * <li>a CIDR range, e.g. <code>10.1.0.0/16</code> or <code>fd00::/8</code>.
+ * </li>
+ * <li>anything else is a hostname, compared exactly but ignoring case.</li>
+ * </ul>
+ * IPv4-mapped IPv6 addresses are treated as the IPv4 address. No DNS lookups
+ * are made. Note: Class is immutable and thread safe.
+ */
+public class SafeHostMatcher {
+	public static final String SEPARATOR = ";";
+	private static final int IPV4_BYTES = 4;
+	private static final int IPV6_BYTES = 16;
+	private static final int IPV6_GROUPS = 8;
+	/**
+	 * Bits before the IPv4 address in an IPv4-mapped IPv6 address.
+	 */
+	private static final int MAPPED_PREFIX_BITS = 96;
+
+	private final transient Set<String> hostnames = new HashSet<String>();
+	private final transient Trie ipv4 = new Trie();
+	private final transient Trie ipv6 = new Trie();
+
+	/**
+	 * @param safeHosts
+	 *            <code>;</code> separated addresses, ranges and hostnames.
+	 * @throws IllegalArgumentException
+	 *             If safeHosts is null or a CIDR range is malformed.
+	 */
+	public SafeHostMatcher(final String safeHosts) {
+		if (safeHosts == null) {
+			throw new IllegalArgumentException("safeHosts == null");
+		}
+		for (String entry : safeHosts.split(SEPARATOR)) {
+			final String trimmed = entry.trim();
+			if (!"".equals(trimmed)) {
+				add(trimmed);
+			}
+		}
+	}
+
+	/**
+	 * @param host
+	 *            as returned by
+	 *            {@link javax.servlet.ServletRequest#getRemoteHost()}.
+	 * @return true if host is one of, or falls within one of, the entries.
+	 */
+	public boolean matches(final String host) {
+		if (host == null || "".equals(host)) {
+			return false;
+		}
+		final byte[] address = parseAddress(host);
+		if (address == null) {
+			return hostnames.contains(host.toLowerCase(Locale.ENGLISH));
+		}
+		if (address.length == IPV4_BYTES) {
+			return ipv4.contains(address, 0);
+		}
+		if (isIpv4Mapped(address)) {
+			return ipv4.contains(address, IPV6_BYTES - IPV4_BYTES);
+		}
+		return ipv6.contains(address, 0);
+	}
+
+	/**
+	 * @return the hostname entries, in lower case.
+	 */
+	public Set<String> getHostnames() {
+		return Collections.unmodifiableSet(hostnames);
+	}
+
+	private void add(final String entry) {
+		final int slash = entry.indexOf('/');
+		final byte[] address = parseAddress(slash < 0 ? entry : entry
+				.substring(0, slash));
+		if (address == null) {
+			if (slash >= 0) {
+				throw new IllegalArgumentException("Not a CIDR range: "
+						+ entry);
+			}
+			hostnames.add(entry.toLowerCase(Locale.ENGLISH));
+			return;
+		}
+		int prefix = address.length * 8;
+		if (slash >= 0) {
+			try {
+				prefix = Integer.parseInt(entry.substring(slash + 1));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Not a CIDR range: "
+						+ entry, e);
+			}
+			if (prefix < 0 || prefix > address.length * 8) {
+				throw new IllegalArgumentException("Not a CIDR range: "
+						+ entry);
+			}
+		}
+		if (address.length == IPV4_BYTES) {
+			ipv4.insert(address, 0, prefix);
+		} else if (isIpv4Mapped(address) && prefix >= MAPPED_PREFIX_BITS) {
+			ipv4.insert(address, IPV6_BYTES - IPV4_BYTES, prefix
+					- MAPPED_PREFIX_BITS);
+		} else {
+			ipv6.insert(address, 0, prefix);
+		}
+	}
+
+	private static boolean isIpv4Mapped(final byte[] address) {
+		for (int i = 0; i < 10; i++) {
+			if (address[i] != 0) {
+				return false;
+			}
+		}
+		return address[10] == (byte) 0xff && address[11] == (byte) 0xff;
+	}
+
+	/**
+	 * @param text
+	 *            IPv4 or IPv6 literal, optionally in brackets or with a zone
+	 *            id.
+	 * @return 4 or 16 bytes; null if text is not an address literal.
+	 */
+	protected static byte[] parseAddress(final String text) {
+		int start = 0;
+		int end = text.length();
+		if (end > 1 && text.charAt(0) == '[' && text.charAt(end - 1) == ']') {
+			start++;
+			end--;
+		}
+		final int zone = text.indexOf('%', start);
+		if (zone >= 0 && zone < end) {
+			end = zone;
+		}
+		if (text.indexOf(':', start) >= 0) {
+			return parseIpv6(text, start, end);
+		}
+		final byte[] address = new byte[IPV4_BYTES];
+		return parseIpv4(text, start, end, address, 0) ? address : null;
+	}
+
+	/**
+	 * Parse dotted decimal into dst.
+	 * 
+	 * @return false if the text is not exactly four decimal octets.
+	 */
+	@SuppressWarnings("PMD.OnlyOneReturn")
+	private static boolean parseIpv4(final CharSequence text, final int start,
+			final int end, final byte[] dst, final int dstOffset) {
+		int octets = 0;
+		int value = 0;
+		int digits = 0;
+		for (int i = start; i <= end; i++) {
+			final char c = i == end ? '.' : text.charAt(i);
+			if (c == '.') {
+				if (digits == 0 || octets == IPV4_BYTES) {
+					return false;
+				}
+				dst[dstOffset + octets++] = (byte) value;
+				value = 0;
+				digits = 0;
+			} else if (c >= '0' && c <= '9' && digits < 3) {
+				value = value * 10 + c - '0';
+				digits++;
+				if (value > 255) {
+					return false;
+				}
+			} else {
+				return false;
+			}
+		}
+		return octets == IPV4_BYTES;
+	}
+
+	/**
+	 * Parse RFC 4291 text, including <code>::</code> and a trailing dotted
+	 * IPv4 address.
+	 * 
+	 * @return 16 bytes; null if malformed.
+	 */
+	@SuppressWarnings({ "PMD.OnlyOneReturn", "PMD.CyclomaticComplexity",
+			"PMD.NPathComplexity" })
+	private static byte[] parseIpv6(final String text, final int start,
+			final int end) {
+		final byte[] address = new byte[IPV6_BYTES];
+		int groups = 0;
+		int compressAt = -1;
+		int i = start;
+		if (end - start >= 2 && text.charAt(i) == ':') {
+			if (text.charAt(i + 1) != ':') {
+				return null;
+			}
+			compressAt = 0;
+			i += 2;
+		}
+		while (i < end) {
+			int j = i;
+			boolean dotted = false;
+			while (j < end && text.charAt(j) != ':') {
+				dotted |= text.charAt(j) == '.';
+				j++;
+			}
+			if (j == i || groups == IPV6_GROUPS) {
+				return null;
+			}
+			if (dotted) {
+				// an IPv4 address may only be the last two groups
+				if (j != end || groups > IPV6_GROUPS - 2
+						|| !parseIpv4(text, i, end, address, groups * 2)) {
+					return null;
+				}
+				groups += 2;
+				break;
+			}
+			if (j - i > 4) {
+				return null;
+			}
+			int value = 0;
+			for (int k = i; k < j; k++) {
+				final int digit = Character.digit(text.charAt(k), 16);
+				if (digit < 0) {
+					return null;
+				}
+				value = value << 4 | digit;
+			}
+			address[groups * 2] = (byte) (value >> 8);
+			address[groups * 2 + 1] = (byte) value;
+			groups++;
+			i = j + 1;
+			if (i < end && text.charAt(i) == ':') {
+				if (compressAt >= 0) {
+					return null;
+				}
+				compressAt = groups;
+				i++;
+			} else if (i == end) {
+				// trailing single ':'
+				return null;
+			}
+		}
+		if (compressAt < 0) {
+			return groups == IPV6_GROUPS ? address : null;
+		}
+		if (groups == IPV6_GROUPS) {
+			// "::" must stand for at least one group
+			return null;
+		}
+		final int tail = (groups - compressAt) * 2;
+		System.arraycopy(address, compressAt * 2, address, IPV6_BYTES - tail,
+				tail);
+		for (int k = compressAt * 2; k < IPV6_BYTES - tail; k++) {
+			address[k] = 0;
+		}
+		return address;
+	}
+
+	/**
+	 * Binary trie of address prefixes. Node 0 is the root; a child index of
+	 * 0 means there is no child. Only modified while the matcher is being
+	 * constructed.
+	 */
+	private static final class Trie {
+		private transient int[] zero = new int[16];
+		private transient int[] one = new int[16];
+		private transient boolean[] terminal = new boolean[16];
+		private transient int size = 1;
+
+		void insert(final byte[] address, final int offset, final int prefix) {
+			int node = 0;
+			for (int bit = 0; bit < prefix && !terminal[node]; bit++) {
+				final boolean set = isSet(address, offset, bit);
+				int child = set ? one[node] : zero[node];
+				if (child == 0) {
+					child = newNode();
+					if (set) {
+						one[node] = child;
+					} else {
+						zero[node] = child;
+					}
+				}
+				node = child;
+			}
+			terminal[node] = true;
+		}
+
+		boolean contains(final byte[] address, final int offset) {
+			final int bits = (address.length - offset) * 8;
+			int node = 0;
+			for (int bit = 0; !terminal[node]; bit++) {
+				if (bit == bits) {
+					return false;
+				}
+				node = isSet(address, offset, bit) ? one[node] : zero[node];
+				if (node == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private int newNode() {
+			if (size == terminal.length) {
+				final int capacity = size * 2;
+				final int[] newZero = new int[capacity];
+				final int[] newOne = new int[capacity];
+				final boolean[] newTerminal = new boolean[capacity];
+				System.arraycopy(zero, 0, newZero, 0, size);
+				System.arraycopy(one, 0, newOne, 0, size);
+				System.arraycopy(terminal, 0, newTerminal, 0, size);
+				zero = newZero;
+				one = newOne;
+				terminal = newTerminal;
+			}
+			return size++;
+		}
+
+		private static boolean isSet(final byte[] address, final int offset,
+				final int bit) {
+			return (address[offset + (bit >> 3)] & (0x80 >>> (bit & 7))) != 0;
+		}
+	}
+}
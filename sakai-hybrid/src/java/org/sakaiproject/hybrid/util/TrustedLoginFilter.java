@@ -18,6 +18,21 @@
 package org.sakaiproject.hybrid.util;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -31,6 +46,8 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sakaiproject.component.api.ComponentManager;
 import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventTrackingService;
 import org.sakaiproject.tool.api.Session;
 import org.sakaiproject.tool.api.SessionManager;
 import org.sakaiproject.user.api.User;
@@ -49,9 +66,10 @@ import edu.umd.cs.findbugs.annotations.SuppressWarnings;
  *  associate a user with the request.
  *  
  *  The token contains:
- *  hash;user
+ *  [keyId:]hash;user;nonce
  *  
  *  hash is a Base64 encoded HMAC hash, user is the username to associate with the request.
+ *  keyId optionally names the secret the hash was made with, see SharedSecrets.
  *  
  *  The shared secret must be known by both ends of the conversation, and must not be distributed outside a trusted zone.
  *  
@@ -111,6 +129,93 @@ public class TrustedLoginFilter implements Filter {
 	 * sakai.properties
 	 */
 	public static final String ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_SAFE_HOSTS = "org.sakaiproject.hybrid.util.TrustedLoginFilter.safeHosts";
+	/**
+	 * sakai.properties Additional secrets accepted while one is rotated, as a
+	 * list of <code>keyId:secret</code> entries. See {@link SharedSecrets}.
+	 */
+	public static final String ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_SHARED_SECRETS = "org.sakaiproject.hybrid.util.TrustedLoginFilter.sharedSecrets";
+	/**
+	 * sakai.properties Secrets tried for a token without a key id.
+	 */
+	public static final String ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_MAX_SECRET_TRIALS = "org.sakaiproject.hybrid.util.TrustedLoginFilter.maxSecretTrials";
+	/**
+	 * sakai.properties If true, match safe hosts against getRemoteAddr()
+	 * instead of getRemoteHost(), which may do a reverse DNS lookup. Hostname
+	 * entries in safeHosts are then resolved in the background.
+	 */
+	public static final String ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_ADDRESS_ONLY = "org.sakaiproject.hybrid.util.TrustedLoginFilter.addressOnly";
+	/**
+	 * sakai.properties Seconds between resolutions of hostname entries in
+	 * address only mode; 0 resolves them once at init.
+	 */
+	public static final String ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_DNS_REFRESH = "org.sakaiproject.hybrid.util.TrustedLoginFilter.dnsRefresh";
+	/**
+	 * Default for
+	 * {@link #ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_DNS_REFRESH}
+	 */
+	public static final int DEFAULT_DNS_REFRESH = 300;
+	/**
+	 * sakai.properties Seconds a user looked up by eid is remembered. 0 (the
+	 * default) disables the user cache.
+	 */
+	public static final String ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_USER_CACHE_TTL = "org.sakaiproject.hybrid.util.TrustedLoginFilter.userCache.ttl";
+	/**
+	 * sakai.properties Maximum number of remembered users, and separately of
+	 * remembered unknown eids.
+	 */
+	public static final String ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_USER_CACHE_MAX_ENTRIES = "org.sakaiproject.hybrid.util.TrustedLoginFilter.userCache.maxEntries";
+	/**
+	 * sakai.properties Seconds an eid without a user is remembered; 0
+	 * disables the negative cache.
+	 */
+	public static final String ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_USER_CACHE_NEGATIVE_TTL = "org.sakaiproject.hybrid.util.TrustedLoginFilter.userCache.negativeTtl";
+	/**
+	 * Default for
+	 * {@link #ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_USER_CACHE_MAX_ENTRIES}
+	 */
+	public static final int DEFAULT_USER_CACHE_MAX_ENTRIES = 1000;
+	/**
+	 * Default for
+	 * {@link #ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_USER_CACHE_NEGATIVE_TTL}
+	 */
+	public static final int DEFAULT_USER_CACHE_NEGATIVE_TTL = 30;
+	/**
+	 * sakai.properties Give each trusted request a {@link RequestScopedSession}
+	 * instead of starting a session with the session manager. The session
+	 * manager only starts a session if the request needs one, e.g. asks for
+	 * the session id. Either way the session is invalidated when the request
+	 * ends. Defaults to false.
+	 */
+	public static final String ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_REQUEST_SCOPED_SESSIONS = "org.sakaiproject.hybrid.util.TrustedLoginFilter.requestScopedSessions";
+	/**
+	 * sakai.properties ; separated paths the filter applies to, e.g.
+	 * <code>/direct/*;/portal/*</code>. All paths when unset. See
+	 * {@link PathMatcher}.
+	 */
+	public static final String ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_INCLUDE_PATHS = "org.sakaiproject.hybrid.util.TrustedLoginFilter.includePaths";
+	/**
+	 * sakai.properties ; separated paths passed straight down the chain, e.g.
+	 * <code>*.css;*.js;/library/*</code>. Takes precedence over
+	 * {@link #ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_INCLUDE_PATHS}.
+	 */
+	public static final String ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_EXCLUDE_PATHS = "org.sakaiproject.hybrid.util.TrustedLoginFilter.excludePaths";
+	/**
+	 * Request attribute set while the outermost dispatch is being filtered, so
+	 * forwards and includes pass straight through.
+	 */
+	public static final String PROCESSED_ATTRIBUTE = TrustedLoginFilter.class
+			.getName()
+			+ ".processed";
+	/**
+	 * Events after which cached users may be stale. Matched as prefixes, since
+	 * some kernels fire finer grained events such as
+	 * <code>user.upd.own.email</code>.
+	 */
+	private static final String[] USER_EVENT_PREFIXES = {
+			UserDirectoryService.SECURE_ADD_USER,
+			UserDirectoryService.SECURE_UPDATE_USER_ANY,
+			UserDirectoryService.SECURE_UPDATE_USER_OWN,
+			UserDirectoryService.SECURE_REMOVE_USER };
 
 	protected transient Signature signature = new Signature();
 	protected transient XSakaiToken xSakaiToken = null;
@@ -119,12 +224,18 @@ public class TrustedLoginFilter implements Filter {
 	protected transient ServerConfigurationService serverConfigurationService;
 	protected transient SessionManager sessionManager;
 	protected transient UserDirectoryService userDirectoryService;
+	protected transient EventTrackingService eventTrackingService;
 
 	/**
 	 * Property to contain the shared secret used by all trusted servers. The
 	 * shared secret used for server to server trusted tokens.
 	 */
 	protected transient String sharedSecret = null;
+	/**
+	 * {@link #sharedSecret} followed by the keyed secrets being rotated in or
+	 * out.
+	 */
+	protected transient SharedSecrets sharedSecrets = null;
 	/**
 	 * True if server tokens are enabled. If true, trusted tokens from servers
 	 * are accepted considered.
@@ -132,72 +243,171 @@ public class TrustedLoginFilter implements Filter {
 	protected transient boolean enabled = true;
 	/**
 	 * A list of all the known safe hosts to trust as servers. A ; separated
-	 * list of hosts that this instance trusts to make server connections.
+	 * list of hosts, addresses and CIDR ranges that this instance trusts to
+	 * make server connections. See {@link SafeHostMatcher}.
 	 */
 	protected transient String safeHosts = "localhost;127.0.0.1;0:0:0:0:0:0:0:1%0";
+	/**
+	 * {@link #safeHosts} parsed at init; entries may also be CIDR ranges.
+	 */
+	protected transient volatile SafeHostMatcher safeHostMatcher = new SafeHostMatcher(
+			safeHosts);
+	/**
+	 * True to match safe hosts on the remote address only. See
+	 * {@link #ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_ADDRESS_ONLY}.
+	 */
+	protected transient boolean addressOnly = false;
+	/**
+	 * Paths to filter; null means all.
+	 */
+	protected transient PathMatcher includePaths;
+	/**
+	 * Paths never filtered; null means none.
+	 */
+	protected transient PathMatcher excludePaths;
+	/**
+	 * Re-resolves hostname entries in address only mode; null if not needed.
+	 */
+	protected transient ScheduledExecutorService dnsRefresher;
+	/**
+	 * Last successfully resolved addresses of each hostname entry, as
+	 * {@link SafeHostMatcher#SEPARATOR} prefixed literals.
+	 */
+	private final transient Map<String, String> resolvedHosts = new HashMap<String, String>();
+	/**
+	 * Users by eid; null if disabled.
+	 */
+	protected transient ExpiringCache<String, CachedUser> userCache;
+	/**
+	 * See
+	 * {@link #ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_REQUEST_SCOPED_SESSIONS}
+	 */
+	protected transient boolean requestScopedSessions = false;
+	/**
+	 * Eids that have no user; null if disabled.
+	 */
+	protected transient ExpiringCache<String, Boolean> missingUserCache;
+	/**
+	 * Eids in {@link #userCache} by user id, since user events only carry
+	 * the id. Entries leave with their {@link #userCache} entry.
+	 */
+	protected final transient ConcurrentMap<String, String> cachedEidsById = new ConcurrentHashMap<String, String>();
+	/**
+	 * Number of user events seen, so that a lookup which raced with one does
+	 * not leave a stale entry behind.
+	 */
+	private final transient AtomicLong userEvents = new AtomicLong();
+	private final transient Observer userEventObserver = new Observer() {
+		public void update(final Observable observable, final Object arg) {
+			if (arg instanceof Event) {
+				onUserEvent((Event) arg);
+			}
+		}
+	};
 
 	/**
 	 * @see javax.servlet.Filter#doFilter(javax.servlet.ServletRequest,
 	 *      javax.servlet.ServletResponse, javax.servlet.FilterChain)
 	 */
-	@SuppressWarnings({ "PMD.CyclomaticComplexity", "PMD.OnlyOneReturn",
-			"PMD.AvoidDeeplyNestedIfStmts", "PMD.DataflowAnomalyAnalysis" })
 	public void doFilter(final ServletRequest req, final ServletResponse resp,
 			final FilterChain chain) throws IOException, ServletException {
-		if (enabled && req instanceof HttpServletRequest) {
-			HttpServletRequest hreq = (HttpServletRequest) req;
-			final String host = req.getRemoteHost();
-			if (safeHosts.indexOf(host) < 0) {
-				LOG.warn("Ignoring Trusted Token request from: " + host);
-				chain.doFilter(req, resp);
-				return;
-			} else {
-				Session currentSession = null;
-				Session requestSession = null;
-				final String trustedUserName = xSakaiToken.getValidatedEid(
-						hreq, sharedSecret);
-				if (trustedUserName != null) {
-					currentSession = sessionManager.getCurrentSession();
-					if (!trustedUserName.equals(currentSession.getUserEid())) {
-						User user = null;
-						try {
-							user = userDirectoryService
-									.getUserByEid(trustedUserName);
-						} catch (UserNotDefinedException e) {
-							LOG.warn(trustedUserName + " not found!");
-						}
-						if (user != null) {
+		// forwards and includes inherit the decision made on the outer request
+		if (enabled && req instanceof HttpServletRequest
+				&& req.getAttribute(PROCESSED_ATTRIBUTE) == null) {
+			final HttpServletRequest hreq = (HttpServletRequest) req;
+			final boolean filtered = isFilteredPath(hreq);
+			req.setAttribute(PROCESSED_ATTRIBUTE, Boolean.valueOf(filtered));
+			try {
+				if (filtered) {
+					doTrustedLogin(hreq, resp, chain);
+				} else {
+					chain.doFilter(req, resp);
+				}
+			} finally {
+				req.removeAttribute(PROCESSED_ATTRIBUTE);
+			}
+		} else {
+			chain.doFilter(req, resp);
+		}
+	}
+
+	/**
+	 * Start a session for the user named by a valid trusted token from a safe
+	 * host, then continue the chain.
+	 */
+	@SuppressWarnings({ "PMD.CyclomaticComplexity", "PMD.OnlyOneReturn",
+			"PMD.AvoidDeeplyNestedIfStmts", "PMD.DataflowAnomalyAnalysis" })
+	private void doTrustedLogin(final HttpServletRequest req,
+			final ServletResponse resp, final FilterChain chain)
+			throws IOException, ServletException {
+		HttpServletRequest hreq = req;
+		// getRemoteHost() may block on a reverse DNS lookup
+		final String host = addressOnly ? req.getRemoteAddr() : req
+				.getRemoteHost();
+		if (!safeHostMatcher.matches(host)) {
+			LOG.warn("Ignoring Trusted Token request from: " + host);
+			chain.doFilter(req, resp);
+			return;
+		} else {
+			Session currentSession = null;
+			Session requestSession = null;
+			final String trustedUserName = xSakaiToken.getValidatedEid(
+					hreq, sharedSecrets);
+			if (trustedUserName != null) {
+				currentSession = sessionManager.getCurrentSession();
+				if (!trustedUserName.equals(currentSession.getUserEid())) {
+					final CachedUser user = findUser(trustedUserName);
+					if (user != null) {
+						if (requestScopedSessions) {
+							requestSession = RequestScopedSession.newSession(
+									sessionManager, user.getEid(), user.getId());
+						} else {
 							requestSession = sessionManager.startSession();
 							requestSession.setUserEid(user.getEid());
 							requestSession.setUserId(user.getId());
 							requestSession.setActive();
-							sessionManager.setCurrentSession(requestSession);
-							// wrap the request so that we can get the user
-							// via getRemoteUser() in other places.
-							if (!(hreq instanceof ToolRequestWrapper)) {
-								hreq = new ToolRequestWrapper(hreq,
-										trustedUserName);
-							}
+						}
+						sessionManager.setCurrentSession(requestSession);
+						// wrap the request so that we can get the user
+						// via getRemoteUser() in other places.
+						if (!(hreq instanceof ToolRequestWrapper)) {
+							hreq = new ToolRequestWrapper(hreq,
+									trustedUserName);
 						}
 					}
 				}
-				try {
-					chain.doFilter(hreq, resp);
-				} finally {
-					if (requestSession != null) {
-						requestSession.invalidate();
-					}
-					if (currentSession != null) {
-						sessionManager.setCurrentSession(currentSession);
-					}
+			}
+			try {
+				chain.doFilter(hreq, resp);
+			} finally {
+				if (requestSession != null) {
+					requestSession.invalidate();
+				}
+				if (currentSession != null) {
+					sessionManager.setCurrentSession(currentSession);
 				}
 			}
-		} else {
-			chain.doFilter(req, resp);
-			return;
 		}
 	}
 
+	/**
+	 * @param req
+	 * @return true if the configured include and exclude paths select req.
+	 */
+	private boolean isFilteredPath(final HttpServletRequest req) {
+		if (includePaths == null && excludePaths == null) {
+			return true;
+		}
+		final String servletPath = req.getServletPath();
+		final String pathInfo = req.getPathInfo();
+		String path = servletPath == null ? "" : servletPath;
+		if (pathInfo != null) {
+			path = path + pathInfo;
+		}
+		return (includePaths == null || includePaths.matches(path))
+				&& (excludePaths == null || !excludePaths.matches(path));
+	}
+
 	/**
 	 * @see javax.servlet.Filter#init(javax.servlet.FilterConfig)
 	 */
@@ -229,17 +439,310 @@ public class TrustedLoginFilter implements Filter {
 		sharedSecret = serverConfigurationService.getString(
 				ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_SHARED_SECRET,
 				sharedSecret);
+		sharedSecrets = buildSharedSecrets();
 		// default to localhost
 		safeHosts = serverConfigurationService.getString(
 				ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_SAFE_HOSTS,
 				safeHosts);
+		safeHostMatcher = new SafeHostMatcher(safeHosts);
+		includePaths = buildPathMatcher(ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_INCLUDE_PATHS);
+		excludePaths = buildPathMatcher(ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_EXCLUDE_PATHS);
+		initUserCache();
+		requestScopedSessions = serverConfigurationService.getBoolean(
+				ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_REQUEST_SCOPED_SESSIONS,
+				requestScopedSessions);
+		addressOnly = serverConfigurationService.getBoolean(
+				ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_ADDRESS_ONLY,
+				addressOnly);
+		if (addressOnly) {
+			refreshSafeHostAddresses();
+			final int refreshSeconds = serverConfigurationService.getInt(
+					ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_DNS_REFRESH,
+					DEFAULT_DNS_REFRESH);
+			if (refreshSeconds > 0
+					&& !safeHostMatcher.getHostnames().isEmpty()) {
+				dnsRefresher = Executors
+						.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+								"TrustedLoginFilter-dns"));
+				dnsRefresher.scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						try {
+							refreshSafeHostAddresses();
+						} catch (RuntimeException e) {
+							// keep the schedule alive
+							LOG.error(e.getMessage(), e);
+						}
+					}
+				}, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+			}
+		}
+	}
+
+	/**
+	 * @param key
+	 *            sakai.properties key
+	 * @return the compiled patterns or null if none are configured.
+	 */
+	private PathMatcher buildPathMatcher(final String key) {
+		final String patterns = serverConfigurationService.getString(key, null);
+		if (patterns == null) {
+			return null;
+		}
+		final PathMatcher matcher = new PathMatcher(patterns);
+		return matcher.isEmpty() ? null : matcher;
+	}
+
+	/**
+	 * @return the legacy secret plus any keyed secrets; null if none are
+	 *         configured.
+	 */
+	private SharedSecrets buildSharedSecrets() {
+		final List<String> entries = new ArrayList<String>();
+		if (sharedSecret != null && !"".equals(sharedSecret)) {
+			// no key id; the leading separator keeps ':' in the secret intact
+			entries.add(SharedSecrets.KEY_ID_SEPARATOR + sharedSecret);
+		}
+		final String[] keyed = serverConfigurationService
+				.getStrings(ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_SHARED_SECRETS);
+		if (keyed != null) {
+			entries.addAll(Arrays.asList(keyed));
+		}
+		if (entries.isEmpty()) {
+			return null;
+		}
+		int maxTrials = serverConfigurationService.getInt(
+				ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_MAX_SECRET_TRIALS,
+				SharedSecrets.DEFAULT_MAX_TRIALS);
+		if (maxTrials < 1) {
+			maxTrials = SharedSecrets.DEFAULT_MAX_TRIALS;
+		}
+		return new SharedSecrets(entries.toArray(new String[entries.size()]),
+				maxTrials);
 	}
 
 	/**
 	 * @see javax.servlet.Filter#destroy()
 	 */
 	public void destroy() {
-		// nothing to do here
+		if (dnsRefresher != null) {
+			dnsRefresher.shutdownNow();
+		}
+		if (eventTrackingService != null) {
+			eventTrackingService.deleteObserver(userEventObserver);
+		}
+	}
+
+	private void initUserCache() {
+		final int ttl = serverConfigurationService.getInt(
+				ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_USER_CACHE_TTL, 0);
+		if (ttl <= 0) {
+			return;
+		}
+		eventTrackingService = (EventTrackingService) componentManager
+				.get(EventTrackingService.class);
+		if (eventTrackingService == null) {
+			throw new IllegalStateException("EventTrackingService == null");
+		}
+		final int maxEntries = serverConfigurationService.getInt(
+				ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_USER_CACHE_MAX_ENTRIES,
+				DEFAULT_USER_CACHE_MAX_ENTRIES);
+		final int negativeTtl = serverConfigurationService.getInt(
+				ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_USER_CACHE_NEGATIVE_TTL,
+				DEFAULT_USER_CACHE_NEGATIVE_TTL);
+		userCache = new ExpiringCache<String, CachedUser>(maxEntries,
+				TimeUnit.SECONDS.toMillis(ttl)) {
+			@Override
+			protected void onEviction(final String eid, final CachedUser user) {
+				cachedEidsById.remove(user.id, eid);
+			}
+		};
+		if (negativeTtl > 0) {
+			missingUserCache = new ExpiringCache<String, Boolean>(maxEntries,
+					TimeUnit.SECONDS.toMillis(negativeTtl));
+		}
+		// all cluster nodes' events, so an edit anywhere invalidates here
+		eventTrackingService.addObserver(userEventObserver);
+	}
+
+	/**
+	 * Look up a user by eid, through the user cache if enabled.
+	 * 
+	 * @param eid
+	 * @return null if there is no such user.
+	 */
+	@SuppressWarnings("PMD.DataflowAnomalyAnalysis")
+	protected CachedUser findUser(final String eid) {
+		CachedUser cached = userCache == null ? null : userCache.get(eid);
+		if (cached != null
+				|| (missingUserCache != null && missingUserCache.get(eid) != null)) {
+			return cached;
+		}
+		final long generation = userEvents.get();
+		try {
+			final User user = userDirectoryService.getUserByEid(eid);
+			if (user != null) {
+				cached = new CachedUser(user.getId(), user.getEid());
+				if (userCache != null) {
+					cachedEidsById.put(cached.id, eid);
+					userCache.put(eid, cached);
+					if (userEvents.get() != generation) {
+						// a user event may have come before this put
+						userCache.remove(eid);
+						cachedEidsById.remove(cached.id, eid);
+					}
+				}
+			}
+		} catch (UserNotDefinedException e) {
+			LOG.warn(eid + " not found!");
+			if (missingUserCache != null) {
+				missingUserCache.put(eid, Boolean.TRUE);
+				if (userEvents.get() != generation) {
+					missingUserCache.remove(eid);
+				}
+			}
+		}
+		return cached;
+	}
+
+	/**
+	 * Drop cached users that an added, updated or removed user may affect.
+	 * 
+	 * @param event
+	 */
+	protected void onUserEvent(final Event event) {
+		final String name = event.getEvent();
+		if (name == null || !isUserEvent(name)) {
+			return;
+		}
+		LOG.debug("onUserEvent(final Event event)");
+		userEvents.incrementAndGet();
+		if (missingUserCache != null) {
+			// the eid of a new or renamed user may be remembered as missing
+			missingUserCache.clear();
+		}
+		final String resource = event.getResource();
+		final String prefix = UserDirectoryService.REFERENCE_ROOT + "/";
+		if (userCache != null && resource != null
+				&& resource.startsWith(prefix)) {
+			final String eid = cachedEidsById.remove(resource.substring(prefix
+					.length()));
+			if (eid != null) {
+				userCache.remove(eid);
+			}
+		}
+	}
+
+	private static boolean isUserEvent(final String name) {
+		for (String prefix : USER_EVENT_PREFIXES) {
+			if (name.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Fraction of user lookups answered by the user cache, including those
+	 * answered by the negative cache.
+	 * 
+	 * @return 0 if the cache is disabled or unused.
+	 */
+	public double getUserCacheHitRate() {
+		if (userCache == null) {
+			return 0;
+		}
+		final long hits = userCache.getHitCount()
+				+ (missingUserCache == null ? 0 : missingUserCache
+						.getHitCount());
+		final long lookups = userCache.getHitCount()
+				+ userCache.getMissCount();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	/**
+	 * Exposed for monitoring; e.g. hit and miss counts.
+	 * 
+	 * @return the user cache or null if it is disabled.
+	 */
+	public ExpiringCache<String, CachedUser> getUserCache() {
+		return userCache;
+	}
+
+	/**
+	 * Exposed for monitoring; e.g. hit and miss counts.
+	 * 
+	 * @return the negative user cache or null if it is disabled.
+	 */
+	public ExpiringCache<String, Boolean> getMissingUserCache() {
+		return missingUserCache;
+	}
+
+	/**
+	 * Resolve the hostname entries in {@link #safeHosts} and replace
+	 * {@link #safeHostMatcher} with one that also holds their addresses. A
+	 * hostname that cannot be resolved keeps its previous addresses.
+	 */
+	protected synchronized void refreshSafeHostAddresses() {
+		LOG.debug("refreshSafeHostAddresses()");
+		final SafeHostMatcher configured = new SafeHostMatcher(safeHosts);
+		final StringBuilder addresses = new StringBuilder(safeHosts);
+		for (String hostname : configured.getHostnames()) {
+			try {
+				final StringBuilder resolved = new StringBuilder();
+				for (InetAddress address : resolve(hostname)) {
+					resolved.append(SafeHostMatcher.SEPARATOR).append(
+							address.getHostAddress());
+				}
+				resolvedHosts.put(hostname, resolved.toString());
+			} catch (UnknownHostException e) {
+				LOG.warn("Could not resolve safe host " + hostname
+						+ "; keeping its previous addresses");
+			}
+			final String resolved = resolvedHosts.get(hostname);
+			if (resolved != null) {
+				addresses.append(resolved);
+			}
+		}
+		safeHostMatcher = new SafeHostMatcher(addresses.toString());
+	}
+
+	/**
+	 * Overridable for unit testing.
+	 * 
+	 * @param hostname
+	 * @return all addresses of hostname.
+	 * @throws UnknownHostException
+	 */
+	protected InetAddress[] resolve(final String hostname)
+			throws UnknownHostException {
+		return InetAddress.getAllByName(hostname);
+	}
+
+	/**
+	 * The parts of a {@link User} the filter needs. Note: Class is immutable.
+	 */
+	public static final class CachedUser {
+		private final transient String id;
+		private final transient String eid;
+
+		protected CachedUser(final String id, final String eid) {
+			this.id = id;
+			this.eid = eid;
+		}
+
+		/**
+		 * @return the user's id
+		 */
+		public String getId() {
+			return id;
+		}
+
+		/**
+		 * @return the user's eid
+		 */
+		public String getEid() {
+			return eid;
+		}
 	}
 
 	/**
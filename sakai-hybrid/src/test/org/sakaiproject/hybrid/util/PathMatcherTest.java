@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link PathMatcher}.
+ */
+public class PathMatcherTest {
+
+	@Test
+	public void testExact() {
+		final PathMatcher matcher = new PathMatcher("/portal/login");
+		assertTrue(matcher.matches("/portal/login"));
+		assertFalse(matcher.matches("/portal/login/x"));
+		assertFalse(matcher.matches("/portal"));
+		assertFalse(matcher.matches(null));
+	}
+
+	@Test
+	public void testPrefix() {
+		final PathMatcher matcher = new PathMatcher(" /direct/* ;/sakai-hybrid/site/*");
+		assertTrue(matcher.matches("/direct"));
+		assertTrue(matcher.matches("/direct/"));
+		assertTrue(matcher.matches("/direct/user/current.json"));
+		assertTrue(matcher.matches("/sakai-hybrid/site/a/b/c"));
+		assertFalse(matcher.matches("/directory"));
+		assertFalse(matcher.matches("/sakai-hybrid"));
+		assertFalse(matcher.matches("/"));
+	}
+
+	@Test
+	public void testExtension() {
+		final PathMatcher matcher = new PathMatcher("*.css;*.js");
+		assertTrue(matcher.matches("/library/skin/tool.css"));
+		assertTrue(matcher.matches("/a.js"));
+		assertFalse(matcher.matches("/a.json"));
+		assertFalse(matcher.matches("/dir.css/file"));
+		assertFalse(matcher.matches("/css"));
+	}
+
+	@Test
+	public void testMatchAll() {
+		final PathMatcher matcher = new PathMatcher("/*");
+		assertTrue(matcher.matches("/anything"));
+		assertTrue(matcher.matches(null));
+		assertFalse(matcher.isEmpty());
+	}
+
+	@Test
+	public void testEmpty() {
+		final PathMatcher matcher = new PathMatcher(" ; ");
+		assertTrue(matcher.isEmpty());
+		assertFalse(matcher.matches("/"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnsupportedPattern() {
+		new PathMatcher("/a/*/b");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRelativePattern() {
+		new PathMatcher("portal");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNull() {
+		new PathMatcher(null);
+	}
+}
@@ -0,0 +1,320 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.tool.api.ContextSession;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.api.SessionManager;
+import org.sakaiproject.tool.api.ToolSession;
+
+/**
+ * Unit tests for {@link RequestScopedSession}.
+ */
+public class RequestScopedSessionTest {
+	private static final Log LOG = LogFactory
+			.getLog(RequestScopedSessionTest.class);
+	private static final int REQUESTS = 200000;
+
+	/**
+	 * Sessions started with {@link #sessionManager} by id.
+	 */
+	private ConcurrentMap<String, Session> registry;
+	private SessionManager sessionManager;
+
+	@Before
+	public void setUp() {
+		registry = new ConcurrentHashMap<String, Session>();
+		sessionManager = newSessionManager(registry);
+	}
+
+	@Test
+	public void testNewSession() {
+		final Session session = RequestScopedSession.newSession(
+				sessionManager, "joe", "id1");
+		assertEquals("joe", session.getUserEid());
+		assertEquals("id1", session.getUserId());
+		assertTrue(session.getLastAccessedTime() > 0);
+		assertTrue(session.equals(session));
+		assertFalse(session.equals(RequestScopedSession.newSession(
+				sessionManager, "joe", "id1")));
+		assertNotNull(session.toString());
+		assertFalse(RequestScopedSession.isStarted(session));
+		assertTrue(registry.isEmpty());
+	}
+
+	@Test
+	public void testAttributes() {
+		final Session session = RequestScopedSession.newSession(
+				sessionManager, "joe", "id1");
+		assertNull(session.getAttribute("a"));
+		session.setAttribute("a", "1");
+		assertEquals("1", session.getAttribute("a"));
+		session.setAttribute("a", null);
+		assertNull(session.getAttribute("a"));
+		session.setAttribute("a", "1");
+		session.clear();
+		assertNull(session.getAttribute("a"));
+		assertFalse(RequestScopedSession.isStarted(session));
+	}
+
+	/**
+	 * Nothing set during the request survives it.
+	 */
+	@Test
+	public void testInvalidate() {
+		final Session session = RequestScopedSession.newSession(
+				sessionManager, "joe", "id1");
+		session.setAttribute("a", "1");
+		session.invalidate();
+		assertNull(session.getAttribute("a"));
+		assertTrue(registry.isEmpty());
+	}
+
+	@Test
+	public void testSetUser() {
+		final Session session = RequestScopedSession.newSession(
+				sessionManager, "joe", "id1");
+		session.setUserEid("bob");
+		session.setUserId("id2");
+		assertEquals("bob", session.getUserEid());
+		assertEquals("id2", session.getUserId());
+		assertFalse(RequestScopedSession.isStarted(session));
+	}
+
+	@Test
+	public void testToolAndContextSessions() {
+		final Session session = RequestScopedSession.newSession(
+				sessionManager, "joe", "id1");
+		final ToolSession tool = session.getToolSession("p1");
+		assertSame(tool, session.getToolSession("p1"));
+		assertEquals("p1", tool.getPlacementId());
+		assertEquals("joe", tool.getUserEid());
+		assertEquals("id1", tool.getUserId());
+		tool.setAttribute("a", "1");
+		assertEquals("1", tool.getAttribute("a"));
+		assertNull(session.getAttribute("a"));
+		tool.clearAttributes();
+		assertNull(tool.getAttribute("a"));
+		final ContextSession context = session.getContextSession("c1");
+		assertEquals("c1", context.getContextId());
+		assertNull(context.getAttribute("a"));
+		assertFalse(RequestScopedSession.isStarted(session));
+		assertTrue(registry.isEmpty());
+	}
+
+	/**
+	 * Asking for the id starts a real session that can be looked up and
+	 * shares the state of the request scoped one.
+	 */
+	@Test
+	public void testGetIdStartsSession() {
+		final Session session = RequestScopedSession.newSession(
+				sessionManager, "joe", "id1");
+		session.setAttribute("a", "1");
+		final ToolSession tool = session.getToolSession("p1");
+		tool.setAttribute("t", "2");
+		final String id = session.getId();
+		assertTrue(RequestScopedSession.isStarted(session));
+		assertEquals(id, session.getId());
+		final Session registered = sessionManager.getSession(id);
+		assertNotNull(registered);
+		assertEquals("joe", registered.getUserEid());
+		assertEquals("id1", registered.getUserId());
+		assertEquals("1", registered.getAttribute("a"));
+		assertEquals("2", registered.getToolSession("p1").getAttribute("t"));
+		// both ways round after starting
+		session.setAttribute("b", "3");
+		assertEquals("3", registered.getAttribute("b"));
+		tool.setAttribute("u", "4");
+		assertEquals("4", registered.getToolSession("p1").getAttribute("u"));
+		registered.getContextSession("c1").setAttribute("c", "5");
+		assertEquals("5", session.getContextSession("c1").getAttribute("c"));
+		session.invalidate();
+		assertNull(sessionManager.getSession(id));
+	}
+
+	/**
+	 * Methods only a real tool session has start the session too.
+	 */
+	@Test
+	public void testToolSessionGetIdStartsSession() {
+		final Session session = RequestScopedSession.newSession(
+				sessionManager, "joe", "id1");
+		final ToolSession tool = session.getToolSession("p1");
+		assertNotNull(tool.getId());
+		assertTrue(RequestScopedSession.isStarted(session));
+		assertEquals(1, registry.size());
+		session.invalidate();
+		assertTrue(registry.isEmpty());
+	}
+
+	@Test
+	public void testIsStarted() {
+		assertFalse(RequestScopedSession.isStarted(null));
+		assertFalse(RequestScopedSession.isStarted("joe"));
+		assertFalse(RequestScopedSession.isStarted(sessionManager
+				.startSession()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNullSessionManager() {
+		RequestScopedSession.newSession(null, "joe", "id1");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNullEid() {
+		RequestScopedSession.newSession(sessionManager, null, "id1");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmptyUserId() {
+		RequestScopedSession.newSession(sessionManager, "joe", "");
+	}
+
+	/**
+	 * Logs the cost of a trusted request's session with startSession()
+	 * against a request scoped session. The session manager here only keeps
+	 * a registry, so the startSession() figure leaves out the session events
+	 * and bookkeeping of the kernel's session component.
+	 */
+	@Test
+	public void testThroughputAgainstStartSession() {
+		// warm up
+		run(false);
+		run(true);
+		long start = System.nanoTime();
+		run(false);
+		final long startSessionNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		run(true);
+		final long requestScopedNanos = System.nanoTime() - start;
+		LOG.info("Trusted request sessions: request scoped="
+				+ (REQUESTS * 1000000000L / requestScopedNanos)
+				+ " requests/s, startSession()="
+				+ (REQUESTS * 1000000000L / startSessionNanos)
+				+ " requests/s");
+	}
+
+	private void run(final boolean requestScoped) {
+		for (int i = 0; i < REQUESTS; i++) {
+			final String eid = "user" + (i & 63);
+			final Session session;
+			if (requestScoped) {
+				session = RequestScopedSession.newSession(sessionManager, eid,
+						eid);
+			} else {
+				session = sessionManager.startSession();
+				session.setUserEid(eid);
+				session.setUserId(eid);
+				session.setActive();
+			}
+			assertNull(session.getAttribute("request"));
+			session.setAttribute("request", Integer.valueOf(i));
+			assertEquals(eid, session.getUserId());
+			session.invalidate();
+		}
+		assertTrue(registry.isEmpty());
+	}
+
+	private static SessionManager newSessionManager(
+			final Map<String, Session> registry) {
+		return (SessionManager) Proxy.newProxyInstance(
+				RequestScopedSessionTest.class.getClassLoader(),
+				new Class<?>[] { SessionManager.class },
+				new InvocationHandler() {
+					public Object invoke(final Object proxy,
+							final Method method, final Object[] args) {
+						final String name = method.getName();
+						if ("startSession".equals(name)) {
+							final String id = UUID.randomUUID().toString();
+							final Session session = (Session) newSession(
+									Session.class, registry, id);
+							registry.put(id, session);
+							return session;
+						} else if ("getSession".equals(name)) {
+							return registry.get(args[0]);
+						}
+						throw new IllegalStateException(name);
+					}
+				});
+	}
+
+	/**
+	 * @return a session, tool session or context session kept in memory.
+	 */
+	private static Object newSession(final Class<?> type,
+			final Map<String, Session> registry, final String id) {
+		final Map<String, Object> state = new HashMap<String, Object>();
+		return Proxy.newProxyInstance(RequestScopedSessionTest.class
+				.getClassLoader(), new Class<?>[] { type },
+				new InvocationHandler() {
+					public synchronized Object invoke(final Object proxy,
+							final Method method, final Object[] args) {
+						final String name = method.getName();
+						if ("getId".equals(name)) {
+							return id;
+						} else if ("setActive".equals(name)) {
+							return null;
+						} else if ("invalidate".equals(name)) {
+							registry.remove(id);
+							state.clear();
+						} else if (name.startsWith("set")) {
+							state.put(args.length == 1 ? name.substring(3)
+									: "attribute." + args[0],
+									args[args.length - 1]);
+						} else if ("getAttribute".equals(name)) {
+							return state.get("attribute." + args[0]);
+						} else if ("getToolSession".equals(name)
+								|| "getContextSession".equals(name)) {
+							final String key = name + ":" + args[0];
+							if (!state.containsKey(key)) {
+								state.put(key, newSession(method
+										.getReturnType(), registry, UUID
+										.randomUUID().toString()));
+							}
+							return state.get(key);
+						} else if (name.startsWith("get")) {
+							return state.get(name.substring(3));
+						} else {
+							throw new IllegalStateException(name);
+						}
+						return null;
+					}
+				});
+	}
+}
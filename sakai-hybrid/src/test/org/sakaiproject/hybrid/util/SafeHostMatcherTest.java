@@ -0,0 +1,224 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.hybrid.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.PropertyConfigurator;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link SafeHostMatcher}.
+ */
+public class SafeHostMatcherTest {
+	private static final Log LOG = LogFactory.getLog(SafeHostMatcherTest.class);
+	private static final String DEFAULT_SAFE_HOSTS = "localhost;127.0.0.1;0:0:0:0:0:0:0:1%0";
+	private static final int RANGES = 200;
+	private static final int LOOKUPS = 200000;
+
+	@BeforeClass
+	public static void setupClass() {
+		Properties log4jProperties = new Properties();
+		log4jProperties.put("log4j.rootLogger", "ALL, A1");
+		log4jProperties.put("log4j.appender.A1",
+				"org.apache.log4j.ConsoleAppender");
+		log4jProperties.put("log4j.appender.A1.layout",
+				"org.apache.log4j.PatternLayout");
+		log4jProperties.put("log4j.appender.A1.layout.ConversionPattern",
+				PatternLayout.TTCC_CONVERSION_PATTERN);
+		log4jProperties.put("log4j.threshold", "ALL");
+		PropertyConfigurator.configure(log4jProperties);
+	}
+
+	@Test
+	public void testDefaultSafeHosts() {
+		final SafeHostMatcher matcher = new SafeHostMatcher(DEFAULT_SAFE_HOSTS);
+		assertTrue(matcher.matches("localhost"));
+		assertTrue(matcher.matches("LocalHost"));
+		assertTrue(matcher.matches("127.0.0.1"));
+		assertTrue(matcher.matches("0:0:0:0:0:0:0:1%0"));
+		assertTrue(matcher.matches("0:0:0:0:0:0:0:1"));
+		assertTrue(matcher.matches("::1"));
+		assertTrue(matcher.matches("[::1]"));
+		assertTrue(matcher.matches("::ffff:127.0.0.1"));
+	}
+
+	/**
+	 * The old substring scan accepted these.
+	 */
+	@Test
+	public void testNoSubstringMatches() {
+		final SafeHostMatcher matcher = new SafeHostMatcher(DEFAULT_SAFE_HOSTS);
+		assertFalse(matcher.matches("27.0.0.1"));
+		assertFalse(matcher.matches("127.0.0.10"));
+		assertFalse(matcher.matches("local"));
+		assertFalse(matcher.matches("host;127"));
+		assertFalse(matcher.matches("big.bad.hacker.com"));
+		assertFalse(matcher.matches(""));
+		assertFalse(matcher.matches(null));
+	}
+
+	@Test
+	public void testCidrRanges() {
+		final SafeHostMatcher matcher = new SafeHostMatcher(
+				"10.1.0.0/16; 192.168.7.128/25;fd00::/8;2001:db8::/127;0.0.0.0/32;");
+		assertTrue(matcher.matches("10.1.0.0"));
+		assertTrue(matcher.matches("10.1.255.255"));
+		assertFalse(matcher.matches("10.2.0.0"));
+		assertTrue(matcher.matches("192.168.7.200"));
+		assertFalse(matcher.matches("192.168.7.127"));
+		assertTrue(matcher.matches("fdab:1::42"));
+		assertFalse(matcher.matches("fe80::1"));
+		assertTrue(matcher.matches("2001:db8::1"));
+		assertFalse(matcher.matches("2001:db8::2"));
+		assertTrue(matcher.matches("::ffff:10.1.2.3"));
+		assertTrue(matcher.matches("0.0.0.0"));
+		assertFalse(matcher.matches("0.0.0.1"));
+	}
+
+	@Test
+	public void testGetHostnames() {
+		final SafeHostMatcher matcher = new SafeHostMatcher(
+				"Trusted.Example.com;10.0.0.0/8;localhost;::1");
+		assertEquals(new HashSet<String>(Arrays.asList("trusted.example.com",
+				"localhost")), matcher.getHostnames());
+	}
+
+	@Test
+	public void testMatchAll() {
+		final SafeHostMatcher matcher = new SafeHostMatcher("0.0.0.0/0;::/0");
+		assertTrue(matcher.matches("8.8.8.8"));
+		assertTrue(matcher.matches("2001:4860::8888"));
+		assertFalse(matcher.matches("example.com"));
+	}
+
+	@Test
+	public void testIpv4MappedRange() {
+		final SafeHostMatcher matcher = new SafeHostMatcher(
+				"::ffff:10.0.0.0/104");
+		assertTrue(matcher.matches("10.9.8.7"));
+		assertFalse(matcher.matches("11.0.0.0"));
+	}
+
+	@Test
+	public void testParseAddress() throws Exception {
+		final String[] literals = { "1.2.3.4", "::", "::1", "1::", "1:2::3",
+				"fe80::1:2", "1:2:3:4:5:6:7:8", "1:2:3:4:5:6:1.2.3.4",
+				"::ffff:1.2.3.4", "2001:DB8:0:0:8:800:200C:417A", "1::8" };
+		for (String literal : literals) {
+			assertArrayEquals(literal, InetAddress.getByName(literal)
+					.getAddress(), normalize(SafeHostMatcher
+					.parseAddress(literal)));
+		}
+		final String[] malformed = { "1.2.3", "1.2.3.4.5", "256.1.1.1",
+				"1..2.3", "01234.1.1.1", ":", ":::", ":1", "1:", "1::2::3",
+				"1:2:3:4:5:6:7:8:9", "1:2:3:4:5:6:7::8", "12345::",
+				"g::1", "1:2:3:4:5:6:7:1.2.3.4", "::1.2.3", "1.2.3.4::",
+				"example.com", "" };
+		for (String text : malformed) {
+			assertNull(text, SafeHostMatcher.parseAddress(text));
+		}
+	}
+
+	/**
+	 * InetAddress turns IPv4-mapped IPv6 literals into IPv4 addresses.
+	 */
+	private byte[] normalize(final byte[] address) {
+		if (address != null && address.length == 16 && address[10] == -1
+				&& address[11] == -1 && address[0] == 0 && address[9] == 0) {
+			final byte[] ipv4 = new byte[4];
+			System.arraycopy(address, 12, ipv4, 0, 4);
+			return ipv4;
+		}
+		return address;
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadPrefixLength() {
+		new SafeHostMatcher("10.0.0.0/33");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadPrefix() {
+		new SafeHostMatcher("10.0.0.0/x");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadRangeAddress() {
+		new SafeHostMatcher("example.com/24");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNull() {
+		new SafeHostMatcher(null);
+	}
+
+	/**
+	 * Compares lookups against {@value #RANGES} ranges with the
+	 * <code>indexOf</code> scan TrustedLoginFilter used to do. Timings are only
+	 * logged; they depend too much on the machine to assert on.
+	 */
+	@Test
+	public void testThroughputAgainstScan() {
+		final StringBuilder safeHosts = new StringBuilder(DEFAULT_SAFE_HOSTS);
+		for (int i = 0; i < RANGES; i++) {
+			safeHosts.append(SafeHostMatcher.SEPARATOR).append("10.").append(
+					i).append(".0.0/16");
+		}
+		final String scanned = safeHosts.toString();
+		final SafeHostMatcher matcher = new SafeHostMatcher(scanned);
+		final String[] hosts = { "10.199.3.4", "192.168.1.1", "127.0.0.1",
+				"big.bad.hacker.com" };
+		assertTrue(matcher.matches(hosts[0]));
+		assertFalse(matcher.matches(hosts[1]));
+		int matched = 0;
+		// warm up
+		for (int i = 0; i < LOOKUPS; i++) {
+			matched += matcher.matches(hosts[i & 3]) ? 1 : 0;
+			matched += scanned.indexOf(hosts[i & 3]) < 0 ? 0 : 1;
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < LOOKUPS; i++) {
+			matched += scanned.indexOf(hosts[i & 3]) < 0 ? 0 : 1;
+		}
+		final long scanNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < LOOKUPS; i++) {
+			matched += matcher.matches(hosts[i & 3]) ? 1 : 0;
+		}
+		final long matcherNanos = System.nanoTime() - start;
+		assertTrue(matched > 0);
+		LOG.info("Safe host lookups against " + RANGES + " ranges: matcher="
+				+ (LOOKUPS * 1000000000L / matcherNanos)
+				+ " lookups/s, indexOf scan="
+				+ (LOOKUPS * 1000000000L / scanNanos) + " lookups/s");
+	}
+}
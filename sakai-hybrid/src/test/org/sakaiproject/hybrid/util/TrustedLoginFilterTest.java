@@ -19,12 +19,17 @@ package org.sakaiproject.hybrid.util;
 
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Observer;
 import java.util.Properties;
 
 import javax.servlet.FilterChain;
@@ -42,10 +47,15 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 import org.sakaiproject.component.api.ComponentManager;
 import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventTrackingService;
 import org.sakaiproject.tool.api.Session;
 import org.sakaiproject.tool.api.SessionManager;
 import org.sakaiproject.user.api.User;
@@ -79,6 +89,10 @@ public class TrustedLoginFilterTest extends TestCase {
 	FilterConfig config;
 	@Mock
 	ServletRequest servletRequest;
+	@Mock
+	EventTrackingService eventTrackingService;
+	@Mock
+	Event event;
 
 	@BeforeClass
 	public static void setupClass() {
@@ -223,6 +237,50 @@ public class TrustedLoginFilterTest extends TestCase {
 		verify(chain).doFilter(request, response);
 	}
 
+	/**
+	 * A host whose name is only a substring of a safe host is not trusted.
+	 * Test method for
+	 * {@link org.sakaiproject.hybrid.util.TrustedLoginFilter#doFilter(javax.servlet.ServletRequest, javax.servlet.ServletResponse, javax.servlet.FilterChain)}
+	 * .
+	 * 
+	 * @throws ServletException
+	 * @throws IOException
+	 */
+	@Test
+	public void testDoFilterSubstringOfSafeHost() throws IOException,
+			ServletException {
+		when(request.getRemoteHost()).thenReturn("27.0.0.1");
+		trustedLoginFilter.doFilter(request, response, chain);
+		verify(sessionManager, never()).startSession();
+		verify(chain).doFilter(request, response);
+	}
+
+	/**
+	 * Test method for
+	 * {@link org.sakaiproject.hybrid.util.TrustedLoginFilter#doFilter(javax.servlet.ServletRequest, javax.servlet.ServletResponse, javax.servlet.FilterChain)}
+	 * .
+	 * 
+	 * @throws ServletException
+	 * @throws IOException
+	 */
+	@Test
+	public void testDoFilterSafeHostCidrRange() throws IOException,
+			ServletException {
+		when(
+				serverConfigurationService
+						.getString(
+								TrustedLoginFilter.ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_SAFE_HOSTS,
+								trustedLoginFilter.safeHosts)).thenReturn(
+				"localhost;10.0.0.0/8");
+		trustedLoginFilter = new TrustedLoginFilter();
+		trustedLoginFilter.setupTestCase(componentManager);
+		trustedLoginFilter.init(config);
+		when(request.getRemoteHost()).thenReturn("10.20.30.40");
+		trustedLoginFilter.doFilter(request, response, chain);
+		verify(sessionManager).startSession();
+		verify(chain).doFilter(isA(ToolRequestWrapper.class), eq(response));
+	}
+
 	/**
 	 * Test method for
 	 * {@link org.sakaiproject.hybrid.util.TrustedLoginFilter#doFilter(javax.servlet.ServletRequest, javax.servlet.ServletResponse, javax.servlet.FilterChain)}
@@ -280,6 +338,55 @@ public class TrustedLoginFilterTest extends TestCase {
 		verify(chain).doFilter(request, response);
 	}
 
+	/**
+	 * A token naming a rotated-in secret by key id is accepted. Test method
+	 * for
+	 * {@link org.sakaiproject.hybrid.util.TrustedLoginFilter#doFilter(javax.servlet.ServletRequest, javax.servlet.ServletResponse, javax.servlet.FilterChain)}
+	 * .
+	 * 
+	 * @throws ServletException
+	 * @throws IOException
+	 */
+	@Test
+	public void testDoFilterKeyedSharedSecret() throws IOException,
+			ServletException {
+		when(
+				serverConfigurationService
+						.getString(
+								TrustedLoginFilter.ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_SHARED_SECRET,
+								null)).thenReturn("the old secret");
+		when(
+				serverConfigurationService
+						.getStrings(TrustedLoginFilter.ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_SHARED_SECRETS))
+				.thenReturn(new String[] { "k2:e2KS54H35j6vS5Z38nK40" });
+		trustedLoginFilter = new TrustedLoginFilter();
+		trustedLoginFilter.setupTestCase(componentManager);
+		trustedLoginFilter.init(config);
+		when(request.getHeader("x-sakai-token")).thenReturn(
+				"k2:sw9TTTqlEbGQkELqQuQPq92ydr4=;username;nonce");
+		trustedLoginFilter.doFilter(request, response, chain);
+		verify(sessionManager).startSession();
+		verify(chain).doFilter(isA(ToolRequestWrapper.class), eq(response));
+	}
+
+	/**
+	 * Test method for
+	 * {@link org.sakaiproject.hybrid.util.TrustedLoginFilter#doFilter(javax.servlet.ServletRequest, javax.servlet.ServletResponse, javax.servlet.FilterChain)}
+	 * .
+	 * 
+	 * @throws ServletException
+	 * @throws IOException
+	 */
+	@Test
+	public void testDoFilterUnknownKeyId() throws IOException,
+			ServletException {
+		when(request.getHeader("x-sakai-token")).thenReturn(
+				"k9:sw9TTTqlEbGQkELqQuQPq92ydr4=;username;nonce");
+		trustedLoginFilter.doFilter(request, response, chain);
+		verify(sessionManager, never()).startSession();
+		verify(chain).doFilter(request, response);
+	}
+
 	/**
 	 * Test method for
 	 * {@link org.sakaiproject.hybrid.util.TrustedLoginFilter#doFilter(javax.servlet.ServletRequest, javax.servlet.ServletResponse, javax.servlet.FilterChain)}
@@ -384,6 +491,427 @@ public class TrustedLoginFilterTest extends TestCase {
 		trustedLoginFilter.destroy();
 	}
 
+	/**
+	 * In address only mode the remote host name is never asked for. Test
+	 * method for
+	 * {@link org.sakaiproject.hybrid.util.TrustedLoginFilter#doFilter(javax.servlet.ServletRequest, javax.servlet.ServletResponse, javax.servlet.FilterChain)}
+	 * .
+	 * 
+	 * @throws ServletException
+	 * @throws IOException
+	 */
+	@Test
+	public void testDoFilterAddressOnly() throws IOException,
+			ServletException {
+		when(
+				serverConfigurationService
+						.getBoolean(
+								TrustedLoginFilter.ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_ADDRESS_ONLY,
+								false)).thenReturn(true);
+		trustedLoginFilter = new ResolvingTrustedLoginFilter();
+		trustedLoginFilter.setupTestCase(componentManager);
+		trustedLoginFilter.init(config);
+		when(request.getRemoteAddr()).thenReturn("127.0.0.1");
+		trustedLoginFilter.doFilter(request, response, chain);
+		verify(request, never()).getRemoteHost();
+		verify(sessionManager).startSession();
+		verify(chain).doFilter(isA(ToolRequestWrapper.class), eq(response));
+	}
+
+	/**
+	 * @see TrustedLoginFilter#refreshSafeHostAddresses()
+	 * @throws ServletException
+	 */
+	@Test
+	public void testRefreshSafeHostAddresses() throws ServletException {
+		when(
+				serverConfigurationService
+						.getString(
+								TrustedLoginFilter.ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_SAFE_HOSTS,
+								trustedLoginFilter.safeHosts)).thenReturn(
+				"trusted.example.com;10.0.0.0/8");
+		when(
+				serverConfigurationService
+						.getBoolean(
+								TrustedLoginFilter.ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_ADDRESS_ONLY,
+								false)).thenReturn(true);
+		final ResolvingTrustedLoginFilter filter = new ResolvingTrustedLoginFilter();
+		filter.setupTestCase(componentManager);
+		filter.init(config);
+		assertTrue(filter.safeHostMatcher.matches("192.0.2.10"));
+		assertTrue(filter.safeHostMatcher.matches("10.1.2.3"));
+		assertFalse(filter.safeHostMatcher.matches("192.0.2.11"));
+		// DNS failure keeps the previous addresses
+		filter.available = false;
+		filter.refreshSafeHostAddresses();
+		assertTrue(filter.safeHostMatcher.matches("192.0.2.10"));
+		// moved
+		filter.available = true;
+		filter.address = "192.0.2.11";
+		filter.refreshSafeHostAddresses();
+		assertTrue(filter.safeHostMatcher.matches("192.0.2.11"));
+		assertFalse(filter.safeHostMatcher.matches("192.0.2.10"));
+		// no refresh scheduled; dnsRefresh is 0 in this test
+		assertNull(filter.dnsRefresher);
+	}
+
+	/**
+	 * @see TrustedLoginFilter#destroy()
+	 * @throws ServletException
+	 */
+	@Test
+	public void testDestroyDnsRefresher() throws ServletException {
+		when(
+				serverConfigurationService
+						.getBoolean(
+								TrustedLoginFilter.ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_ADDRESS_ONLY,
+								false)).thenReturn(true);
+		when(
+				serverConfigurationService
+						.getInt(TrustedLoginFilter.ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_DNS_REFRESH,
+								TrustedLoginFilter.DEFAULT_DNS_REFRESH))
+				.thenReturn(60);
+		trustedLoginFilter = new ResolvingTrustedLoginFilter();
+		trustedLoginFilter.setupTestCase(componentManager);
+		trustedLoginFilter.init(config);
+		assertNotNull(trustedLoginFilter.dnsRefresher);
+		trustedLoginFilter.destroy();
+		assertTrue(trustedLoginFilter.dnsRefresher.isShutdown());
+	}
+
+	/**
+	 * Test method for
+	 * {@link org.sakaiproject.hybrid.util.TrustedLoginFilter#doFilter(javax.servlet.ServletRequest, javax.servlet.ServletResponse, javax.servlet.FilterChain)}
+	 * with the user cache enabled.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testDoFilterUserCache() throws Exception {
+		enableUserCache();
+		trustedLoginFilter.doFilter(request, response, chain);
+		trustedLoginFilter.doFilter(request, response, chain);
+		verify(userDirectoryService, times(1)).getUserByEid("username");
+		verify(sessionManager, times(2)).startSession();
+		verify(newSession, times(2)).setUserId("uuid1234567890");
+		verify(newSession, times(2)).setUserEid("username");
+		assertEquals(0.5, trustedLoginFilter.getUserCacheHitRate(), 0.001);
+		assertEquals(1, trustedLoginFilter.getUserCache().getHitCount());
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	@Test
+	public void testDoFilterUserCacheUserNotDefined() throws Exception {
+		when(userDirectoryService.getUserByEid("username")).thenThrow(
+				new UserNotDefinedException("username"));
+		enableUserCache();
+		trustedLoginFilter.doFilter(request, response, chain);
+		trustedLoginFilter.doFilter(request, response, chain);
+		verify(userDirectoryService, times(1)).getUserByEid("username");
+		verify(sessionManager, never()).startSession();
+		verify(chain, times(2)).doFilter(request, response);
+		assertEquals(1, trustedLoginFilter.getMissingUserCache()
+				.getHitCount());
+	}
+
+	/**
+	 * @see TrustedLoginFilter#onUserEvent(Event)
+	 * @throws Exception
+	 */
+	@Test
+	public void testUserCacheInvalidatedByUserEvent() throws Exception {
+		enableUserCache();
+		trustedLoginFilter.doFilter(request, response, chain);
+		// unrelated events are ignored
+		when(event.getEvent()).thenReturn("site.upd");
+		when(event.getResource()).thenReturn("/user/uuid1234567890");
+		trustedLoginFilter.onUserEvent(event);
+		trustedLoginFilter.doFilter(request, response, chain);
+		verify(userDirectoryService, times(1)).getUserByEid("username");
+		when(event.getEvent()).thenReturn(
+				UserDirectoryService.SECURE_UPDATE_USER_ANY);
+		trustedLoginFilter.onUserEvent(event);
+		trustedLoginFilter.doFilter(request, response, chain);
+		verify(userDirectoryService, times(2)).getUserByEid("username");
+		// finer grained own update events match too
+		when(event.getEvent()).thenReturn(
+				UserDirectoryService.SECURE_UPDATE_USER_OWN + ".email");
+		trustedLoginFilter.onUserEvent(event);
+		trustedLoginFilter.doFilter(request, response, chain);
+		verify(userDirectoryService, times(3)).getUserByEid("username");
+	}
+
+	/**
+	 * A new user is found even if its eid was remembered as missing.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testMissingUserCacheClearedByUserEvent() throws Exception {
+		when(userDirectoryService.getUserByEid("username")).thenThrow(
+				new UserNotDefinedException("username")).thenReturn(user);
+		enableUserCache();
+		trustedLoginFilter.doFilter(request, response, chain);
+		when(event.getEvent()).thenReturn(
+				UserDirectoryService.SECURE_ADD_USER);
+		when(event.getResource()).thenReturn("/user/uuid1234567890");
+		trustedLoginFilter.onUserEvent(event);
+		trustedLoginFilter.doFilter(request, response, chain);
+		verify(userDirectoryService, times(2)).getUserByEid("username");
+		verify(sessionManager, times(1)).startSession();
+	}
+
+	/**
+	 * A user evicted from the cache takes its id mapping with it.
+	 * 
+	 * @see TrustedLoginFilter#findUser(String)
+	 * @throws Exception
+	 */
+	@Test
+	public void testUserCacheEvictionDropsId() throws Exception {
+		final User other = mock(User.class);
+		when(other.getEid()).thenReturn("other");
+		when(other.getId()).thenReturn("uuid0987654321");
+		when(userDirectoryService.getUserByEid("other")).thenReturn(other);
+		enableUserCache(1);
+		trustedLoginFilter.findUser("username");
+		assertTrue(trustedLoginFilter.cachedEidsById
+				.containsKey("uuid1234567890"));
+		trustedLoginFilter.findUser("other");
+		assertEquals(1, trustedLoginFilter.getUserCache().size());
+		assertEquals(1, trustedLoginFilter.cachedEidsById.size());
+		assertEquals("other",
+				trustedLoginFilter.cachedEidsById.get("uuid0987654321"));
+	}
+
+	/**
+	 * A user event during a lookup keeps the looked up user out of the
+	 * cache, since it may predate the change.
+	 * 
+	 * @see TrustedLoginFilter#findUser(String)
+	 * @throws Exception
+	 */
+	@Test
+	public void testUserCacheUserEventDuringLookup() throws Exception {
+		when(event.getEvent()).thenReturn(
+				UserDirectoryService.SECURE_UPDATE_USER_ANY);
+		when(event.getResource()).thenReturn("/user/uuid1234567890");
+		when(userDirectoryService.getUserByEid("username")).thenAnswer(
+				new Answer<User>() {
+					public User answer(final InvocationOnMock invocation) {
+						trustedLoginFilter.onUserEvent(event);
+						return user;
+					}
+				});
+		enableUserCache();
+		assertNotNull(trustedLoginFilter.findUser("username"));
+		assertEquals(0, trustedLoginFilter.getUserCache().size());
+		assertTrue(trustedLoginFilter.cachedEidsById.isEmpty());
+		trustedLoginFilter.findUser("username");
+		verify(userDirectoryService, times(2)).getUserByEid("username");
+	}
+
+	/**
+	 * @see TrustedLoginFilter#destroy()
+	 * @throws Exception
+	 */
+	@Test
+	public void testDestroyUserCache() throws Exception {
+		enableUserCache();
+		verify(eventTrackingService).addObserver(isA(Observer.class));
+		trustedLoginFilter.destroy();
+		verify(eventTrackingService).deleteObserver(isA(Observer.class));
+	}
+
+	/**
+	 * @see TrustedLoginFilter#init(FilterConfig)
+	 * @throws Exception
+	 */
+	@Test(expected = IllegalStateException.class)
+	public void testUserCacheNullEventTrackingService() throws Exception {
+		when(componentManager.get(EventTrackingService.class)).thenReturn(null);
+		enableUserCache();
+	}
+
+	/**
+	 * Test method for
+	 * {@link org.sakaiproject.hybrid.util.TrustedLoginFilter#doFilter(javax.servlet.ServletRequest, javax.servlet.ServletResponse, javax.servlet.FilterChain)}
+	 * with request scoped sessions.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testDoFilterRequestScopedSessions() throws Exception {
+		when(
+				serverConfigurationService
+						.getBoolean(
+								TrustedLoginFilter.ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_REQUEST_SCOPED_SESSIONS,
+								false)).thenReturn(true);
+		trustedLoginFilter = new TrustedLoginFilter();
+		trustedLoginFilter.setupTestCase(componentManager);
+		trustedLoginFilter.init(config);
+		trustedLoginFilter.doFilter(request, response, chain);
+		trustedLoginFilter.doFilter(request, response, chain);
+		verify(sessionManager, never()).startSession();
+		final ArgumentCaptor<Session> sessions = ArgumentCaptor
+				.forClass(Session.class);
+		verify(sessionManager, times(4)).setCurrentSession(sessions.capture());
+		final Session first = sessions.getAllValues().get(0);
+		assertEquals("username", first.getUserEid());
+		assertEquals("uuid1234567890", first.getUserId());
+		assertSame(existingSession, sessions.getAllValues().get(1));
+		// a fresh session for every request
+		assertNotSame(first, sessions.getAllValues().get(2));
+		assertSame(existingSession, sessions.getAllValues().get(3));
+		verify(chain, times(2)).doFilter(isA(ToolRequestWrapper.class),
+				eq(response));
+	}
+
+	/**
+	 * A request that needs the session id gets a registered session, which
+	 * is invalidated when the request ends.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testDoFilterRequestScopedSessionStarted() throws Exception {
+		when(
+				serverConfigurationService
+						.getBoolean(
+								TrustedLoginFilter.ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_REQUEST_SCOPED_SESSIONS,
+								false)).thenReturn(true);
+		when(newSession.getId()).thenReturn("sessionId");
+		trustedLoginFilter = new TrustedLoginFilter();
+		trustedLoginFilter.setupTestCase(componentManager);
+		trustedLoginFilter.init(config);
+		final String[] ids = new String[1];
+		doAnswer(new Answer<Object>() {
+			public Object answer(final InvocationOnMock invocation) {
+				final ArgumentCaptor<Session> current = ArgumentCaptor
+						.forClass(Session.class);
+				verify(sessionManager).setCurrentSession(current.capture());
+				ids[0] = current.getValue().getId();
+				return null;
+			}
+		}).when(chain).doFilter(isA(ToolRequestWrapper.class), eq(response));
+		trustedLoginFilter.doFilter(request, response, chain);
+		assertEquals("sessionId", ids[0]);
+		verify(sessionManager).startSession();
+		verify(newSession).setUserEid("username");
+		verify(newSession).setUserId("uuid1234567890");
+		verify(newSession).setActive();
+		verify(newSession).invalidate();
+		verify(sessionManager).setCurrentSession(existingSession);
+	}
+
+	/**
+	 * Excluded paths go straight down the chain without looking at the host
+	 * or token.
+	 * 
+	 * @throws ServletException
+	 * @throws IOException
+	 */
+	@Test
+	public void testDoFilterExcludedPath() throws IOException,
+			ServletException {
+		when(
+				serverConfigurationService
+						.getString(
+								TrustedLoginFilter.ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_EXCLUDE_PATHS,
+								null)).thenReturn("*.css;/library/*");
+		trustedLoginFilter.init(config);
+		when(request.getServletPath()).thenReturn("/library");
+		when(request.getPathInfo()).thenReturn("/skin/tool.css");
+		trustedLoginFilter.doFilter(request, response, chain);
+		verify(request, never()).getRemoteHost();
+		verify(request, never()).getHeader("x-sakai-token");
+		verify(sessionManager, never()).startSession();
+		verify(request).setAttribute(TrustedLoginFilter.PROCESSED_ATTRIBUTE,
+				Boolean.FALSE);
+		verify(request).removeAttribute(TrustedLoginFilter.PROCESSED_ATTRIBUTE);
+		verify(chain).doFilter(request, response);
+	}
+
+	/**
+	 * Only included paths are filtered once includePaths is set.
+	 * 
+	 * @throws ServletException
+	 * @throws IOException
+	 */
+	@Test
+	public void testDoFilterIncludedPath() throws IOException,
+			ServletException {
+		when(
+				serverConfigurationService
+						.getString(
+								TrustedLoginFilter.ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_INCLUDE_PATHS,
+								null)).thenReturn("/direct/*");
+		trustedLoginFilter.init(config);
+		when(request.getServletPath()).thenReturn("/direct");
+		when(request.getPathInfo()).thenReturn("/user/current.json");
+		trustedLoginFilter.doFilter(request, response, chain);
+		verify(sessionManager, times(1)).startSession();
+		verify(chain).doFilter(isA(ToolRequestWrapper.class), eq(response));
+
+		when(request.getServletPath()).thenReturn("/portal");
+		when(request.getPathInfo()).thenReturn(null);
+		trustedLoginFilter.doFilter(request, response, chain);
+		verify(sessionManager, times(1)).startSession();
+		verify(chain).doFilter(request, response);
+	}
+
+	/**
+	 * Forwards and includes of a request already seen by the filter are not
+	 * processed again.
+	 * 
+	 * @throws ServletException
+	 * @throws IOException
+	 */
+	@Test
+	public void testDoFilterNestedDispatch() throws IOException,
+			ServletException {
+		when(request.getAttribute(TrustedLoginFilter.PROCESSED_ATTRIBUTE))
+				.thenReturn(Boolean.TRUE);
+		trustedLoginFilter.doFilter(request, response, chain);
+		verify(request, never()).getRemoteHost();
+		verify(sessionManager, never()).startSession();
+		verify(request, never()).removeAttribute(
+				TrustedLoginFilter.PROCESSED_ATTRIBUTE);
+		verify(chain).doFilter(request, response);
+	}
+
+	/**
+	 * The outer request is marked for the duration of the chain.
+	 * 
+	 * @throws ServletException
+	 * @throws IOException
+	 */
+	@Test
+	public void testDoFilterMarksRequest() throws IOException,
+			ServletException {
+		trustedLoginFilter.doFilter(request, response, chain);
+		verify(request).setAttribute(TrustedLoginFilter.PROCESSED_ATTRIBUTE,
+				Boolean.TRUE);
+		verify(request).removeAttribute(TrustedLoginFilter.PROCESSED_ATTRIBUTE);
+		verify(sessionManager).startSession();
+	}
+
+	/**
+	 * @see TrustedLoginFilter#init(FilterConfig)
+	 * @throws ServletException
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testInitUnsupportedPathPattern() throws ServletException {
+		when(
+				serverConfigurationService
+						.getString(
+								TrustedLoginFilter.ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_EXCLUDE_PATHS,
+								null)).thenReturn("/a/*/b");
+		trustedLoginFilter.init(config);
+	}
+
 	/**
 	 * @see TrustedLoginFilter#init(FilterConfig)
 	 * @throws ServletException
@@ -405,4 +933,52 @@ public class TrustedLoginFilterTest extends TestCase {
 		trustedLoginFilter.init(config);
 	}
 
+	private void enableUserCache() throws ServletException {
+		enableUserCache(TrustedLoginFilter.DEFAULT_USER_CACHE_MAX_ENTRIES);
+	}
+
+	private void enableUserCache(final int maxEntries) throws ServletException {
+		when(componentManager.get(EventTrackingService.class)).thenReturn(
+				eventTrackingService);
+		when(
+				serverConfigurationService
+						.getInt(TrustedLoginFilter.ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_USER_CACHE_TTL,
+								0)).thenReturn(60);
+		when(
+				serverConfigurationService
+						.getInt(TrustedLoginFilter.ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_USER_CACHE_MAX_ENTRIES,
+								TrustedLoginFilter.DEFAULT_USER_CACHE_MAX_ENTRIES))
+				.thenReturn(maxEntries);
+		when(
+				serverConfigurationService
+						.getInt(TrustedLoginFilter.ORG_SAKAIPROJECT_UTIL_TRUSTED_LOGIN_FILTER_USER_CACHE_NEGATIVE_TTL,
+								TrustedLoginFilter.DEFAULT_USER_CACHE_NEGATIVE_TTL))
+				.thenReturn(TrustedLoginFilter.DEFAULT_USER_CACHE_NEGATIVE_TTL);
+		trustedLoginFilter = new TrustedLoginFilter();
+		trustedLoginFilter.setupTestCase(componentManager);
+		trustedLoginFilter.init(config);
+	}
+
+	/**
+	 * Resolves every hostname to {@link #address} without DNS.
+	 */
+	private static class ResolvingTrustedLoginFilter extends
+			TrustedLoginFilter {
+		protected transient volatile String address = "192.0.2.10";
+		protected transient volatile boolean available = true;
+
+		@Override
+		protected InetAddress[] resolve(final String hostname)
+				throws UnknownHostException {
+			if (!available) {
+				throw new UnknownHostException(hostname);
+			}
+			if ("localhost".equals(hostname)) {
+				return new InetAddress[] { InetAddress
+						.getByName("127.0.0.1") };
+			}
+			return new InetAddress[] { InetAddress.getByName(address) };
+		}
+	}
+
 }